@@ -4,7 +4,8 @@ import ncs.maagic as maagic
 
 
 def id_request(service, svc_xpath, username,
-               pool_name, allocation_name, sync, requested_id=-1):
+               pool_name, allocation_name, sync, requested_id=-1,
+               block_size=1, block_alignment=1):
     """Create an allocation request.
 
     After calling this function, you have to call response_ready
@@ -42,7 +43,11 @@ def id_request(service, svc_xpath, username,
     pool_name -- name of pool to request from
     allocation_name -- unique allocation name
     sync -- sync allocations with this name across pools
-    requested_id -- a specific ID to be requested
+    requested_id -- a specific ID to be requested, the first ID of a block
+    block_size -- number of consecutive IDs to allocate, the response is
+                  the first ID of the block. Blocks cannot be synced.
+    block_alignment -- the first ID of the block is a multiple of this
+                       power of two
     """
     template = ncs.template.Template(service)
     vars = ncs.template.Variables()
@@ -52,6 +57,8 @@ def id_request(service, svc_xpath, username,
     vars.add("SERVICE", svc_xpath)
     vars.add("SYNC", sync)
     vars.add("REQUESTEDID", requested_id)
+    vars.add("BLOCKSIZE", block_size)
+    vars.add("BLOCKALIGNMENT", block_alignment)
     template.apply('resource-manager-id-allocation', vars)
 
 
@@ -1,5 +1,8 @@
 package com.tailf.pkg.idallocator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.List;
 
@@ -7,6 +10,9 @@ import org.apache.log4j.Logger;
 
 import com.tailf.pkg.idallocator.namespaces.idAllocatorOper;
 import com.tailf.pkg.idpool.Allocation;
+import com.tailf.pkg.nsoutil.Journal;
+import com.tailf.pkg.nsoutil.PoolLoader;
+import com.tailf.pkg.nsoutil.SetLog;
 import com.tailf.cdb.CdbSession;
 import com.tailf.conf.ConfObject;
 import com.tailf.conf.ConfPath;
@@ -23,11 +29,27 @@ public class AllocationsSet extends HashSet<Allocation> {
 
     private ConfPath allocPath;
     private CdbSession wsess;
+    private Journal<Allocation> journal = new Journal<Allocation>();
+    private SetLog<Allocation> log;
+
+    static final SetLog.Codec<Allocation> CODEC =
+        new SetLog.Codec<Allocation>() {
+        public void write(DataOutput out, Allocation e) throws IOException {
+            out.writeLong(e.getAllocated());
+        }
+
+        public Allocation read(DataInput in) throws IOException {
+            return new Allocation(in.readLong());
+        }
+    };
 
     public AllocationsSet(CdbSession wsess, String poolName) {
         super();
 
         this.wsess = wsess;
+        this.log = new SetLog<Allocation>("id-allocator", poolName,
+                                          idAllocatorOper._allocation_,
+                                          CODEC);
 
         LOGGER.debug("Creating AllocationsSet");
 
@@ -50,8 +72,31 @@ public class AllocationsSet extends HashSet<Allocation> {
             LOGGER.debug("Adding existing allocations");
 
             int n = wsess.getNumberOfInstances(allocPath);
-            if (n > 0) {
-                List<ConfObject[]> objs = wsess.getObjects(1, 0, n, allocPath);
+
+            /*
+             * Prefer the local snapshot, as long as it is of the
+             * generation of the set in CDB.
+             */
+            List<Allocation> cached = log.load(wsess, new ConfPath(
+                    "/%s:%s/%s{%s}/%s{%s}",
+                    idAllocatorOper.prefix, idAllocatorOper._id_allocator_,
+                    idAllocatorOper._pool_, poolName,
+                    idAllocatorOper._snapshot_,
+                    idAllocatorOper._allocation_));
+            if (cached != null && cached.size() == n) {
+                LOGGER.debug(String.format(
+                                 "Loaded %d allocations from snapshot", n));
+                for (Allocation e : cached) {
+                    super.add(e);
+                }
+                return;
+            }
+
+            /* Read in chunks, to bound the memory used for large pools. */
+            for (int i = 0; i < n; i += PoolLoader.CHUNK) {
+                List<ConfObject[]> objs =
+                    wsess.getObjects(1, i, Math.min(PoolLoader.CHUNK, n - i),
+                                     allocPath);
 
                 for (ConfObject[] obj : objs) {
                     long id = ((ConfUInt32) obj[0]).longValue();
@@ -59,57 +104,84 @@ public class AllocationsSet extends HashSet<Allocation> {
                     super.add(new Allocation(id));
                 }
             }
+            log.snapshot(this);
         } catch (Exception e) {
             LOGGER.error("Failed to setup up AllocationsSet", e);
         }
     }
 
+    /*
+     * Changes are only recorded in the journal, they are written to
+     * CDB by flush().
+     */
     public boolean add(Allocation e) {
-        boolean res = super.add(e);
-
-        if (res) {
-            try {
-                long id = e.getAllocated();
-                String p = String.format("%s{%s}",
-                                this.allocPath.toString(),
-                                Long.toString(id));
-                this.wsess.create(p);
-            } catch (Exception ex) {
-                LOGGER.error("Could not add allocation", ex);
-            }
-        }
-
-        return res;
+        journal.touch(e, contains(e));
+        return super.add(e);
     }
 
     public boolean remove(Object o) {
-        boolean res = super.remove(o);
-        Allocation e = (Allocation) o;
-
-        if (res) {
-            try {
-                long id = e.getAllocated();
-                String p = String.format("%s{%s}",
-                                this.allocPath.toString(),
-                                Long.toString(id));
-                this.wsess.delete(p);
-            } catch (Exception ex ) {
-                LOGGER.error("Could not remove allocation", ex);
-            }
+        if (!(o instanceof Allocation)) {
+            return false;
         }
-
-        return res;
+        journal.touch((Allocation) o, contains(o));
+        return super.remove(o);
     }
 
     public void clear() {
+        journal.clear(this);
         super.clear();
+    }
 
-        try {
-            if (this.wsess.exists(this.allocPath)) {
-                this.wsess.delete(this.allocPath);
-            }
-        } catch (Exception ex ) {
-            LOGGER.error("Failed to clear allocations", ex);
+    /**
+     * Write the changes made since the last flush to CDB.
+     */
+    public void flush() throws Exception {
+        if (journal.isEmpty()) {
+            return;
         }
+        log.begin(wsess);
+        journal.flush(this, writer);
+        log.commit(this);
+    }
+
+    /**
+     * Write with wsess from now on, for a set that was loaded with
+     * another session.
+     */
+    public void setSession(CdbSession wsess) {
+        this.wsess = wsess;
+    }
+
+    /**
+     * Remove the local snapshot, when the pool is deleted.
+     */
+    public void deleteSnapshot() {
+        log.delete();
+    }
+
+    private String allocationPath(Allocation e) {
+        return String.format("%s{%s}",
+                             this.allocPath.toString(),
+                             Long.toString(e.getAllocated()));
     }
+
+    private final Journal.Writer<Allocation> writer =
+        new Journal.Writer<Allocation>() {
+        public void create(Allocation e) throws Exception {
+            wsess.create(allocationPath(e));
+            log.add(e);
+        }
+
+        public void delete(Allocation e) throws Exception {
+            wsess.delete(allocationPath(e));
+            log.remove(e);
+        }
+
+        public void deleteAll() throws Exception {
+            if (wsess.exists(allocPath)) {
+                wsess.delete(allocPath);
+            }
+            log.clear();
+        }
+    };
 }
@@ -17,6 +17,10 @@ import com.tailf.conf.ConfTag;
 import com.tailf.conf.ConfUInt8;
 import com.tailf.conf.ConfUInt32;
 import com.tailf.conf.ConfValue;
+import com.tailf.conf.ConfXMLParam;
+import com.tailf.conf.ConfXMLParamLeaf;
+import com.tailf.conf.ConfXMLParamStart;
+import com.tailf.conf.ConfXMLParamStop;
 import com.tailf.conf.DiffIterateFlags;
 import com.tailf.conf.DiffIterateOperFlag;
 import com.tailf.conf.DiffIterateResultFlag;
@@ -37,6 +41,8 @@ import com.tailf.cdb.Cdb;
 import com.tailf.cdb.CdbSession;
 import com.tailf.maapi.Maapi;
 import com.tailf.maapi.MaapiUserSessionFlag;
+import com.tailf.maapi.QueryResult;
+import com.tailf.maapi.ResultTypeString;
 import com.tailf.ncs.annotations.Resource;
 import com.tailf.ncs.annotations.ResourceType;
 import com.tailf.ncs.annotations.Scope;
@@ -48,13 +54,25 @@ import com.tailf.pkg.idpool.Allocation;
 import com.tailf.pkg.idpool.IDPool;
 import com.tailf.pkg.idpool.Range;
 import com.tailf.pkg.idpool.exceptions.AllocationException;
+import com.tailf.pkg.nsoutil.Batcher;
+import com.tailf.pkg.nsoutil.CdbSessionPool;
+import com.tailf.pkg.nsoutil.IntentLog;
 import com.tailf.pkg.nsoutil.NSOUtil;
+import com.tailf.pkg.nsoutil.OwnerTracker;
+import com.tailf.pkg.nsoutil.PendingResponses;
+import com.tailf.pkg.nsoutil.PoolLoader;
+import com.tailf.pkg.nsoutil.PoolWorkers;
+import com.tailf.pkg.nsoutil.Reservations;
+import com.tailf.pkg.nsoutil.ResultCache;
+import com.tailf.pkg.nsoutil.SetLog;
 import com.tailf.pkg.nsoutil.ToRedeploy;
 import com.tailf.pkg.resourcemanager.ResourceErrorException;
 import com.tailf.pkg.resourcemanager.ResourceException;
 import com.tailf.pkg.resourcemanager.ResourceWaitException;
 import com.tailf.pkg.resourcemanager.namespaces.resourceAllocator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.net.SocketException;
 import java.nio.channels.ClosedChannelException;
@@ -62,12 +80,25 @@ import java.util.EnumSet;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+
+import java.util.concurrent.ConcurrentHashMap;
 
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
  * The ID Allocator is an implementation of a Resource Manager package,
@@ -85,10 +116,54 @@ import java.util.concurrent.TimeUnit;
 public class IdAllocator implements ApplicationComponent {
     private static Logger LOGGER = Logger.getLogger(IdAllocator.class);
 
+    /* Pending allocations replayed between writes at startup. */
+    private static final int REPLAY_BATCH = 1000;
+
+    /* Responses for the read APIs, while this node allocates. */
+    private static final ResultCache<AllocStatus> results =
+        new ResultCache<AllocStatus>();
+
+    /* The allocator of this JVM, for synchronous allocations. */
+    private static volatile IdAllocator running = null;
+
+    /* Ids allocated by idAllocate() for requests not committed yet. */
+    private Reservations<Long> reservations =
+        new Reservations<Long>(new Reservations.Expiry<Long>() {
+                public void expired(String poolName, String id, Long value) {
+                    releaseReservation(poolName, id, value);
+                }
+            });
+
     private CdbSubscription sub = null;
-    private CdbSession wsess, isess;
+    private CdbSession wsess, isess, ssess;
+
+    private PoolLoader<Pool> pools =
+        new PoolLoader<Pool>("id-allocator", PoolLoader.WORKERS);
+
+    /* Process the allocation requests of each pool. */
+    private PoolWorkers workers =
+        new PoolWorkers("id-allocator", PoolWorkers.WORKERS);
+
+    /* Runs the request processing of each subscription notification. */
+    private ExecutorService requests = Executors.newSingleThreadExecutor();
+
+    /* Acknowledged notifications waiting to be processed. */
+    private Batcher<Request> batcher = new Batcher<Request>();
+
+    /* Requests acknowledged to CDB but not processed yet. */
+    private IntentLog<Request> intents =
+        new IntentLog<Request>(String.format("/%s:%s/%s",
+                                             idAllocatorOper.prefix,
+                                             idAllocatorOper._id_allocator_,
+                                             idAllocatorOper._intent_),
+                               new RequestCodec());
+
+    /* Pools holding a sync allocation, per allocation id. */
+    private SyncIndex syncIndex = new SyncIndex();
 
-    private Set<Pool> pools = new HashSet<Pool>();
+    /* Responses waiting for their pools to be written, see commit(). */
+    private PendingResponses<Response> responses =
+        new PendingResponses<Response>();
 
     public IdAllocator() {}
 
@@ -104,6 +179,10 @@ public class IdAllocator implements ApplicationComponent {
               qualifier="id-allocator-reactive-fm-loop-iter")
     private Cdb icdb;
 
+    @Resource(type=ResourceType.CDB, scope=Scope.INSTANCE,
+              qualifier="id-allocator-reactive-fm-loop-intent")
+    private Cdb scdb;
+
     @Resource(type=ResourceType.MAAPI, scope=Scope.INSTANCE,
               qualifier="id-alloc-reactive-fm-idallocator-m")
     private Maapi maapi;
@@ -111,12 +190,12 @@ public class IdAllocator implements ApplicationComponent {
     private int tid;
     private int alloc_subid, range_subid,
         exclude_subid, pool_subid,
-        alarms_enabled_subid, alarms_threshold_subid;
+        alarms_enabled_subid, alarms_threshold_subid, storage_subid;
 
     private NavuList idpool;
 
     /* Used as a memory variable to find out when a node has become master. */
-    private boolean isMaster = true;
+    private volatile boolean isMaster = true;
 
     public void init() throws Exception {
         try {
@@ -124,6 +203,12 @@ public class IdAllocator implements ApplicationComponent {
                 EnumSet.<CdbLockType>of(CdbLockType.LOCK_REQUEST,
                                         CdbLockType.LOCK_WAIT);
             wsess = wcdb.startSession(CdbDBType.CDB_OPERATIONAL, flags);
+
+            /*
+             * Oper session of the subscriber thread, used while the
+             * request thread may be writing with wsess.
+             */
+            ssess = scdb.startSession(CdbDBType.CDB_OPERATIONAL, flags);
             /*
              * System session, either we must pick up the NB username through
              * the fastmap data, or we must have a dedicated user that is
@@ -171,6 +256,12 @@ public class IdAllocator implements ApplicationComponent {
                      idAllocator._id_pool_, idAllocator._alarms_,
                      idAllocator._low_threshold_alarm_));
 
+            storage_subid = sub.subscribe(
+                     2, new resourceAllocator(),
+                     String.format("/%s:%s/%s/%s",
+                     resourceAllocator.prefix,resourceAllocator._resource_pools_,
+                     idAllocator._id_pool_, idAllocator._storage_));
+
             pool_subid = sub.subscribe(
                      1, new resourceAllocator(),
                      String.format("/%s:%s/%s",
@@ -186,6 +277,7 @@ public class IdAllocator implements ApplicationComponent {
              */
             LOGGER.info("Setting up state");
             loadState();
+            running = this;
         } catch (Exception e) {
             LOGGER.error("init error", e);
             throw(e);
@@ -229,6 +321,8 @@ public class IdAllocator implements ApplicationComponent {
                     /* Remember new isMaster. */
                     isMaster = updatedIsMaster;
                     if (!updatedIsMaster) {
+                        /* Only the master keeps its results current. */
+                        results.clear();
                         /* This node is not the master node, it should sync. */
                         sub.sync(CdbSubscriptionSyncType.DONE_PRIORITY);
                         continue;
@@ -238,13 +332,16 @@ public class IdAllocator implements ApplicationComponent {
                 LOGGER.error("Failed reading HA mode:", e);
             }
 
-            ExecutorService executor =
-                Executors.newSingleThreadExecutor();
+            Future<?> processing = null;
 
             try {
+                /*
+                 * Running cannot change until we sync the subscription,
+                 * so the reads below need no lock, and other readers
+                 * are not held up while we iterate.
+                 */
                 isess = icdb.startSession(CdbDBType.CDB_RUNNING,
-                                          EnumSet.of(CdbLockType.LOCK_SESSION,
-                                                     CdbLockType.LOCK_WAIT));
+                                          EnumSet.noneOf(CdbLockType.class));
 
                 ArrayList<Request> reqs = new ArrayList<Request>();
                 EnumSet<DiffIterateFlags> enumSet =
@@ -269,6 +366,8 @@ public class IdAllocator implements ApplicationComponent {
                         subType = Type.ALARMS_ENABLED;
                     } else if (points[i] == alarms_threshold_subid) {
                         subType = Type.ALARMS_THRESHOLD;
+                    } else if (points[i] == storage_subid) {
+                        subType = Type.STORAGE;
                     }
                     try {
                         sub.diffIterate(points[i], new Iter(sub, subType), enumSet, reqs);
@@ -294,7 +393,31 @@ public class IdAllocator implements ApplicationComponent {
                 ArrayList<Pool> modifiedPools = new ArrayList<Pool>();
                 RequestThread IterWorkItems = new RequestThread(reqs, wsess);
 
-                executor.execute(IterWorkItems);
+                long seq = -1L;
+                if (IntentLog.EARLY_ACK && !reqs.isEmpty()) {
+                    try {
+                        seq = intents.append(ssess, reqs);
+                    } catch (Exception e) {
+                        LOGGER.error("Failed to log requests, processing" +
+                                     " them before syncing", e);
+                    }
+                }
+
+                if (seq == -1L) {
+                    processing = requests.submit(IterWorkItems);
+                } else {
+                    /*
+                     * The requests are in the intent log, let CDB go
+                     * on and process them in the background, together
+                     * with those of the notifications around it.
+                     */
+                    batcher.add(seq, reqs);
+                    requests.submit(new Runnable() {
+                            public void run() {
+                                processBatch();
+                            }
+                        });
+                }
 
             } catch (Exception e) {
                 LOGGER.error("", e);
@@ -304,16 +427,20 @@ public class IdAllocator implements ApplicationComponent {
 
 
             try {
-                executor.shutdown();
                 /*
                  * We need to wait for a while, otherwise the sync
                  * lock might be released before we have updated the
                  * resource pool status.
                 */
-                if (!executor.awaitTermination(300000, TimeUnit.MILLISECONDS)) {
-                    LOGGER.warn("Timeout waiting for ip address pool" +
-                                " update!");
-                    executor.shutdownNow();
+                if (processing != null) {
+                    try {
+                        processing.get(300000, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        LOGGER.warn("Timeout waiting for id pool update!");
+                        processing.cancel(true);
+                    } catch (ExecutionException e) {
+                        LOGGER.error("", e.getCause());
+                    }
                 }
 
                 /*
@@ -340,7 +467,13 @@ public class IdAllocator implements ApplicationComponent {
                                     UnknownHostException,
                                     ConfException,
                                     IOException {
-        pools = new HashSet<Pool>();
+        pools.shutdown();
+        pools = new PoolLoader<Pool>("id-allocator", PoolLoader.WORKERS);
+        syncIndex = new SyncIndex();
+        responses = new PendingResponses<Response>();
+        results.clear();
+        /* Reserved ids were taken from the pools we just dropped. */
+        reservations.clear();
 
         /* Read existing config and create existing pools. */
         NavuContext context = new NavuContext(maapi, tid);
@@ -351,43 +484,108 @@ public class IdAllocator implements ApplicationComponent {
                            resourceAllocator._resource_pools_);
         idpool = resources.list(idAllocator.prefix, idAllocator._id_pool_);
 
-        /* Create id pools. */
+        /*
+         * Find all allocations without a response in one query,
+         * grouped by pool. Only pools with pending allocations are
+         * waited for, the others keep loading in the background.
+         */
+        Map<String, List<String>> pending =
+            new LinkedHashMap<String, List<String>>();
+        Map<String, Takeovers> takeovers = new HashMap<String, Takeovers>();
+        try {
+            for (String[] alloc : queryAllocations(String.format(
+                     "not(%s:%s/%s:%s) and not(%s:%s/%s:%s)",
+                     idAllocator.prefix, idAllocator._response_,
+                     idAllocator.prefix, idAllocator._id_,
+                     idAllocator.prefix, idAllocator._response_,
+                     idAllocator.prefix, idAllocator._error_),
+                     "request/id", "request/sync",
+                     "request/block-size", "request/block-alignment")) {
+                List<String> ids = pending.get(alloc[0]);
+                if (ids == null) {
+                    ids = new ArrayList<String>();
+                    pending.put(alloc[0], ids);
+                }
+                ids.add(alloc[1]);
+
+                /* What idAllocate() writes for a reservation. */
+                if (!isEmpty(alloc[2]) && !"true".equals(alloc[3]) &&
+                    leafValue(alloc[4], 1L) == 1L &&
+                    leafValue(alloc[5], 1L) == 1L) {
+                    takeoversOf(takeovers, alloc[0]).requested(
+                        alloc[1], Long.parseLong(alloc[2]));
+                }
+            }
+
+            /*
+             * The ids answered in each pool. Any other id allocated
+             * in the pool is settled when the pool is loaded.
+             */
+            for (String[] alloc : queryAllocations(String.format(
+                     "%s:%s/%s:%s",
+                     idAllocator.prefix, idAllocator._response_,
+                     idAllocator.prefix, idAllocator._id_),
+                     "response/id", "response/block-size")) {
+                takeoversOf(takeovers, alloc[0]).answered(
+                    Long.parseLong(alloc[2]), leafValue(alloc[3], 1L));
+            }
+        } catch (Exception e) {
+            LOGGER.error("Could not read allocations", e);
+            takeovers = null;
+        }
+
+        /*
+         * Start loading the id pools. They are loaded in the
+         * background, a pool that is needed before then is loaded
+         * right away.
+         */
         for(NavuContainer pool : idpool.elements()) {
-            createPool(pool);
+            createPool(pool, takeovers);
         }
 
         Set<ToRedeploy> init_redeps = new HashSet<ToRedeploy>();
 
         try {
             LOGGER.debug(String.format("pool size = %d", pools.size()));
-            for(Pool pool : pools) {
-                NavuList allocList =
-                    (NavuList) idpool.getNavuNode(new ConfPath(pool.path+"/"+
-                                                  idAllocator._allocation_));
-                NavuContainer idPool =
-                    resources.list(idAllocator.prefix, idAllocator._id_pool_).
-                    elem(pool.idPool.getName());
 
-                for(NavuContainer alloc : allocList.elements()) {
+            /*
+             * Index the sync allocations of all pools before any pending
+             * allocation is processed.
+             */
+            for (String[] alloc : queryAllocations(String.format(
+                     "%s:%s/%s:%s = 'true'",
+                     idAllocator.prefix, idAllocator._request_,
+                     idAllocator.prefix, idAllocator._sync_))) {
+                syncIndex.add(alloc[1], alloc[0]);
+            }
+
+            /*
+             * Requests that were acknowledged to CDB but never
+             * processed, in the order they came in. The allocations
+             * among them are answered here, not in the replay below.
+             */
+            replayIntents();
+
+            LOGGER.info(String.format("Replaying pending allocations" +
+                                      " in %d pools", pending.size()));
 
-                    ConfPath path = new ConfPath(alloc.getKeyPath());
+            for (Map.Entry<String, List<String>> entry : pending.entrySet()) {
+                Pool pool = pools.get(entry.getKey());
+                if (pool == null) {
+                    continue;
+                }
 
+                int n = 0;
+                for (String id : entry.getValue()) {
                     try {
-                        wsess.getCase(idAllocator._response_choice_,
-                                      path+"/"+idAllocator._response_);
-                    } catch (ConfException e) {
-                        /* No case set, continue. */
-                        Request req = new Request();
-                        req.path = path;
-                        req.key = alloc.getKey();
-                        req.pool = idPool.getKey();
-                        req.val = null;
-                        req.type = Type.ALLOC;
-                        try {
-                            allocateId(pool, init_redeps, req);
-                        } catch (Exception ex) {
-                            LOGGER.error("Cannot allocate id", ex);
-                        }
+                        allocateId(pool, pendingRequest(pool, id));
+                    } catch (Exception ex) {
+                        LOGGER.error("Cannot allocate id", ex);
+                    }
+
+                    /* Write large replays in batches. */
+                    if (++n % REPLAY_BATCH == 0) {
+                        commit(init_redeps);
                     }
                 }
             }
@@ -395,56 +593,220 @@ public class IdAllocator implements ApplicationComponent {
             LOGGER.error("Could not load state", e);
         }
 
-        /* Invoke redeploy. */
-        for (ToRedeploy rep : init_redeps) {
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug(String.format("Redeploying service %s as user %s",
-                                           rep.getAllocatingService(), rep.getUsername()));
+        commit(init_redeps);
+
+        /* Redeploy all services of the replayed allocations at once. */
+        if (!init_redeps.isEmpty()) {
+            LOGGER.debug(String.format("Redeploying %d services",
+                                       init_redeps.size()));
+            NSOUtil.redeploy(init_redeps);
+        }
+    }
+
+    private static Takeovers takeoversOf(Map<String, Takeovers> takeovers,
+                                         String poolName) {
+        Takeovers t = takeovers.get(poolName);
+        if (t == null) {
+            t = new Takeovers();
+            takeovers.put(poolName, t);
+        }
+        return t;
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.length() == 0;
+    }
+
+    /* A numeric leaf read by queryAllocations(), dflt if not set. */
+    private static long leafValue(String value, long dflt) {
+        return isEmpty(value) ? dflt : Long.parseLong(value);
+    }
+
+    private void replayIntents() throws Exception {
+        SortedMap<Long, List<Request>> pending = intents.recover(wsess);
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        LOGGER.info(String.format("Replaying %d acknowledged notifications",
+                                  pending.size()));
+        Batcher.Batch<Request> batch = new Batcher.Batch<Request>();
+        for (Map.Entry<Long, List<Request>> entry : pending.entrySet()) {
+            batch.seqs.add(entry.getKey());
+            batch.reqs.addAll(entry.getValue());
+            if (batch.reqs.size() >= Batcher.SIZE) {
+                processBatch(batch);
+                batch = new Batcher.Batch<Request>();
             }
-            NSOUtil.redeploy(rep.getAllocatingService(), rep.getUsername());
+        }
+        if (!batch.seqs.isEmpty()) {
+            processBatch(batch);
         }
     }
 
-    private String getOwner(String path) throws Exception {
-        if (maapi.exists(tid,
-                         String.format("%s/%s", path, idAllocator._allocating_service_))) {
-            ConfObjectRef v =
-                (ConfObjectRef) maapi.
-                getElem(tid,
-                        String.format("%s/%s", path, idAllocator._allocating_service_));
+    /*
+     * Process the acknowledged notifications that are queued, as one
+     * batch.
+     */
+    private void processBatch() {
+        try {
+            Batcher.Batch<Request> batch = batcher.take();
+            if (batch != null) {
+                processBatch(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOGGER.error("Failed to remove intent", e);
+        }
+    }
 
-            return new ConfPath(v.getElems()).toString();
-        } else {
-            return "";
+    /*
+     * Process the requests of a batch with one write of the pools and
+     * one redeploy, then remove their intents.
+     */
+    private void processBatch(Batcher.Batch<Request> batch) throws Exception {
+        new RequestThread(new ArrayList<Request>(batch.reqs), wsess).run();
+        for (long seq : batch.seqs) {
+            intents.done(wsess, seq);
         }
     }
 
-    private String getUsername(String path) throws Exception {
-        if (maapi.exists(tid,
-                String.format("%s/%s", path, idAllocator._username_))) {
-           ConfBuf v =
-               (ConfBuf) maapi.
-               getElem(tid,
-                       String.format("%s/%s", path, idAllocator._username_));
+    /*
+     * Wait for the requests already handed to the request thread.
+     */
+    private void awaitRequests() throws Exception {
+        requests.submit(new Runnable() {
+                public void run() {
+                    ;
+                }
+            }).get();
+    }
 
-           return v.toString();
-        } else {
-           return "";
+    /*
+     * All allocations of all id pools that match the XPath predicate
+     * pred, as {pool name, allocation id} followed by the leaves
+     * given by fields, relative to the allocation. A leaf that is not
+     * set is empty. Read with a single query instead of visiting each
+     * allocation.
+     */
+    private List<String[]> queryAllocations(String pred, String... fields)
+        throws Exception {
+        String expr = String.format("/%s:%s/%s:%s/%s:%s[%s]",
+                                    resourceAllocator.prefix,
+                                    resourceAllocator._resource_pools_,
+                                    idAllocator.prefix,
+                                    idAllocator._id_pool_,
+                                    idAllocator.prefix,
+                                    idAllocator._allocation_,
+                                    pred);
+        List<String> select = new ArrayList<String>();
+        select.add("../name");
+        select.add("id");
+        select.addAll(Arrays.asList(fields));
+
+        List<String[]> res = new ArrayList<String[]>();
+        QueryResult<ResultTypeString> qr =
+            new QueryResult<ResultTypeString>(maapi, tid, expr, "/",
+                                              PoolLoader.CHUNK, 1,
+                                              ResultTypeString.class,
+                                              select);
+        try {
+            for (QueryResult.Entry<ResultTypeString> entry : qr) {
+                List<ResultTypeString> vals = entry.value();
+                String[] row = new String[vals.size()];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = vals.get(i).stringValue();
+                }
+                res.add(row);
+            }
+        } finally {
+            qr.stop();
         }
+        return res;
+    }
+
+    /*
+     * The CDB session for writing responses: the session of the
+     * request worker this runs on, or the subscriber's own session.
+     */
+    private CdbSession wsess() {
+        return workers.session(wsess);
+    }
+
+    /*
+     * The leaves read from an allocation entry, in the order of
+     * requestData().
+     */
+    private static ConfXMLParam[] requestParams() {
+        return new ConfXMLParam[] {
+            new ConfXMLParamLeaf(idAllocator.hash,
+                                 idAllocator._allocating_service),
+            new ConfXMLParamLeaf(idAllocator.hash, idAllocator._username),
+            new ConfXMLParamStart(idAllocator.hash, idAllocator._request),
+            new ConfXMLParamLeaf(idAllocator.hash, idAllocator._sync),
+            new ConfXMLParamLeaf(idAllocator.hash, idAllocator._id),
+            new ConfXMLParamLeaf(idAllocator.hash, idAllocator._block_size),
+            new ConfXMLParamLeaf(idAllocator.hash,
+                                 idAllocator._block_alignment),
+            new ConfXMLParamStart(idAllocator.hash, idAllocator._method),
+            new ConfXMLParamLeaf(idAllocator.hash, idAllocator._roundrobin),
+            new ConfXMLParamStop(idAllocator.hash, idAllocator._method),
+            new ConfXMLParamStop(idAllocator.hash, idAllocator._request)
+        };
+    }
+
+    private static RequestData requestData(ConfXMLParam[] vals)
+        throws Exception {
+        ConfObject owner = NSOUtil.getValue(vals[0]);
+        ConfObject username = NSOUtil.getValue(vals[1]);
+        ConfObject sync = NSOUtil.getValue(vals[3]);
+        ConfObject id = NSOUtil.getValue(vals[4]);
+        ConfObject blockSize = NSOUtil.getValue(vals[5]);
+        ConfObject blockAlignment = NSOUtil.getValue(vals[6]);
+
+        return new RequestData(
+            owner == null ?
+                "" : new ConfPath(((ConfObjectRef) owner).getElems()).toString(),
+            username == null ? "" : username.toString(),
+            sync != null && ((ConfBool) sync).booleanValue(),
+            id == null ? -1L : ((ConfUInt32) id).longValue(),
+            blockSize == null ? 1L : ((ConfUInt32) blockSize).longValue(),
+            blockAlignment == null ?
+                1L : ((ConfUInt32) blockAlignment).longValue(),
+            NSOUtil.exists(vals[8]) ?
+                idAllocator._roundrobin_ : idAllocator._firstfree_);
+    }
+
+    /* Read the request of an allocation entry in one call. */
+    private static RequestData readRequest(CdbSession sess, String path)
+        throws Exception {
+        return requestData(sess.getValues(requestParams(), path));
+    }
+
+    private RequestData readRequest(String path) throws Exception {
+        return requestData(maapi.getValues(tid, requestParams(), path));
     }
 
     private long getAllocatedId(String path) throws Exception {
+        /* Answered in this batch, not written yet. */
+        String[] key = allocationKey(path);
+        Response pending = responses.get(key[0], key[1]);
+        if (pending != null) {
+            return pending.error == null ? pending.id : -1L;
+        }
+
         /* Check if it has allocation. */
         try {
             String selectedCase =
-                wsess.getCase(idAllocator._response_choice_,
+                wsess().getCase(idAllocator._response_choice_,
                     String.format("%s/%s", path, idAllocator._response_)).toString();
 
             LOGGER.debug(String.format("Found selected case: %s", selectedCase));
 
             if ("idalloc:ok".equals(selectedCase)) {
                 long allocatedId =
-                    ((ConfUInt32) wsess.getElem(
+                    ((ConfUInt32) wsess().getElem(
                                String.format("%s/%s/%s",
                                path,
                                idAllocator._response_,
@@ -460,44 +822,30 @@ public class IdAllocator implements ApplicationComponent {
         }
     }
 
-    private boolean getSync(String path) throws Exception {
-        return ((ConfBool) maapi.getElem(
-                    tid, String.format("%s/%s/%s",
-                                       path,
-                                       idAllocator._request_,
-                                       idAllocator._sync_))).booleanValue();
-    }
-
-    private long getRequestId(String path) throws Exception {
-        String requestId = String.format("%s/%s/%s",
+    /* Size of an allocated block, 1 for a single id. */
+    private long getAllocatedBlockSize(CdbSession sess, String path)
+        throws Exception {
+        String blockSize = String.format("%s/%s/%s",
                                          path,
-                                         idAllocator._request_,
-                                         idAllocator._id_);
-        if (maapi.exists(tid, requestId)) {
-            return ((ConfUInt32) maapi.getElem(tid, requestId)).longValue();
+                                         idAllocator._response_,
+                                         idAllocator._block_size_);
+        if (sess.exists(blockSize)) {
+            return ((ConfUInt32) sess.getElem(blockSize)).longValue();
         } else {
-            return -1L;
+            return 1L;
         }
     }
 
-
-    private String getRequestMethod(String path) throws Exception {
-        return (maapi.getCase(
-                                  tid, idAllocator._method_,
-                                  String.format("%s/%s/%s",
-                                                path,
-                                                idAllocator._request_,
-                                                idAllocator._method_)).getTag());
-
-    }
-
     private void cleanupResponse(String path) throws Exception {
-        wsess.setCase(idAllocator._response_choice_,
+        String[] key = allocationKey(path);
+        responses.remove(key[0], key[1]);
+        unpublish(path);
+        wsess().setCase(idAllocator._response_choice_,
                       null,
                       String.format("%s/%s",
                       path, idAllocator._response_));
         try {
-            wsess.delete(String.format("%s/%s/%s",
+            wsess().delete(String.format("%s/%s/%s",
                                        path,
                                        idAllocator._response_,
                                        idAllocator._id_));
@@ -507,7 +855,17 @@ public class IdAllocator implements ApplicationComponent {
         }
 
         try {
-            wsess.delete(path+"/"+idAllocator._response_+"/"+
+            wsess().delete(String.format("%s/%s/%s",
+                                       path,
+                                       idAllocator._response_,
+                                       idAllocator._block_size_));
+        } catch (CdbException e) {
+            /* Ignore because we might not have a _block_size_ set. */
+            ;
+        }
+
+        try {
+            wsess().delete(path+"/"+idAllocator._response_+"/"+
                          idAllocator._error_);
         } catch (CdbException e) {
             /* Ignore because we might not have an _error_ */
@@ -515,66 +873,130 @@ public class IdAllocator implements ApplicationComponent {
         }
     }
 
-    private void reportSuccess(long id, String path, Set<ToRedeploy> redeps)
+    /* The pool name and allocation id of an allocation path. */
+    private static String[] allocationKey(String path) throws ConfException {
+        ConfObject[] kp = new ConfPath(path).getKP();
+        return new String[] {((ConfKey) kp[2]).elementAt(0).toString(),
+                             ((ConfKey) kp[0]).elementAt(0).toString()};
+    }
+
+    /* Make a response written to CDB visible to the read APIs. */
+    private static void publish(String path, ConfValue id, ConfValue error)
+        throws ConfException {
+        String[] key = allocationKey(path);
+        AllocStatus res = new AllocStatus();
+        res.id = id;
+        res.error = error;
+        results.put(key[0], key[1], res);
+    }
+
+    private static void unpublish(String path) throws ConfException {
+        String[] key = allocationKey(path);
+        results.remove(key[0], key[1]);
+    }
+
+    private void reportSuccess(long id, String path, RequestData data)
         throws Exception {
-        LOGGER.debug(String.format("SET: %s/%s/%s -> %d",
-                                   path, idAllocator._response_, idAllocator._id_, id));
-
-        wsess.setElem(new ConfUInt32(id),
-                      String.format("%s/%s/%s",
-                                    path,
-                                    idAllocator._response_,
-                                    idAllocator._id_));
-        /* We need to setCase after setElem due to a bug in NCS. */
-        wsess.setCase(idAllocator._response_choice_,
-                      idAllocator._ok_,
-                      String.format("%s/%s", path, idAllocator._response_));
-        String owner = getOwner(path);
-        String username = getUsername(path);
-        if (owner != "") {
-            /*
-             * Redeploy the service that consumes this
-             * data, runs in separate thread
-             */
-            ToRedeploy t = new ToRedeploy(owner, username);
-            if (!redeps.contains(owner)) {
-                LOGGER.debug(String.format("Adding %s to redeploy list", owner));
-                redeps.add(t);
-            }
-        }
+        reportSuccess(id, 0L, path, data, true);
     }
 
-    private void reportError(String error, String path,
-                             Set<ToRedeploy> redeps)
+    /*
+     * Answer a request with id, or with a block of blockSize ids
+     * from id, 0 if it is not a block request. redeploy is false if
+     * the owner knows the id already, it is then only redeployed for
+     * other answers it was held back for. The response is written by
+     * commit().
+     */
+    private void reportSuccess(long id, long blockSize, String path,
+                               RequestData data, boolean redeploy)
+        throws Exception {
+        Response r = new Response();
+        r.id = id;
+        r.blockSize = blockSize;
+        r.redeploy = redeploy;
+        hold(path, data, r);
+    }
+
+    private void reportError(String error, String path, RequestData data)
+        throws Exception {
+        Response r = new Response();
+        r.error = error;
+        hold(path, data, r);
+    }
+
+    private void hold(String path, RequestData data, Response r)
+        throws ConfException {
+        String[] key = allocationKey(path);
+        r.path = path;
+        r.allocationId = key[1];
+        r.data = data;
+        responses.put(key[0], key[1], r);
+    }
+
+    /*
+     * Write a response held back by reportSuccess() or reportError()
+     * and add its owner to redeps if it is to be redeployed.
+     */
+    private void writeResponse(Response r, Set<ToRedeploy> redeps)
         throws Exception {
-        LOGGER.debug(String.format("SET: %s/response/error -> %s", path, error));
-        wsess.setElem(new ConfBuf(error),
-                      String.format("%s/%s/%s" , path,
-                                    idAllocator._response_,
-                                    idAllocator._error_));
-        /*  We need to setCase after setElem due to a bug in NCS. */
-        wsess.setCase(idAllocator._response_choice_,
-                      idAllocator._error_,
-                      String.format("%s/%s", path, idAllocator._response_));
-
-        String owner    = getOwner(path);
-        String username = getUsername(path);
+        String path = r.path;
+        if (r.error == null) {
+            LOGGER.debug(String.format("SET: %s/%s/%s -> %d",
+                                       path, idAllocator._response_,
+                                       idAllocator._id_, r.id));
+            if (r.blockSize > 0) {
+                /* The size goes first, the case is set last. */
+                wsess().setElem(new ConfUInt32(r.blockSize),
+                              String.format("%s/%s/%s",
+                                            path,
+                                            idAllocator._response_,
+                                            idAllocator._block_size_));
+            }
+            wsess().setElem(new ConfUInt32(r.id),
+                          String.format("%s/%s/%s",
+                                        path,
+                                        idAllocator._response_,
+                                        idAllocator._id_));
+            /* We need to setCase after setElem due to a bug in NCS. */
+            wsess().setCase(idAllocator._response_choice_,
+                          idAllocator._ok_,
+                          String.format("%s/%s", path, idAllocator._response_));
+            publish(path, new ConfUInt32(r.id), null);
+        } else {
+            LOGGER.debug(String.format("SET: %s/response/error -> %s",
+                                       path, r.error));
+            wsess().setElem(new ConfBuf(r.error),
+                          String.format("%s/%s/%s" , path,
+                                        idAllocator._response_,
+                                        idAllocator._error_));
+            /*  We need to setCase after setElem due to a bug in NCS. */
+            wsess().setCase(idAllocator._response_choice_,
+                          idAllocator._error_,
+                          String.format("%s/%s", path, idAllocator._response_));
+            publish(path, null, new ConfBuf(r.error));
+        }
+
+        String owner    = r.data.owner;
+        String username = r.data.username;
 
         if (owner != "") {
             /*
              * Redeploy the service that consumes this
-             * data, runs in separate thread
+             * data, runs in separate thread, once none of
+             * its other allocations are outstanding.
              */
             ToRedeploy t = new ToRedeploy(owner, username);
-            if (!redeps.contains(owner)) {
+            if (OwnerTracker.getInstance().answered(t, path, r.redeploy) &&
+                !redeps.contains(t)) {
                 LOGGER.debug(String.format("Adding %s to redeploy list", owner));
                 redeps.add(t);
             }
         }
     }
 
-    private void allocateOneId(Pool p, Set<ToRedeploy> redeps, Request req,
-                               long requestedId, String requestMethod)
+    private void allocateOneId(Pool p, Request req,
+                               RequestData data, long requestedId,
+                               String requestMethod)
         throws Exception, NavuException {
         String basePath = String.format("/%s:%s/%s:%s%s/%s%s",
                                         resourceAllocator.prefix,
@@ -587,22 +1009,77 @@ public class IdAllocator implements ApplicationComponent {
         try {
             Allocation a;
             LOGGER.debug(String.format("Trying to allocate %d", requestedId));
-            String owner = getOwner(basePath);
             if (requestedId == -1) {
-                a = p.idPool.allocate(owner, requestMethod);
+                a = p.idPool.allocate(data.owner, requestMethod);
             } else {
-                a = p.idPool.allocate(owner, requestedId);
+                a = p.idPool.allocate(data.owner, requestedId);
             }
 
             /* Write the result and redeploy */
             long id = a.getAllocated();
-            reportSuccess(id, basePath, redeps);
+            reportSuccess(id, basePath, data);
         } catch (AllocationException ex) {
-            reportError(ex.toString(), basePath, redeps);
+            reportError(ex.toString(), basePath, data);
+        }
+    }
+
+    private void allocateBlock(Pool p, String basePath, RequestData data,
+                               long requestedId, long blockSize,
+                               long blockAlignment)
+        throws Exception {
+        try {
+            Allocation a;
+            LOGGER.debug(String.format("Trying to allocate block of %d" +
+                                       " aligned to %d", blockSize,
+                                       blockAlignment));
+            if (requestedId == -1) {
+                a = p.idPool.allocateBlock(data.owner, blockSize,
+                                           blockAlignment);
+            } else {
+                a = p.idPool.allocateBlock(data.owner, requestedId, blockSize,
+                                           blockAlignment);
+            }
+
+            reportSuccess(a.getAllocated(), blockSize, basePath, data, true);
+        } catch (AllocationException ex) {
+            reportError(ex.toString(), basePath, data);
+        }
+    }
+
+    private void allocateId(Pool p, Request req)
+        throws Exception, NavuException {
+        allocateId(p, syncGroup(p, req.key.elementAt(0).toString()), req);
+    }
+
+    /*
+     * The pools of the sync group of an allocation by name, including
+     * p, or null if the allocation is not synchronized. The index is
+     * updated while notifications are iterated, so it is read once per
+     * request and the group passed on from there.
+     */
+    private SortedMap<String, Pool> syncGroup(Pool p, String allocationId) {
+        String poolName = p.idPool.getName();
+        if (!syncIndex.contains(allocationId, poolName)) {
+            return null;
         }
+
+        SortedMap<String, Pool> group = new TreeMap<String, Pool>();
+        group.put(poolName, p);
+        for (String name : syncIndex.get(allocationId)) {
+            Pool pool = pools.get(name);
+            if (pool != null) {
+                group.put(name, pool);
+            }
+        }
+        return group;
     }
 
-    private void allocateId(Pool p, Set<ToRedeploy> redeps, Request req)
+    /*
+     * Allocate for a request of pool p. group is the sync group of the
+     * allocation, see syncGroup(), and the only pools touched besides p.
+     */
+    private void allocateId(Pool p, SortedMap<String, Pool> group,
+                            Request req)
         throws Exception, NavuException {
         String reqPath = req.path.toString();
         String basePath = String.format("/%s:%s/%s:%s%s/%s%s",
@@ -613,17 +1090,16 @@ public class IdAllocator implements ApplicationComponent {
                                         req.pool.toString(),
                                         idAllocator._allocation_,
                                         req.key.toString());
-        boolean sync = false;
-        try {
-            sync = getSync(basePath);
-        } catch (Exception e) {
-            //
+        String allocationId = req.key.elementAt(0).toString();
+        if (responses.get(p.idPool.getName(), allocationId) != null) {
+            /* Answered earlier in this batch. */
+            return;
         }
-        if (!sync) {
+        if (group == null) {
             try {
                 LOGGER.debug(String.format("Is this already processed? %s/%s",
                                            basePath, idAllocator._response_ ));
-                wsess.getCase(
+                wsess().getCase(
                     idAllocator._response_choice_,
                     String.format("%s/%s", basePath, idAllocator._response_));
                 /* Already processed, return. */
@@ -632,9 +1108,44 @@ public class IdAllocator implements ApplicationComponent {
                 /* No case set, continue */
                 ;
             }
-            long requestedId = getRequestId(basePath);
-            String requestMethod = getRequestMethod(basePath);
-            allocateOneId(p, redeps, req, requestedId, requestMethod);
+            RequestData data = req.data != null ?
+                req.data : readRequest(basePath);
+
+            Long reserved = reservations.take(p.idPool.getName(),
+                                              allocationId, data.owner);
+            if (reserved != null && reserved == data.id) {
+                /*
+                 * Allocated by idAllocate() in the transaction that
+                 * made the request, the service has the id already.
+                 * It is only redeployed if it was held back for
+                 * other allocations.
+                 */
+                reportSuccess(reserved, 0L, basePath, data, false);
+                return;
+            } else if (reserved != null) {
+                /* The request changed since, start over. */
+                p.idPool.release(reserved);
+            }
+
+            Long taken = p.takeovers.remove(allocationId);
+            if (taken != null && taken == data.id) {
+                /*
+                 * Found allocated for this request when the pool was
+                 * loaded, see Takeovers. It may never have been
+                 * answered, so the owner is redeployed.
+                 */
+                reportSuccess(taken, basePath, data);
+                return;
+            } else if (taken != null) {
+                p.idPool.release(taken);
+            }
+
+            if (data.blockSize > 1 || data.blockAlignment > 1) {
+                allocateBlock(p, basePath, data, data.id,
+                              data.blockSize, data.blockAlignment);
+            } else {
+                allocateOneId(p, req, data, data.id, data.method);
+            }
         } else {
 
             /*
@@ -646,7 +1157,7 @@ public class IdAllocator implements ApplicationComponent {
             try {
                 LOGGER.debug(String.format("Is this already processed? %s/%s",
                                            basePath, idAllocator._response_ ));
-                wsess.getCase(
+                wsess().getCase(
                     idAllocator._response_choice_,
                     String.format("%s/%s", basePath, idAllocator._response_));
                 /* Already processed, return. */
@@ -656,6 +1167,14 @@ public class IdAllocator implements ApplicationComponent {
                 ;
             }
 
+            RequestData data = req.data != null ?
+                req.data : readRequest(basePath);
+            if (data.blockSize > 1 || data.blockAlignment > 1) {
+                reportError("block requests cannot be synchronized",
+                            basePath, data);
+                return;
+            }
+
             /*
              * We need to see if there already is an allocation with the
              * requested id, in which case we should requests the same id in
@@ -664,18 +1183,14 @@ public class IdAllocator implements ApplicationComponent {
             Set<SyncGroup> syncGroups = new HashSet<SyncGroup>();
 
             long allocatedId = -1L;
-            long requestedId = getRequestId(basePath);
+            long requestedId = data.id;
 
             /* We use the default behavior: */
             String requestMethod = idAllocator._firstfree_;
 
-            String allocationId =
-                maapi.getElem(tid, String.format("%s/%s", basePath,
-                                                 idAllocator._id_)).toString();
-
-            syncGroups.add(new SyncGroup(p, basePath));
+            syncGroups.add(new SyncGroup(p, basePath, data));
 
-            for(Pool pool : pools) {
+            for(Pool pool : group.values()) {
                 if (pool == p) {
                     continue;
                 }
@@ -684,36 +1199,34 @@ public class IdAllocator implements ApplicationComponent {
                                             idAllocator._allocation_,
                                             allocationId);
                 try {
-                    if (maapi.exists(tid, path) && getSync(path) == true) {
-                        LOGGER.debug(String.format("Found sync pool node: %s",
-                                                   pool.path));
-                        syncGroups.add(new SyncGroup(pool, path));
+                    LOGGER.debug(String.format("Found sync pool node: %s",
+                                               pool.path));
+                    RequestData other = readRequest(path);
+                    syncGroups.add(new SyncGroup(pool, path, other));
 
-                        if (allocatedId == -1) {
-                            allocatedId = getAllocatedId(path);
-                        }
-
-                        if (requestedId == -1) {
-                            requestedId = getRequestId(path);
-                        } else if (getRequestId(path) != -1 &&
-                                 getRequestId(path) != requestedId) {
-                            /*
-                             * We cannot request two different ids in the
-                             * same group, throw an error
-                             */
-                            String err =
-                                "Conflicting id requests: Requested ID" +
-                                " does not match previous allocation";
-                            throw new AllocationException(err);
-                        }
+                    if (allocatedId == -1) {
+                        allocatedId = getAllocatedId(path);
+                    }
 
+                    if (requestedId == -1) {
+                        requestedId = other.id;
+                    } else if (other.id != -1 &&
+                             other.id != requestedId) {
                         /*
-                         * Get the request method
-                         * roundrobin or firstfree?
+                         * We cannot request two different ids in the
+                         * same group, throw an error
                          */
-                        requestMethod = getRequestMethod(path);
-
+                        String err =
+                            "Conflicting id requests: Requested ID" +
+                            " does not match previous allocation";
+                        throw new AllocationException(err);
                     }
+
+                    /*
+                     * Get the request method
+                     * roundrobin or firstfree?
+                     */
+                    requestMethod = other.method;
                 } catch (Exception e) {
                     LOGGER.info(String.format("No sync for path %s", path));
                 }
@@ -724,98 +1237,62 @@ public class IdAllocator implements ApplicationComponent {
              * 1. only one node in sync group - allocate as normal
              */
             if (syncGroups.size() == 1) {
-                allocateOneId(p, redeps, req, requestedId, requestMethod);
+                allocateOneId(p, req, data, requestedId,
+                              requestMethod);
             } else if (allocatedId != -1) {
             /*
              * 2. at least one node has allocation already - try to allocate
              *    same id for this entry
              */
-                allocateOneId(p, redeps, req, allocatedId, requestMethod);
+                allocateOneId(p, req, data, allocatedId,
+                              requestMethod);
             } else if (requestedId != -1) {
             /*
              * 3. at least one node has requested a specific id - try to
              *    allocate same id for this entry
              */
-                allocateOneId(p, redeps, req, requestedId, requestMethod);
+                allocateOneId(p, req, data, requestedId,
+                              requestMethod);
             } else {
             /*
-             * 4. no node has allocation - try finding one id that can be
-             *    allocated in all pools
-             *    The way we do this is by allocating an id from the pool
-             *    and then trying to allocate the same id in all pools:
-             *
-             *     - if this succeeds we are done
-             *     - if this fails, we save the allocated id in a Set and
-             *       attempts to allocate a new id:
-             *       - if this fails, we fail and release all allocations in Set
-             *       - if this succeeds, we try to allocate same id in all pools
-             *         - if this succeeds, we deallocate all failed allocations
-             *           and keep the successful one
-             *         - if it fails, we save the allocation in Set, and try a
-             *           new allocation
+             * 4. no node has allocation - find the lowest id that is
+             *    available in all pools of the group and allocate it
+             *    in each of them
              */
+                List<IDPool> groupPools = new ArrayList<IDPool>();
+                for(SyncGroup sg : syncGroups) {
+                    groupPools.add(sg.pool.idPool);
+                }
 
-                Set<Allocation> failedCandidates = new HashSet<Allocation>();
-
-                while(true) {
-                    try {
-                        Allocation a = p.idPool.allocate(
-                            getOwner(basePath));
-                        long id = a.getAllocated();
-
-                        Set<PoolAlloc> poolAllocs = new HashSet<PoolAlloc>();
-                        LOGGER.info(String.format("Checking if alloc-id %d"
-                                                  + " exists elsewhere", id));
-                        try {
-                            for(SyncGroup sg : syncGroups) {
-                                if (sg.pool == p) {
-                                    continue;
-                                }
-
-                                Allocation alloc =
-                                    sg.pool.idPool.allocate(getOwner(sg.path),
-                                                            id);
-
-                                poolAllocs.add(new PoolAlloc(sg.pool, alloc));
-                            }
-
-                            /* Success: release failed candidates. */
-                            for(Allocation fa : failedCandidates) {
-                                p.idPool.release(fa);
-                            }
-
-                            /* Report all successful allocations. */
-                            for(SyncGroup sg : syncGroups) {
-                                reportSuccess(id, sg.path, redeps);
-                            }
-
-                            break;
-
-                        } catch (AllocationException ex) {
-                            /* Failed, release all and try another. */
-                            for(PoolAlloc pa : poolAllocs) {
-                                pa.p.idPool.release(pa.a);
-                            }
+                long id = IDPool.lowestCommonAvailable(groupPools);
+                Set<PoolAlloc> poolAllocs = new HashSet<PoolAlloc>();
 
-                            failedCandidates.add(a);
-                        }
+                try {
+                    if (id == -1L) {
+                        throw new AllocationException(
+                            "no id available in all pools");
+                    }
 
-                    } catch (AllocationException ex) {
-                        /*
-                         * Failed, release all and report failure
-                         * release failed candidates
-                         */
-                        for(Allocation fa : failedCandidates) {
-                            p.idPool.release(fa);
-                        }
+                    LOGGER.debug(String.format("Allocating common id %d", id));
+                    for(SyncGroup sg : syncGroups) {
+                        Allocation alloc =
+                            sg.pool.idPool.allocate(sg.data.owner, id);
+                        poolAllocs.add(new PoolAlloc(sg.pool, alloc));
+                    }
 
-                        /* Report all failed. */
-                        for(SyncGroup sg : syncGroups) {
-                            reportError("sync allocation failed", sg.path,
-                                        redeps);
-                        }
+                    /* Report all successful allocations. */
+                    for(SyncGroup sg : syncGroups) {
+                        reportSuccess(id, sg.path, sg.data);
+                    }
+                } catch (AllocationException ex) {
+                    /* Failed, release all and report failure. */
+                    for(PoolAlloc pa : poolAllocs) {
+                        pa.p.idPool.release(pa.a);
+                    }
 
-                        break;
+                    for(SyncGroup sg : syncGroups) {
+                        reportError("sync allocation failed", sg.path,
+                                    sg.data);
                     }
                 }
             }
@@ -854,7 +1331,7 @@ public class IdAllocator implements ApplicationComponent {
             ConfKey idPoolKey = idPool.getKey();
             boolean caseOk = false;
             try {
-                ConfTag respCase = (ConfTag)this.wsess.getCase(
+                ConfTag respCase = (ConfTag)wsess().getCase(
                                             idAllocator._response_choice_,
                                             cdbAlloc);
                 caseOk = respCase.getTagHash() == idAllocator._ok;
@@ -865,26 +1342,34 @@ public class IdAllocator implements ApplicationComponent {
 
             if (caseOk) {
                 ConfPath okId = cdbAlloc.copyAppend(idAllocator._id_);
-                long id = ((ConfUInt32) this.wsess.getElem(okId)).longValue();
-                LOGGER.debug(String.format("Checking if %d is in range %s", id, range));
+                long id = ((ConfUInt32) wsess().getElem(okId)).longValue();
+                long size = getAllocatedBlockSize(
+                                wsess(), new ConfPath(alloc.getKeyPath()).toString());
+                long last = id + size - 1;
+                LOGGER.debug(String.format("Checking if %d-%d is in range %s",
+                                           id, last, range));
                 LOGGER.debug(String.format("Exclude is %s, range.contains: %s",
                                            exclude, range.contains(id)));
-                if (exclude && range.contains(id)) {
-                    LOGGER.debug(String.format("We need to reallocate %d", id));
-                    /* Needs to be reallocated */
-                    this.wsess.delete(okId);
-                    pool.idPool.release(id);
-                    Request r = new Request();
-                    r.path = new ConfPath(alloc.getKeyPath());
-                    r.pool = idPoolKey;
-                    r.key = allocationKey;
-                    reallocReqs.add(r);
-                    cleanupResponse(r.path.toString());
-                } else if (!exclude && !range.contains(id)) {
-                    /* needs to be reallocated */
+
+                /*
+                 * An allocation, or any id of a block, inside a new
+                 * exclude or outside a new range must be reallocated.
+                 */
+                boolean realloc;
+                if (exclude) {
+                    realloc = id <= range.getEnd() && range.getStart() <= last;
+                } else {
+                    realloc = !range.contains(id) || !range.contains(last);
+                }
+
+                if (realloc) {
                     LOGGER.debug(String.format("We need to reallocate %d", id));
-                    this.wsess.delete(okId);
-                    pool.idPool.release(id);
+                    wsess().delete(okId);
+                    if (size > 1) {
+                        pool.idPool.releaseBlock(id, size);
+                    } else {
+                        pool.idPool.release(id);
+                    }
                     Request r = new Request();
                     r.path = new ConfPath(alloc.getKeyPath());
                     r.pool = idPoolKey;
@@ -897,8 +1382,18 @@ public class IdAllocator implements ApplicationComponent {
     }
 
     public void finish() {
+        if (running == this) {
+            running = null;
+        }
+        pools.shutdown();
+        results.clear();
+        reservations.shutdown();
+        requests.shutdownNow();
+        workers.shutdown();
+
         try {
             wsess.endSession();
+            ssess.endSession();
         } catch (ClosedChannelException e) {
             /* Silence here, normal close (redeploy/reload package). */
             ;
@@ -909,6 +1404,7 @@ public class IdAllocator implements ApplicationComponent {
         try {
             safeclose(cdb);
             safeclose(wcdb);
+            safeclose(scdb);
             try {
                 maapi.finishTrans(tid);
             } catch (Throwable ignore) {
@@ -927,32 +1423,42 @@ public class IdAllocator implements ApplicationComponent {
         LOGGER.debug("Finish end");
     }
 
+    /*
+     * Read the configuration of a pool and start loading it. The
+     * configuration is read here, the oper data of the pool is read
+     * by the loader with a session of its own.
+     */
     private void createPool(NavuContainer navuPool)
         throws NavuException, UnknownHostException, ConfException, IOException {
-        RangeSet excludes;
-        RangeSet availables;
-        AllocationsSet allocations;
+        createPool(navuPool, null);
+    }
 
-        String pname = navuPool.leaf("name").value().toString();
-        LOGGER.debug(String.format("Creating new pool %s", pname));
-        excludes     = new RangeSet(wsess, pname, idAllocatorOper._exclude_);
-        availables   = new RangeSet(wsess, pname, idAllocatorOper._available_);
-        allocations  = new AllocationsSet(wsess, pname);
+    /*
+     * takeovers are the allocations read when the allocator is
+     * loaded, by pool name, used to settle the allocated ids that
+     * are not answered. Null if they could not be read.
+     */
+    private void createPool(NavuContainer navuPool,
+                            Map<String, Takeovers> takeovers)
+        throws NavuException, UnknownHostException, ConfException, IOException {
+        final PoolConfig conf = new PoolConfig();
 
-        LOGGER.debug(String.format("Creating IDPool: excludes %s, availables %s, allocation %s",
-                                   excludes, availables, allocations));
+        conf.name = navuPool.leaf("name").value().toString();
+        if (takeovers != null) {
+            conf.takeovers = takeoversOf(takeovers, conf.name);
+        }
+        conf.path = navuPool.getKeyPath();
+        LOGGER.debug(String.format("Creating new pool %s", conf.name));
 
         NavuContainer alarms = navuPool.container("alarms");
-        boolean alarmsEnabled = alarms.leaf("enabled").exists();
+        conf.alarmsEnabled = alarms.leaf("enabled").exists();
 
-        int threshold = (int) ((ConfUInt8) alarms.leaf("low-threshold-alarm").value()).longValue();
+        conf.threshold = (int) ((ConfUInt8) alarms.leaf("low-threshold-alarm").value()).longValue();
 
         LOGGER.debug(String.format("Got %s and %s",
-                                   alarmsEnabled, threshold));
+                                   conf.alarmsEnabled, conf.threshold));
 
-        IDPool pool  = new IDPool(pname, excludes,
-                                  availables, allocations,
-                                  alarmsEnabled, threshold);
+        conf.storage = readStorage(navuPool);
 
         /* Configure overall range. */
         NavuContainer poolRange =
@@ -963,57 +1469,292 @@ public class IdAllocator implements ApplicationComponent {
         long end   = ((ConfUInt32) poolRange.leaf(idAllocatorOper._end_).
                           value()).longValue();
 
-        pool.setRange(new Range(start, end));
-
-        /* Compare configured excludes to known excludes and add/remove. */
-        ConfPath cdbExclude = availables.getPoolPath().copyAppend(
-                                    idAllocatorOper._exclude_);
+        conf.range = new Range(start, end);
 
         NavuList poolExclude = navuPool.list(idAllocatorOper.prefix,
                                              idAllocatorOper._exclude_);
 
-        /* First add those that are new. */
         for(NavuContainer exclude : poolExclude.elements()) {
             start = ((ConfUInt32) exclude.leaf(idAllocatorOper._start_).
                            value()).longValue();
             end = ((ConfUInt32) exclude.leaf(idAllocatorOper._end_).
                            value()).longValue();
+            conf.excludes.add(new Range(start, end));
+        }
+
+        pools.submit(conf.name, new PoolLoader.Loader<Pool>() {
+                public Pool load(CdbSession sess) throws Exception {
+                    return loadPool(conf, sess);
+                }
+            });
+    }
+
+    private IDPool.Storage readStorage(NavuContainer navuPool)
+        throws NavuException {
+        return IDPool.Storage.valueOf(
+            navuPool.leaf(idAllocator._storage_).valueAsString().toUpperCase());
+    }
+
+    /*
+     * Build a pool from its oper data, read with sess. Runs on a
+     * loader thread, so it must only touch the new pool.
+     */
+    private Pool loadPool(PoolConfig conf, CdbSession sess) {
+        RangeSet excludes;
+        RangeSet availables;
+        AllocationsSet allocations;
+
+        String pname = conf.name;
+        excludes     = new RangeSet(sess, pname, idAllocatorOper._exclude_);
+        availables   = new RangeSet(sess, pname, idAllocatorOper._available_);
+        allocations  = new AllocationsSet(sess, pname);
+
+        /* The pool is written by the subscriber, with its own session. */
+        excludes.setSession(wsess);
+        availables.setSession(wsess);
+        allocations.setSession(wsess);
+
+        LOGGER.debug(String.format("Creating IDPool: excludes %s, availables %s, allocation %s",
+                                   excludes, availables, allocations));
+
+        IDPool pool  = new IDPool(pname, excludes,
+                                  availables, allocations,
+                                  conf.alarmsEnabled, conf.threshold,
+                                  conf.storage);
+
+        pool.setRange(conf.range);
+
+        /* Compare configured excludes to known excludes and add/remove. */
 
-            if (this.wsess.exists("%s{%s %s}", cdbExclude,
-                                  Long.toString(start),
-                                  Long.toString(end)) == false) {
-                pool.addToExcludes(new Range(start, end));
+        /* First add those that are new. */
+        for(Range exclude : conf.excludes) {
+            if (!excludes.contains(exclude)) {
+                pool.addToExcludes(exclude);
             }
         }
 
-        /* Then remove those that have been removed. */
-        int n = this.wsess.getNumberOfInstances(cdbExclude);
-        if (n > 0) {
-            List<ConfObject[]> objs = this.wsess.getObjects(2, 0, n, cdbExclude);
+        /*
+         * Then remove those that have been removed. The excludes set
+         * holds what is in the oper data, including changes that are
+         * not yet flushed.
+         */
+        for (Range exclude : new ArrayList<Range>(excludes)) {
+            if (!conf.excludes.contains(exclude)) {
+                try {
+                    pool.removeFromExcludes(exclude);
+                } catch (Exception e) {
+                    LOGGER.error("Pool already removed", e);
+                }
+            }
+        }
 
-            for (ConfObject[] obj : objs) {
-                start = ((ConfUInt32) obj[0]).longValue();
-                end = ((ConfUInt32) obj[1]).longValue();
-                String[] strKey = new String[] {Long.toString(start),
-                                                Long.toString(end)};
-                if (poolExclude.elem(strKey) == null) {
-                    try {
-                        pool.removeFromExcludes(new Range(start, end));
-                    } catch (Exception e) {
-                        LOGGER.error("Pool already removed", e);
+        Pool po = new Pool();
+        po.idPool = pool;
+        po.excludes = excludes;
+        po.availables = availables;
+        po.allocations = allocations;
+        po.path = conf.path;
+
+        if (conf.takeovers != null) {
+            try {
+                po.takeovers.putAll(conf.takeovers.settle(pool));
+            } catch (AllocationException e) {
+                LOGGER.error(String.format("Failed to settle pool %s", pname),
+                             e);
+            }
+        }
+        LOGGER.debug(String.format("Ok adding %s", po));
+        return po;
+    }
+
+    /*
+     * Write the pools, then the responses held back since the last
+     * commit, and add the services to redeploy to redeps. A response
+     * is only written once the pool it was answered from is in CDB,
+     * so an id that was handed out is never free in CDB, not even
+     * after a crash.
+     *
+     * A pool that fails to write may be written in part, so it is
+     * loaded again from CDB and the requests answered from it are
+     * processed again, once. Any that are still not answered are
+     * left for the replay when the allocator is loaded.
+     */
+    private void commit(Set<ToRedeploy> redeps) {
+        commit(redeps, true);
+    }
+
+    private void commit(Set<ToRedeploy> redeps, boolean retry) {
+        Map<String, List<Response>> pending = responses.take();
+        Map<String, List<Response>> dropped =
+            new LinkedHashMap<String, List<Response>>();
+        for (Pool pool : flushPools()) {
+            String name = pool.idPool.getName();
+            List<Response> rs = pending.remove(name);
+            if (rs != null) {
+                dropped.put(name, rs);
+            }
+            reloadPool(pool);
+        }
+
+        writeResponses(pending, redeps);
+
+        if (dropped.isEmpty()) {
+            return;
+        } else if (!retry) {
+            for (List<Response> rs : dropped.values()) {
+                for (Response r : rs) {
+                    LOGGER.error(String.format("Could not answer %s," +
+                                               " left for the next load",
+                                               r.path));
+                }
+            }
+            return;
+        }
+
+        for (Map.Entry<String, List<Response>> e : dropped.entrySet()) {
+            Pool pool = pools.get(e.getKey());
+            if (pool == null) {
+                continue;
+            }
+            for (Response r : e.getValue()) {
+                SortedMap<String, Pool> group =
+                    syncGroup(pool, r.allocationId);
+                List<Pool> locked = lockPools(pool, group);
+                try {
+                    Request req = pendingRequest(pool, r.allocationId);
+                    req.data = r.data;
+                    allocateId(pool, group, req);
+                } catch (Exception ex) {
+                    LOGGER.error("Cannot allocate id", ex);
+                } finally {
+                    for (Pool p : locked) {
+                        p.lock.unlock();
                     }
                 }
             }
         }
+        commit(redeps, false);
+    }
+
+    /*
+     * Write the changes made to the oper data of each pool since the
+     * last flush. The pool sets only journal their changes, this is
+     * where they reach CDB, once per batch of requests.
+     *
+     * @return the pools that could not be written
+     */
+    private List<Pool> flushPools() {
+        List<Pool> failed = new ArrayList<Pool>();
+        for (Pool pool : pools.loaded()) {
+            /* idAllocate() may change the pool from another thread. */
+            pool.lock.lock();
+            try {
+                pool.excludes.flush();
+                pool.availables.flush();
+                pool.allocations.flush();
+            } catch (Exception e) {
+                LOGGER.error(String.format("Failed to write pool %s",
+                                           pool.idPool.getName()), e);
+                failed.add(pool);
+            } finally {
+                pool.lock.unlock();
+            }
+        }
+        return failed;
+    }
+
+    /*
+     * Replace a pool that failed to write with one loaded from CDB,
+     * since what is in memory may no longer match what is there.
+     * Its snapshots are dropped so the new pool is read from CDB.
+     */
+    private void reloadPool(Pool pool) {
+        String name = pool.idPool.getName();
+        pool.lock.lock();
+        try {
+            pool.excludes.deleteSnapshot();
+            pool.availables.deleteSnapshot();
+            pool.allocations.deleteSnapshot();
+            /* Reserved in the pool we drop, reserved again on request. */
+            reservations.removePool(name);
+            createPool(idpool.elem(name));
+        } catch (Exception e) {
+            LOGGER.error(String.format("Failed to reload pool %s", name), e);
+            pools.remove(name);
+        } finally {
+            pool.lock.unlock();
+        }
+    }
+
+    /*
+     * Write responses and make them visible, one job per pool on the
+     * request workers.
+     */
+    private void writeResponses(Map<String, List<Response>> pending,
+                                Set<ToRedeploy> redeps) {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        final Set<ToRedeploy> jobRedeps =
+            Collections.synchronizedSet(new HashSet<ToRedeploy>());
+        Map<String, Runnable> jobs = new LinkedHashMap<String, Runnable>();
+        for (final Map.Entry<String, List<Response>> e : pending.entrySet()) {
+            jobs.put(e.getKey(), new Runnable() {
+                    public void run() {
+                        for (Response r : e.getValue()) {
+                            try {
+                                writeResponse(r, jobRedeps);
+                            } catch (Exception ex) {
+                                LOGGER.error(String.format(
+                                    "Failed to write response %s",
+                                    r.path), ex);
+                            }
+                        }
+                    }
+                });
+        }
+        try {
+            workers.runAll(jobs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.error("Interrupted writing responses", e);
+        }
+        redeps.addAll(jobRedeps);
+    }
+
+    /*
+     * Lock the pool of an allocation, and for a synchronized
+     * allocation every pool of its group since the id is taken
+     * from all of them. The group is sorted on pool name, so locks
+     * are always taken in the same order and two workers can not
+     * wait for each other.
+     */
+    private List<Pool> lockPools(Pool pool, SortedMap<String, Pool> group) {
+        List<Pool> locked = group == null ?
+            Collections.singletonList(pool) :
+            new ArrayList<Pool>(group.values());
+        for (Pool p : locked) {
+            p.lock.lock();
+        }
+        return locked;
+    }
 
-        Pool po = new Pool();
-        po.idPool = pool;
-        po.excludes = excludes;
-        po.availables = availables;
-        po.allocations = allocations;
-        po.path = navuPool.getKeyPath();
-        LOGGER.debug(String.format("Ok adding %s", po));
-        pools.add(po);
+    /*
+     * A request to allocate for an allocation of pool that has no
+     * response.
+     */
+    private Request pendingRequest(Pool pool, String id)
+        throws ConfException {
+        Request req = new Request();
+        req.key = new ConfKey(new ConfBuf(id));
+        req.path = new ConfPath(String.format("%s/%s%s", pool.path,
+                                              idAllocator._allocation_,
+                                              req.key));
+        req.pool = new ConfKey(new ConfBuf(pool.idPool.getName()));
+        req.val = null;
+        req.type = Type.ALLOC;
+        return req;
     }
 
     private void safeclose(Cdb s) {
@@ -1024,12 +1765,29 @@ public class IdAllocator implements ApplicationComponent {
         }
     }
 
+    /* Configuration of a pool, read before its oper data is loaded. */
+    private class PoolConfig {
+        String name;
+        String path;
+        boolean alarmsEnabled;
+        int threshold;
+        IDPool.Storage storage;
+        Range range;
+        Set<Range> excludes = new HashSet<Range>();
+        /* Settles the unanswered ids, when first loaded. */
+        Takeovers takeovers;
+    }
+
     private class Pool {
+        /* Held while a request worker uses the pool. */
+        final ReentrantLock lock = new ReentrantLock();
         IDPool idPool;
         RangeSet excludes;
         RangeSet availables;
         AllocationsSet allocations;
         String path;
+        /* Ids found allocated for an unanswered allocation, by its id. */
+        Map<String, Long> takeovers = new HashMap<String, Long>();
     }
 
     private class PoolAlloc {
@@ -1045,16 +1803,70 @@ public class IdAllocator implements ApplicationComponent {
     private class SyncGroup {
         Pool pool;
         String path;
+        RequestData data;
 
-        public SyncGroup(Pool p, String path) {
+        public SyncGroup(Pool p, String path, RequestData data) {
             this.pool = p;
             this.path = path;
+            this.data = data;
+        }
+    }
+
+    /*
+     * Index from allocation id to the names of the pools that hold an
+     * allocation with that id and sync set. It is built in loadState()
+     * and kept current by the allocation diff iterator, so that the
+     * members of a sync group can be found without reading every pool.
+     */
+    private class SyncIndex {
+        private Map<String, Set<String>> index =
+            new ConcurrentHashMap<String, Set<String>>();
+
+        void add(String allocationId, String poolName) {
+            Set<String> poolNames = index.get(allocationId);
+            if (poolNames == null) {
+                Set<String> newNames = ConcurrentHashMap.newKeySet();
+                poolNames = index.putIfAbsent(allocationId, newNames);
+                if (poolNames == null) {
+                    poolNames = newNames;
+                }
+            }
+            poolNames.add(poolName);
+        }
+
+        void remove(String allocationId, String poolName) {
+            Set<String> poolNames = index.get(allocationId);
+            if (poolNames != null) {
+                poolNames.remove(poolName);
+                if (poolNames.isEmpty()) {
+                    index.remove(allocationId);
+                }
+            }
+        }
+
+        void removePool(String poolName) {
+            for (String allocationId : index.keySet()) {
+                remove(allocationId, poolName);
+            }
+        }
+
+        boolean contains(String allocationId, String poolName) {
+            Set<String> poolNames = index.get(allocationId);
+            return poolNames != null && poolNames.contains(poolName);
+        }
+
+        Set<String> get(String allocationId) {
+            Set<String> poolNames = index.get(allocationId);
+            if (poolNames == null) {
+                return new HashSet<String>();
+            }
+            return new HashSet<String>(poolNames);
         }
     }
 
     private enum Operation { CREATE, DELETE, SET };
     private enum Type { ALLOC, RANGE, EXCLUDE, POOL,
-                        ALARMS_ENABLED, ALARMS_THRESHOLD};
+                        ALARMS_ENABLED, ALARMS_THRESHOLD, STORAGE};
 
     private class Request {
         ConfKey pool;
@@ -1063,9 +1875,92 @@ public class IdAllocator implements ApplicationComponent {
         Type type;
         ConfPath path;
         ConfValue val;
+        long blockSize = 1;
         long range_start;
         long range_end;
         int alarmThreshold;
+        /* For a new allocation, read when it was iterated. */
+        RequestData data;
+    }
+
+    /*
+     * The request leaves of an allocation. They are read in one call
+     * when the allocation is iterated, so processing it does not need
+     * to read the configuration again.
+     */
+    private static final class RequestData {
+        final String owner;
+        final String username;
+        final boolean sync;
+        final long id;
+        final long blockSize;
+        final long blockAlignment;
+        final String method;
+
+        RequestData(String owner, String username, boolean sync, long id,
+                    long blockSize, long blockAlignment, String method) {
+            this.owner = owner;
+            this.username = username;
+            this.sync = sync;
+            this.id = id;
+            this.blockSize = blockSize;
+            this.blockAlignment = blockAlignment;
+            this.method = method;
+        }
+    }
+
+    /* Requests as stored in the intent log. */
+    private class RequestCodec implements SetLog.Codec<Request> {
+        public void write(DataOutput out, Request req) throws IOException {
+            out.writeUTF(req.type.name());
+            out.writeUTF(req.op.name());
+            IntentLog.writeKey(out, req.pool);
+            IntentLog.writeKey(out, req.key);
+            out.writeUTF(req.path.toString());
+            out.writeLong(req.val == null ?
+                          -1L : ((ConfUInt32) req.val).longValue());
+            out.writeLong(req.blockSize);
+            out.writeLong(req.range_start);
+            out.writeLong(req.range_end);
+            out.writeInt(req.alarmThreshold);
+            out.writeBoolean(req.data != null);
+            if (req.data != null) {
+                out.writeUTF(req.data.owner);
+                out.writeUTF(req.data.username);
+                out.writeBoolean(req.data.sync);
+                out.writeLong(req.data.id);
+                out.writeLong(req.data.blockSize);
+                out.writeLong(req.data.blockAlignment);
+                out.writeUTF(req.data.method);
+            }
+        }
+
+        public Request read(DataInput in) throws IOException {
+            Request req = new Request();
+            req.type = Type.valueOf(in.readUTF());
+            req.op = Operation.valueOf(in.readUTF());
+            req.pool = IntentLog.readKey(in);
+            req.key = IntentLog.readKey(in);
+            String path = in.readUTF();
+            try {
+                req.path = new ConfPath(path);
+            } catch (Exception e) {
+                throw new IOException("Bad request path " + path, e);
+            }
+            long id = in.readLong();
+            req.val = id == -1L ? null : new ConfUInt32(id);
+            req.blockSize = in.readLong();
+            req.range_start = in.readLong();
+            req.range_end = in.readLong();
+            req.alarmThreshold = in.readInt();
+            if (in.readBoolean()) {
+                req.data = new RequestData(in.readUTF(), in.readUTF(),
+                                           in.readBoolean(), in.readLong(),
+                                           in.readLong(), in.readLong(),
+                                           in.readUTF());
+            }
+            return req;
+        }
     }
 
     private class Iter implements CdbDiffIterate {
@@ -1093,7 +1988,29 @@ public class IdAllocator implements ApplicationComponent {
                     return DiffIterateResultFlag.ITER_RECURSE;
                 }
 
+                /*
+                 * Read the request of a new allocation while we are
+                 * at it, kp is the allocation entry or a node below.
+                 */
+                RequestData data = null;
+                if (itype == Type.ALLOC &&
+                    op == DiffIterateOperFlag.MOP_CREATED) {
+                    String entry = new ConfPath(
+                        Arrays.copyOfRange(kp, kp.length - 5,
+                                           kp.length)).toString();
+                    data = readRequest(isess, entry);
+                    if (data.owner != "") {
+                        OwnerTracker.getInstance().expect(
+                            new ToRedeploy(data.owner, data.username), entry);
+                    }
+                }
+
+                if (itype == Type.ALLOC) {
+                    updateSyncIndex(kp, op, newValue, data);
+                }
+
                 Request newRequest = new Request();
+                newRequest.data = data;
 
                 newRequest.path = p;
                 newRequest.pool = (ConfKey) kp[kp.length-3];
@@ -1112,7 +2029,31 @@ public class IdAllocator implements ApplicationComponent {
                     newRequest.key = null;
                 }
 
-                if (op == DiffIterateOperFlag.MOP_CREATED) {
+                if (itype == Type.ALLOC && newRequest.key != null) {
+                    /* The response, if any, is about to change. */
+                    results.remove(newRequest.pool.elementAt(0).toString(),
+                                   newRequest.key.elementAt(0).toString());
+                }
+
+                if (itype == Type.STORAGE) {
+                    /*
+                     * Set or deleted, back to the default. The value
+                     * is read when the request is processed, one
+                     * request per pool is enough.
+                     */
+                    newRequest.op = Operation.SET;
+                    newRequest.type = itype;
+                    boolean found = false;
+                    for (Request req : reqs) {
+                        if (req.type == Type.STORAGE &&
+                            req.pool.equals(newRequest.pool)) {
+                            found = true;
+                        }
+                    }
+                    if (!found) {
+                        reqs.add(newRequest);
+                    }
+                } else if (op == DiffIterateOperFlag.MOP_CREATED) {
                     newRequest.op = Operation.CREATE;
                     newRequest.type = itype;
                     reqs.add(newRequest);
@@ -1123,17 +2064,42 @@ public class IdAllocator implements ApplicationComponent {
                         newRequest.type = itype;
                     } else {
                         newRequest.type = Type.POOL;
+                        results.removePool(
+                            newRequest.pool.elementAt(0).toString());
                     }
 
                     if (newRequest.type == Type.ALLOC) {
+                        if (kp.length == 5) {
+                            OwnerTracker.getInstance().forget(p.toString());
+                        }
+
+                        /*
+                         * With early acknowledgement the allocation may
+                         * not be answered yet. Its response is gone
+                         * once we sync, so read it after the requests
+                         * before this one are done.
+                         */
+                        if (IntentLog.EARLY_ACK &&
+                            !ssess.exists(String.format(
+                                              "%s/%s/%s", p,
+                                              idAllocator._response_,
+                                              idAllocator._id_))) {
+                            awaitRequests();
+                        }
                         ConfValue v =
-                            wsess.getElem(String.format("/%s:%s/%s:%s%s/%s%s/%s/%s",
+                            ssess.getElem(String.format("/%s:%s/%s:%s%s/%s%s/%s/%s",
                                           resourceAllocator.prefix, resourceAllocator._resource_pools_,
                                           idAllocator.prefix, idAllocator._id_pool_, newRequest.pool.toString(),
                                           idAllocator._allocation_, newRequest.key.toString(),
                                           idAllocator._response_,
                                           idAllocator._id_));
                         newRequest.val = v;
+                        newRequest.blockSize = getAllocatedBlockSize(
+                            ssess,
+                            String.format("/%s:%s/%s:%s%s/%s%s",
+                                          resourceAllocator.prefix, resourceAllocator._resource_pools_,
+                                          idAllocator.prefix, idAllocator._id_pool_, newRequest.pool.toString(),
+                                          idAllocator._allocation_, newRequest.key.toString()));
                     }
 
                     reqs.add(newRequest);
@@ -1150,10 +2116,18 @@ public class IdAllocator implements ApplicationComponent {
                                                     idAllocator._end_);
                     newRequest.op = Operation.SET;
                     newRequest.type = itype;
-                    newRequest.range_start =
-                        ((ConfUInt32) isess.getElem(rangeStart)).longValue();
-                    newRequest.range_end =
-                        ((ConfUInt32) isess.getElem(rangeEnd)).longValue();
+                    /* The diff has the leaf that changed, read the other. */
+                    if (((ConfTag) kp[0]).getTagHash() == idAllocator._start) {
+                        newRequest.range_start =
+                            ((ConfUInt32) newValue).longValue();
+                        newRequest.range_end =
+                            ((ConfUInt32) isess.getElem(rangeEnd)).longValue();
+                    } else {
+                        newRequest.range_start =
+                            ((ConfUInt32) isess.getElem(rangeStart)).longValue();
+                        newRequest.range_end =
+                            ((ConfUInt32) newValue).longValue();
+                    }
 
                     LOGGER.debug(String.format("range_start: %s\nrange_end: %s",
                                                newRequest.range_start, newRequest.range_end));
@@ -1177,12 +2151,8 @@ public class IdAllocator implements ApplicationComponent {
                            itype == Type.ALARMS_THRESHOLD) {
                     newRequest.type = Type.ALARMS_THRESHOLD;
                     newRequest.op = Operation.SET;
-                    String low_th = String.format("/%s:%s/%s%s/%s/%s",
-                                                  resourceAllocator.prefix,resourceAllocator._resource_pools_,
-                                                  idAllocator._id_pool_, newRequest.key, idAllocator._alarms_,
-                                                  idAllocator._low_threshold_alarm_);
                     newRequest.alarmThreshold =
-                        (int) ((ConfUInt8) isess.getElem(low_th)).longValue();
+                        (int) ((ConfUInt8) newValue).longValue();
                         reqs.add(newRequest);
                 } else {
                     /* Ignore VALUE_SET etc */
@@ -1193,6 +2163,43 @@ public class IdAllocator implements ApplicationComponent {
             }
             return DiffIterateResultFlag.ITER_RECURSE;
         }
+
+        /*
+         * Keep the sync index current. kp is either the allocation
+         * entry, {id} allocation {pool} id-pool resource-pools, or a
+         * leaf below it such as sync request {id} allocation ...
+         */
+        private void updateSyncIndex(ConfObject[] kp,
+                                     DiffIterateOperFlag op,
+                                     ConfObject newValue,
+                                     RequestData data)
+            throws Exception {
+            if (kp.length == 5) {
+                String allocationId = ((ConfKey) kp[0]).elementAt(0).toString();
+                String poolName = ((ConfKey) kp[2]).elementAt(0).toString();
+
+                if (op == DiffIterateOperFlag.MOP_CREATED) {
+                    if (data.sync) {
+                        syncIndex.add(allocationId, poolName);
+                    }
+                } else if (op == DiffIterateOperFlag.MOP_DELETED) {
+                    syncIndex.remove(allocationId, poolName);
+                }
+            } else if (kp.length == 7 &&
+                       ((ConfTag) kp[0]).getTagHash() == idAllocator._sync &&
+                       ((ConfTag) kp[1]).getTagHash() == idAllocator._request) {
+                String allocationId = ((ConfKey) kp[2]).elementAt(0).toString();
+                String poolName = ((ConfKey) kp[4]).elementAt(0).toString();
+
+                if (op == DiffIterateOperFlag.MOP_VALUE_SET &&
+                    ((ConfBool) newValue).booleanValue()) {
+                    syncIndex.add(allocationId, poolName);
+                } else if (op == DiffIterateOperFlag.MOP_VALUE_SET ||
+                           op == DiffIterateOperFlag.MOP_DELETED) {
+                    syncIndex.remove(allocationId, poolName);
+                }
+            }
+        }
     }
 
     /**
@@ -1286,6 +2293,179 @@ public class IdAllocator implements ApplicationComponent {
         idRequest(context, service, poolName, username, id, sync, -1L);
     }
 
+    /**
+     * Create or update a request for a block of consecutive ids.
+     *
+     * The response id is the first id of the block, the block is the
+     * <code>blockSize</code> ids starting at that id.
+     *
+     * @param context        <code>ServiceContext</code> referencing the
+     *                       requesting context that the service was invoked in.
+     * @param service        <code>NavuNode</code> referencing the requesting
+     *                       service node.
+     * @param poolName       name of pool to request from
+     * @param username       username to use when redeploying the requesting
+     *                       service
+     * @param id             unique allocation id
+     * @param requestedId    a specific first id of the block, or -1
+     * @param blockSize      number of consecutive ids to allocate
+     * @param blockAlignment alignment of the first id, a power of two
+     * @throws ResourceErrorException if the pool does not exist
+     */
+    public static void idBlockRequest(ServiceContext context,
+                                      NavuNode service,
+                                      String poolName,
+                                      String username,
+                                      String id,
+                                      long requestedId,
+                                      long blockSize,
+                                      long blockAlignment)
+        throws ResourceErrorException
+    {
+        try {
+            Template t = new Template(context, "resource-manager-id-allocation");
+            TemplateVariables v = getIdRequestTemplateVars(service, poolName,
+                                                           id, username,
+                                                           false, requestedId,
+                                                           blockSize,
+                                                           blockAlignment);
+            t.apply(service, v);
+        } catch (Exception e) {
+            throw new ResourceErrorException("Unable to create allocation request", e);
+        }
+    }
+
+    /**
+     * Allocate an id in the current transaction.
+     *
+     * Takes an id from the pool right away and writes the allocation
+     * request, asking for that id, in the transaction. The service can
+     * use the id in the same run of create(), and is not redeployed
+     * for it. An id that is already allocated for the request is
+     * returned again. If the transaction is not committed within a
+     * while the id goes back to the pool.
+     *
+     * Only works in the JVM of the allocator on the node that
+     * allocates. Elsewhere, and while the allocation is already being
+     * processed, the request is written and ResourceWaitException is
+     * thrown; use responseReady() and idRead() then as usual.
+     *
+     * @param context      <code>ServiceContext</code> referencing the
+     *                     requesting context that the service was invoked in.
+     * @param service      <code>NavuNode</code> referencing the requesting
+     *                     service node.
+     * @param poolName     name of pool to request from
+     * @param username     username to use when redeploying the requesting
+     *                     service
+     * @param id           unique allocation id
+     * @param requestedId  a specific id to be requested, or -1
+     * @return             the allocated id
+     * @throws ResourceErrorException if the allocation has failed,
+     *                                or the pool does not exist
+     * @throws ResourceWaitException if the id can not be allocated
+     *                               synchronously
+     */
+    public static ConfUInt32 idAllocate(ServiceContext context,
+                                        NavuNode service,
+                                        String poolName,
+                                        String username,
+                                        String id,
+                                        long requestedId)
+        throws ResourceException, ConfException, IOException
+    {
+        IdAllocator allocator = running;
+        long allocated = -1L;
+        try {
+            if (allocator == null || !allocator.isMaster) {
+                throw new ResourceWaitException(
+                    "Id allocator not running on this node");
+            }
+            allocated = allocator.reserve(
+                poolName, id, new ConfPath(service.getKeyPath()).toString(),
+                requestedId);
+        } finally {
+            /* Persist the request, with the id when we have one. */
+            idRequest(context, service, poolName, username, id, false,
+                      allocated != -1L ? allocated : requestedId);
+        }
+        return new ConfUInt32(allocated);
+    }
+
+    private long reserve(String poolName, String id, String owner,
+                         long requestedId)
+        throws ResourceException, ConfException, IOException {
+        /* Committed before, answered or on its way. */
+        AllocStatus alloc = cdbAllocation(icdb, poolName, id);
+        if (alloc != null) {
+            if (alloc.id != null) {
+                return ((ConfUInt32) alloc.id).longValue();
+            } else if (alloc.error != null) {
+                throw new ResourceErrorException(alloc.error.toString());
+            } else {
+                throw new ResourceWaitException("Not ready");
+            }
+        }
+
+        Pool pool = pools.get(poolName);
+        if (pool == null) {
+            throw new ResourceErrorException("Pool does not exist");
+        }
+
+        pool.lock.lock();
+        try {
+            if (pools.get(poolName) != pool) {
+                /* Replaced while we waited, see reloadPool(). */
+                throw new ResourceWaitException("Not ready");
+            }
+
+            Long reserved = reservations.get(poolName, id, owner);
+            if (reserved != null) {
+                /* Another run of create() in the same transaction. */
+                return reserved;
+            } else if (reservations.contains(poolName, id)) {
+                throw new ResourceErrorException(
+                    "Allocation reserved by another service");
+            }
+
+            Allocation a;
+            if (requestedId == -1L) {
+                a = pool.idPool.allocate(owner, idAllocator._firstfree_);
+            } else {
+                a = pool.idPool.allocate(owner, requestedId);
+            }
+            LOGGER.debug(String.format("Reserved %d for %s in %s",
+                                       a.getAllocated(), id, poolName));
+            reservations.put(poolName, id, owner, a.getAllocated());
+            return a.getAllocated();
+        } catch (AllocationException e) {
+            throw new ResourceErrorException(e.toString());
+        } finally {
+            pool.lock.unlock();
+        }
+    }
+
+    /* The transaction of a reservation never committed. */
+    private void releaseReservation(String poolName, String id, Long value) {
+        Pool pool = pools.get(poolName);
+        if (pool == null) {
+            reservations.remove(poolName, id, value);
+            return;
+        }
+
+        pool.lock.lock();
+        try {
+            if (reservations.remove(poolName, id, value)) {
+                LOGGER.info(String.format("Releasing %d reserved for %s in %s",
+                                          value, id, poolName));
+                pool.idPool.release(value);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed to release reservation", e);
+        } finally {
+            pool.lock.unlock();
+        }
+    }
+
     public static TemplateVariables getIdRequestTemplateVars(NavuNode service,
                                                              String poolName,
                                                              String id,
@@ -1293,6 +2473,19 @@ public class IdAllocator implements ApplicationComponent {
                                                              boolean sync,
                                                              long requestedId)
         throws ConfException {
+        return getIdRequestTemplateVars(service, poolName, id, username,
+                                        sync, requestedId, 1L, 1L);
+    }
+
+    public static TemplateVariables getIdRequestTemplateVars(NavuNode service,
+                                                             String poolName,
+                                                             String id,
+                                                             String username,
+                                                             boolean sync,
+                                                             long requestedId,
+                                                             long blockSize,
+                                                             long blockAlignment)
+        throws ConfException {
         TemplateVariables v = new TemplateVariables();
         v.putQuoted("POOL", poolName);
         v.putQuoted("ALLOCATIONID", id);
@@ -1303,6 +2496,8 @@ public class IdAllocator implements ApplicationComponent {
         v.putQuoted("SYNC", Boolean.toString(sync));
         v.putQuoted("REQUESTEDID",
                     Long.toString(requestedId < 0 ? -1 : requestedId));
+        v.putQuoted("BLOCKSIZE", Long.toString(blockSize));
+        v.putQuoted("BLOCKALIGNMENT", Long.toString(blockAlignment));
         return v;
     }
 
@@ -1372,51 +2567,126 @@ public class IdAllocator implements ApplicationComponent {
         }
     }
 
+    /**
+     * Read results of several id allocation requests in one session.
+     *
+     * @param cdb a Cdb resource
+     * @param poolName name of pool the requests were created in
+     * @param ids unique allocation ids
+     * @return the allocated id of each request, by allocation id
+     * @throws ResourceErrorException if an allocation has failed,
+     *                                a request does not exist, or the pool does not exist
+     * @throws ResourceWaitException if an allocation is not ready
+     */
+    public static Map<String, ConfUInt32> idRead(Cdb cdb, String poolName,
+                                                 Collection<String> ids)
+        throws ResourceException, IOException, ConfException {
+        Map<String, AllocStatus> allocs = cdbAllocations(cdb, poolName, ids);
+        Map<String, ConfUInt32> res = new LinkedHashMap<String, ConfUInt32>();
+        for (String id : ids) {
+            AllocStatus alloc = allocs.get(id);
+            if (alloc == null) {
+                throw new ResourceErrorException(String.format("No such allocation: %s", id));
+            }
+
+            if (alloc.id != null) {
+                res.put(id, (ConfUInt32) alloc.id);
+            } else if (alloc.error != null) {
+                throw new ResourceErrorException(alloc.error.toString());
+            } else {
+                throw new ResourceWaitException(String.format("Not ready: %s", id));
+            }
+        }
+        return res;
+    }
+
     private static AllocStatus cdbAllocation(Cdb cdb, String poolName, String id)
         throws ConfException, IOException, ResourceErrorException
     {
-        CdbSession session = null;
-        try {
-            session = cdb.startSession(CdbDBType.CDB_RUNNING,
-                                         EnumSet.of(CdbLockType.LOCK_REQUEST,
-                                                    CdbLockType.LOCK_WAIT));
-            ConfPath poolPath = new ConfPath("/%s:%s/%s:%s{%s}",
-                                             resourceAllocator.prefix, resourceAllocator._resource_pools_,
-                                             idAllocator.prefix, idAllocator._id_pool_, poolName);
+        return cdbAllocations(cdb, poolName,
+                              Collections.singletonList(id)).get(id);
+    }
 
-            if (session.exists(poolPath) == false) {
-                LOGGER.info(String.format("Checking response ready for missing id pool '%s'", poolName));
-                return null;
+    /*
+     * The status of each allocation that exists, from the results
+     * of this allocator or read with pooled sessions.
+     */
+    private static Map<String, AllocStatus> cdbAllocations(
+        Cdb cdb, String poolName, Collection<String> ids)
+        throws ConfException, IOException, ResourceErrorException
+    {
+        Map<String, AllocStatus> res = new HashMap<String, AllocStatus>();
+        List<String> missing = new ArrayList<String>();
+        for (String id : ids) {
+            AllocStatus alloc = results.get(poolName, id);
+            if (alloc != null) {
+                res.put(id, alloc);
+            } else {
+                missing.add(id);
             }
+        }
+        if (missing.isEmpty()) {
+            return res;
+        }
 
-            ConfPath allocPath = poolPath.copyAppend("/allocation{" + id + "}");
+        ConfPath poolPath = new ConfPath("/%s:%s/%s:%s{%s}",
+                                         resourceAllocator.prefix, resourceAllocator._resource_pools_,
+                                         idAllocator.prefix, idAllocator._id_pool_, poolName);
+        List<String> existing = new ArrayList<String>();
 
-            if (session.exists(allocPath) == false) {
-                return null;
+        CdbSessionPool runPool = CdbSessionPool.running();
+        CdbSession session = runPool.take(cdb);
+        boolean ok = false;
+        try {
+            if (session.exists(poolPath) == false) {
+                LOGGER.info(String.format("Checking response ready for missing id pool '%s'", poolName));
+                ok = true;
+                return res;
             }
 
-            session.endSession();
-            session = cdb.startSession(CdbDBType.CDB_OPERATIONAL,
-                                         EnumSet.of(CdbLockType.LOCK_REQUEST,
-                                                    CdbLockType.LOCK_WAIT));
+            for (String id : missing) {
+                if (session.exists(poolPath.copyAppend("/allocation{" + id + "}"))) {
+                    existing.add(id);
+                }
+            }
+            ok = true;
+        }
+        finally {
+            if (ok) {
+                runPool.put(session);
+            } else {
+                runPool.discard(session);
+            }
+        }
 
-            ConfPath idPath = allocPath.copyAppend("/response/id");
-            ConfPath errPath = allocPath.copyAppend("/response/error");
+        CdbSessionPool operPool = CdbSessionPool.operational();
+        session = operPool.take(cdb);
+        ok = false;
+        try {
+            for (String id : existing) {
+                ConfPath allocPath = poolPath.copyAppend("/allocation{" + id + "}");
+                ConfPath idPath = allocPath.copyAppend("/response/id");
+                ConfPath errPath = allocPath.copyAppend("/response/error");
 
-            AllocStatus res = new AllocStatus();
+                AllocStatus alloc = new AllocStatus();
 
-            if (session.exists(idPath)) {
-                res.id = session.getElem(idPath);
-            }
-            if (session.exists(errPath)) {
-                res.error = session.getElem(errPath);
+                if (session.exists(idPath)) {
+                    alloc.id = session.getElem(idPath);
+                }
+                if (session.exists(errPath)) {
+                    alloc.error = session.getElem(errPath);
+                }
+                res.put(id, alloc);
             }
+            ok = true;
 
             return res;
         }
         finally {
-            if (session != null) {
-                session.endSession();
+            if (ok) {
+                operPool.put(session);
+            } else {
+                operPool.discard(session);
             }
         }
     }
@@ -1426,6 +2696,18 @@ public class IdAllocator implements ApplicationComponent {
         ConfValue error = null;
     }
 
+    /* A response held back until its pool is written, see commit(). */
+    private static class Response {
+        String path;
+        String allocationId;
+        RequestData data;
+        long id;
+        /* 0 if not a block request. */
+        long blockSize = 0L;
+        String error = null;
+        boolean redeploy = true;
+    }
+
 
     private class RequestThread implements Runnable {
 
@@ -1449,19 +2731,32 @@ public class IdAllocator implements ApplicationComponent {
                  * the following call here and not after the for loop
                  * sub.sync(CdbSubscriptionSyncType.DONE_PRIORITY);
                  */
+                List<Request> allocs = new ArrayList<Request>();
                 for (Request req : reqs) {
 
-                    /* Find proper pool. */
-                    Pool pool = null;
+                    /*
+                     * Runs of allocation requests are processed per
+                     * pool on the request workers. Any other request
+                     * changes a pool, so the allocations before it
+                     * must be done first.
+                     */
+                    if (req.type == Type.ALLOC) {
+                        allocs.add(req);
+                        continue;
+                    }
+                    processAllocations(allocs);
 
-                    for(Pool _pool : pools) {
-                        if (_pool.idPool.getName().equals(req.pool.elementAt(0).
-                                                          toString())) {
-                            pool = _pool;
-                            break;
-                        }
+                    /*
+                     * Answer the allocations before the change, it
+                     * reads the responses from CDB.
+                     */
+                    if (!responses.isEmpty()) {
+                        commit(redeps);
                     }
 
+                    /* Find proper pool. */
+                    Pool pool = pools.get(req.pool.elementAt(0).toString());
+
                     if (pool == null &&
                         !(req.type == Type.POOL && req.op == Operation.CREATE)) {
                         LOGGER.error(String.format("No matching pool found: %s",
@@ -1482,7 +2777,11 @@ public class IdAllocator implements ApplicationComponent {
                         try {
                             LOGGER.debug("Removing ALARMS");
                             pool.idPool.clearAllAlarms();
-                            pools.remove(pool);
+                            pools.remove(pool.idPool.getName());
+                            syncIndex.removePool(pool.idPool.getName());
+                            pool.excludes.deleteSnapshot();
+                            pool.availables.deleteSnapshot();
+                            pool.allocations.deleteSnapshot();
                             if (wsess.exists(pool.availables.getPoolPath())) {
                                 wsess.delete(pool.availables.getPoolPath());
                             }
@@ -1502,6 +2801,14 @@ public class IdAllocator implements ApplicationComponent {
                 } else if (req.type == Type.ALARMS_THRESHOLD) {
                         LOGGER.debug("Update alarm threshold");
                         pool.idPool.setThreshold(req.alarmThreshold);
+                } else if (req.type == Type.STORAGE) {
+                    LOGGER.debug("Update storage");
+                    try {
+                        pool.idPool.setStorage(
+                            readStorage(idpool.elem(req.pool)));
+                    } catch (Exception e) {
+                        LOGGER.error("Failed to change storage", e);
+                    }
                 } else if (req.type == Type.RANGE) {
                     LOGGER.debug("got range change");
 
@@ -1537,16 +2844,13 @@ public class IdAllocator implements ApplicationComponent {
                         pool.idPool.setRange(range);
 
                         for(Request reallocReq : reallocReqs) {
-                            allocateId(pool, redeps, reallocReq);
+                            allocateId(pool, reallocReq);
                         }
 
                 } else if (req.type == Type.EXCLUDE) {
 
                     modifiedPools.add(pool);
 
-                        ConfPath cdbExclude =
-                            pool.availables.getPoolPath().copyAppend(
-                                                     idAllocatorOper._exclude_);
                         ConfPath cdbRange =
                             pool.availables.getPoolPath().copyAppend(
                                                        idAllocatorOper._range_);
@@ -1561,8 +2865,7 @@ public class IdAllocator implements ApplicationComponent {
 
                         if (req.op == Operation.DELETE) {
                             /* An exclusion has been removed from the pool. */
-                            if (this.wsess.exists("%s{%s %s}", cdbExclude,
-                                                  key[0], key[1])) {
+                            if (pool.excludes.contains(range)) {
                                 pool.idPool.removeFromExcludes(range);
                             } else {
                                 LOGGER.debug(
@@ -1572,8 +2875,7 @@ public class IdAllocator implements ApplicationComponent {
                             }
                         } else {
                             /* A new exclusion has been added to the pool. */
-                            if (this.wsess.exists("%s{%s %s}", cdbExclude,
-                                                  key[0], key[1]) == false) {
+                            if (!pool.excludes.contains(range)) {
                                 LOGGER.debug("new exclusion");
 
                                 /*
@@ -1601,7 +2903,7 @@ public class IdAllocator implements ApplicationComponent {
                                 }
 
                                 for(Request reallocReq : reallocReqs) {
-                                    allocateId(pool, redeps, reallocReq);
+                                    allocateId(pool, reallocReq);
                                 }
 
                             } else {
@@ -1610,36 +2912,15 @@ public class IdAllocator implements ApplicationComponent {
                                                  Arrays.toString(key)));
                             }
                         }
-                } else if (req.type == Type.ALLOC) {
-                    if (req.op == Operation.CREATE) {
-                        allocateId(pool, redeps, req);
-                    } else {
-                        /* Delete: clean up oper data, and de-allocate. */
-                        try {
-                            if (req.val != null) {
-                                    long id =
-                                        ((ConfUInt32) req.val).longValue();
-                                    pool.idPool.release(id);
-                            }
-                            String basePath =
-                                String.format("/%s:%s/%s:%s%s/%s%s",
-                                             resourceAllocator.prefix,
-                                             resourceAllocator._resource_pools_,
-                                             idAllocator.prefix,
-                                             idAllocator._id_pool_,
-                                             req.pool.toString(),
-                                             idAllocator._allocation_,
-                                             req.key.toString());
-
-                            cleanupResponse(basePath);
-                        }
-                        catch (Exception e) {
-                            LOGGER.error("Error deleting allocation", e);
-                        }
-                    }
                 }
             }
 
+            /* Allocations after the last configuration change. */
+            processAllocations(allocs);
+
+            /* The retries below read the error responses from CDB. */
+            commit(redeps);
+
             NavuContext context = new NavuContext(maapi, tid);
             NavuContainer base  = new NavuContainer(context);
             NavuContainer root  = base.container(resourceAllocator.hash);
@@ -1690,11 +2971,14 @@ public class IdAllocator implements ApplicationComponent {
                             LOGGER.debug(String.format("retrying on %s ",
                                                        r.path.toString()));
                             cleanupResponse(r.path.toString());
-                            allocateId(pool, redeps, r);
+                            allocateId(pool, r);
                         }
                     }
                 }
 
+                /* Write the changed pools, then the responses. */
+                commit(redeps);
+
                 LOGGER.debug("REDEPLOYING....");
 
                 /* Invoke redeploy */
@@ -1717,6 +3001,109 @@ public class IdAllocator implements ApplicationComponent {
             LOGGER.error("", e);
             }
         }
+
+        /*
+         * Process a run of allocation requests, one job per pool on the
+         * request workers, and wait for them. The requests of a pool
+         * are processed in order, different pools in parallel. The
+         * list is cleared.
+         */
+        private void processAllocations(List<Request> allocs)
+            throws InterruptedException {
+            if (allocs.isEmpty()) {
+                return;
+            }
+
+            Map<String, List<Request>> byPool =
+                new LinkedHashMap<String, List<Request>>();
+            for (Request req : allocs) {
+                String poolName = req.pool.elementAt(0).toString();
+                List<Request> poolReqs = byPool.get(poolName);
+                if (poolReqs == null) {
+                    poolReqs = new ArrayList<Request>();
+                    byPool.put(poolName, poolReqs);
+                }
+                poolReqs.add(req);
+            }
+            allocs.clear();
+
+            Map<String, Runnable> jobs = new LinkedHashMap<String, Runnable>();
+            for (final Map.Entry<String, List<Request>> e : byPool.entrySet()) {
+                jobs.put(e.getKey(), new Runnable() {
+                        public void run() {
+                            for (Request req : e.getValue()) {
+                                processAllocation(req);
+                            }
+                        }
+                    });
+            }
+            workers.runAll(jobs);
+        }
+
+        private void processAllocation(Request req) {
+            String poolName = req.pool.elementAt(0).toString();
+            Pool pool = pools.get(poolName);
+            if (pool == null) {
+                LOGGER.error(String.format("No matching pool found: %s",
+                                           poolName));
+                return;
+            }
+
+            SortedMap<String, Pool> group = null;
+            if (req.op == Operation.CREATE) {
+                group = syncGroup(pool, req.key.elementAt(0).toString());
+            }
+
+            List<Pool> locked = lockPools(pool, group);
+            try {
+                if (req.op == Operation.CREATE) {
+                    allocateId(pool, group, req);
+                } else {
+                    /* Delete: clean up oper data, and de-allocate. */
+                    String allocationId = req.key.elementAt(0).toString();
+                    Response answered =
+                        responses.remove(poolName, allocationId);
+                    Long taken = pool.takeovers.remove(allocationId);
+                    if (taken != null) {
+                        pool.idPool.release(taken);
+                    }
+                    if (req.val != null) {
+                        long id = ((ConfUInt32) req.val).longValue();
+                        if (req.blockSize > 1) {
+                            pool.idPool.releaseBlock(id, req.blockSize);
+                        } else {
+                            pool.idPool.release(id);
+                        }
+                    } else if (answered != null && answered.error == null) {
+                        /* Answered in this batch, never written. */
+                        if (answered.blockSize > 1) {
+                            pool.idPool.releaseBlock(answered.id,
+                                                     answered.blockSize);
+                        } else {
+                            pool.idPool.release(answered.id);
+                        }
+                    }
+                    String basePath =
+                        String.format("/%s:%s/%s:%s%s/%s%s",
+                                      resourceAllocator.prefix,
+                                      resourceAllocator._resource_pools_,
+                                      idAllocator.prefix,
+                                      idAllocator._id_pool_,
+                                      req.pool.toString(),
+                                      idAllocator._allocation_,
+                                      req.key.toString());
+
+                    cleanupResponse(basePath);
+                }
+            } catch (Exception e) {
+                LOGGER.error(String.format("Error processing allocation %s",
+                                           req.path), e);
+            } finally {
+                for (Pool p : locked) {
+                    p.lock.unlock();
+                }
+            }
+        }
     }
 
 }
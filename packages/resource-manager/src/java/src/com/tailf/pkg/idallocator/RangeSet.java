@@ -1,5 +1,8 @@
 package com.tailf.pkg.idallocator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.TreeSet;
 import java.util.List;
 
@@ -7,6 +10,9 @@ import org.apache.log4j.Logger;
 
 import com.tailf.pkg.idallocator.namespaces.idAllocatorOper;
 import com.tailf.pkg.idpool.Range;
+import com.tailf.pkg.nsoutil.Journal;
+import com.tailf.pkg.nsoutil.PoolLoader;
+import com.tailf.pkg.nsoutil.SetLog;
 import com.tailf.cdb.CdbSession;
 import com.tailf.conf.ConfUInt32;
 import com.tailf.conf.ConfObject;
@@ -24,11 +30,27 @@ public class RangeSet extends TreeSet<Range> {
     private ConfPath poolPath;
     private ConfPath locationPath;
     private CdbSession wsess;
+    private Journal<Range> journal = new Journal<Range>();
+    private SetLog<Range> log;
+
+    static final SetLog.Codec<Range> CODEC = new SetLog.Codec<Range>() {
+        public void write(DataOutput out, Range ren) throws IOException {
+            out.writeLong(ren.getStart());
+            out.writeLong(ren.getEnd());
+        }
+
+        public Range read(DataInput in) throws IOException {
+            long start = in.readLong();
+            return new Range(start, in.readLong());
+        }
+    };
 
     public RangeSet(CdbSession wsess, String poolName, String location) {
         super();
 
         this.wsess = wsess;
+        this.log = new SetLog<Range>("id-allocator", poolName, location,
+                                     CODEC);
 
         LOGGER.debug("Creating RangeSet");
 
@@ -50,8 +72,30 @@ public class RangeSet extends TreeSet<Range> {
             LOGGER.debug("Adding existing range");
 
             int n = wsess.getNumberOfInstances(locationPath);
-            if (n > 0) {
-                List<ConfObject[]> objs = wsess.getObjects(2, 0, n, locationPath);
+
+            /*
+             * Prefer the local snapshot, as long as it is of the
+             * generation of the set in CDB.
+             */
+            List<Range> cached = log.load(wsess, new ConfPath(
+                    "/%s:%s/%s{%s}/%s{%s}",
+                    idAllocatorOper.prefix, idAllocatorOper._id_allocator_,
+                    idAllocatorOper._pool_, poolName,
+                    idAllocatorOper._snapshot_, location));
+            if (cached != null && cached.size() == n) {
+                LOGGER.debug(String.format("Loaded %d ranges from snapshot",
+                                           n));
+                for (Range ren : cached) {
+                    super.add(ren);
+                }
+                return;
+            }
+
+            /* Read in chunks, to bound the memory used for large pools. */
+            for (int i = 0; i < n; i += PoolLoader.CHUNK) {
+                List<ConfObject[]> objs =
+                    wsess.getObjects(2, i, Math.min(PoolLoader.CHUNK, n - i),
+                                     locationPath);
 
                 for (ConfObject[] obj : objs) {
                     long start = ((ConfUInt32) obj[0]).longValue();
@@ -61,6 +105,7 @@ public class RangeSet extends TreeSet<Range> {
                     super.add(res);
                 }
             }
+            log.snapshot(this);
         } catch (Exception e) {
             LOGGER.error("Failed to setup RangeSet", e);
         }
@@ -70,59 +115,78 @@ public class RangeSet extends TreeSet<Range> {
         return this.poolPath;
     }
 
+    /*
+     * Changes are only recorded in the journal, they are written to
+     * CDB by flush().
+     */
     public boolean add(Range ren) {
-        boolean res = super.add(ren);
+        journal.touch(ren, contains(ren));
+        return super.add(ren);
+    }
 
-        try {
-            String p = String.format("%s{%s %s}",
-                    this.locationPath,
-                    Long.toString(ren.getStart()),
-                    Long.toString(ren.getEnd()));
+    public boolean remove(Object o) {
+        if (!(o instanceof Range)) {
+            return false;
+        }
+        journal.touch((Range) o, contains(o));
+        return super.remove(o);
+    }
 
-            if (this.wsess.exists(p) == false) {
-                this.wsess.create(p);
-            }
-        } catch (Exception e) {
-            if(res) {
-                /* Only an error if the range really was added to the set */
-                LOGGER.error(String.format("Could not add range %s", ren), e);
-            }
+    public void clear() {
+        journal.clear(this);
+        super.clear();
+    }
+
+    /**
+     * Write the changes made since the last flush to CDB.
+     */
+    public void flush() throws Exception {
+        if (journal.isEmpty()) {
+            return;
         }
+        log.begin(wsess);
+        journal.flush(this, writer);
+        log.commit(this);
+    }
 
-        return res;
+    /**
+     * Write with wsess from now on, for a set that was loaded with
+     * another session.
+     */
+    public void setSession(CdbSession wsess) {
+        this.wsess = wsess;
     }
 
-    public boolean remove(Object o) {
-        boolean res = super.remove(o);
-        Range ren = (Range) o;
+    /**
+     * Remove the local snapshot, when the pool is deleted.
+     */
+    public void deleteSnapshot() {
+        log.delete();
+    }
 
-        try {
-            String p = String.format("%s{%s %s}",
-                    this.locationPath,
-                    Long.toString(ren.getStart()),
-                    Long.toString(ren.getEnd()));
+    private String rangePath(Range ren) {
+        return String.format("%s{%s %s}",
+                             this.locationPath,
+                             Long.toString(ren.getStart()),
+                             Long.toString(ren.getEnd()));
+    }
 
-            if (this.wsess.exists(p)) {
-                this.wsess.delete(p);
-            }
-        } catch (Exception e) {
-            if (res) {
-                /* Only an error if the range really was removed from the set */
-                LOGGER.error("Could not remove range", e);
-            }
+    private final Journal.Writer<Range> writer = new Journal.Writer<Range>() {
+        public void create(Range ren) throws Exception {
+            wsess.create(rangePath(ren));
+            log.add(ren);
         }
-        return res;
-    }
 
-    public void clear() {
-        super.clear();
+        public void delete(Range ren) throws Exception {
+            wsess.delete(rangePath(ren));
+            log.remove(ren);
+        }
 
-        try {
-            if (this.wsess.exists(this.locationPath)) {
-                this.wsess.delete(this.locationPath);
+        public void deleteAll() throws Exception {
+            if (wsess.exists(locationPath)) {
+                wsess.delete(locationPath);
             }
-        } catch (Exception ex ) {
-            LOGGER.error("Failed to clear", ex);
+            log.clear();
         }
-    }
+    };
 }
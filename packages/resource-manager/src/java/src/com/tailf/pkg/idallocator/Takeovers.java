@@ -0,0 +1,75 @@
+package com.tailf.pkg.idallocator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.tailf.pkg.idpool.Allocation;
+import com.tailf.pkg.idpool.IDPool;
+import com.tailf.pkg.idpool.exceptions.AllocationException;
+
+/**
+ * Settles the ids of a pool that are allocated but not answered to
+ * any allocation, when the allocator is loaded.
+ *
+ * Such an id was reserved by idAllocate() for a transaction, or
+ * allocated for a request whose response never reached CDB. Neither
+ * is known after a restart. If the request of exactly one unanswered
+ * allocation asks for the id, which is what idAllocate() writes for a
+ * reservation of its service, that allocation takes the id over. Any
+ * other such id is released.
+ */
+public class Takeovers {
+
+    /* Ids answered to an allocation. */
+    private Set<Long> answered = new HashSet<Long>();
+
+    /* The allocation asking for each id, null if more than one does. */
+    private Map<Long, String> requested = new HashMap<Long, String>();
+
+    /**
+     * An allocation was answered with the block of size ids from id.
+     */
+    public void answered(long id, long size) {
+        for (long i = id; i < id + size; i++) {
+            answered.add(i);
+        }
+    }
+
+    /**
+     * An unanswered allocation asks for id.
+     */
+    public void requested(String allocationId, long id) {
+        if (requested.containsKey(id)) {
+            requested.put(id, null);
+        } else {
+            requested.put(id, allocationId);
+        }
+    }
+
+    /**
+     * Release the ids of pool that are neither answered nor taken
+     * over.
+     *
+     * @return the id taken over by each allocation, by allocation id
+     */
+    public Map<String, Long> settle(IDPool pool) throws AllocationException {
+        Map<String, Long> res = new HashMap<String, Long>();
+        for (Allocation a : new ArrayList<Allocation>(pool.getAllocations())) {
+            long id = a.getAllocated();
+            if (answered.contains(id)) {
+                continue;
+            }
+
+            String allocationId = requested.get(id);
+            if (allocationId != null) {
+                res.put(allocationId, id);
+            } else {
+                pool.release(id);
+            }
+        }
+        return res;
+    }
+}
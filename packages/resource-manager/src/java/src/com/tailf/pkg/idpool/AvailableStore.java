@@ -0,0 +1,48 @@
+package com.tailf.pkg.idpool;
+
+import java.util.Collection;
+import java.util.List;
+
+/*
+ * Storage engine for the available ids of an IDPool.
+ *
+ * All ids are handled as longs and -1 is used to signal that no id
+ * was found. Implementations are not thread safe, the owning IDPool
+ * serializes all access.
+ */
+interface AvailableStore {
+
+    boolean isEmpty();
+
+    /* Number of available ids. */
+    long size();
+
+    boolean contains(long id);
+
+    /* Lowest available id, or -1. */
+    long first();
+
+    /* Lowest available id that is greater than or equal to id, or -1. */
+    long ceiling(long id);
+
+    /* Mark an available id as taken. */
+    void take(long id);
+
+    /* Mark a taken id as available again. */
+    void free(long id);
+
+    /* Mark a run of ids, all within one available range, as taken. */
+    void take(Range run);
+
+    /* Mark a run of taken ids as available again. */
+    void free(Range run);
+
+    /* The available ids as disjoint ranges in ascending order. */
+    List<Range> ranges();
+
+    /*
+     * Replace the contents of the store with the given ranges, all
+     * of which lie within bounds.
+     */
+    void reset(Range bounds, Collection<Range> ranges);
+}
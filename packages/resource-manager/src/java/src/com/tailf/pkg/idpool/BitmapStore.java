@@ -0,0 +1,235 @@
+package com.tailf.pkg.idpool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/*
+ * Keeps the available ids of a pool as a bitmap, one bit per id in
+ * the pool range, where a set bit means that the id is available.
+ *
+ * The bitmap is split into chunks of 4096 ids. Chunks where every id
+ * is taken are not stored at all and chunks where every id is
+ * available share a single marker, so a mostly full or mostly empty
+ * pool only keeps the chunks that are actually mixed. Searching for
+ * the next available id skips whole chunks using the per chunk count
+ * and then scans one 64-bit word at a time.
+ *
+ * Nothing is persisted, the bitmap is rebuilt from the pool range,
+ * excludes and allocations when the pool is set up.
+ */
+class BitmapStore implements AvailableStore {
+
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_BITS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_WORDS = CHUNK_BITS / 64;
+
+    /* Marker for a chunk where every id is available. */
+    private static final long[] ALL_FREE = new long[0];
+
+    private long base = 0;
+    private long width = 0;
+    private long[][] chunks = new long[0][];
+    private int[] counts = new int[0];
+    private long size = 0;
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean contains(long id) {
+        long off = id - base;
+        if (off < 0 || off >= width) {
+            return false;
+        }
+
+        long[] chunk = chunks[(int) (off >>> CHUNK_SHIFT)];
+        if (chunk == null) {
+            return false;
+        } else if (chunk == ALL_FREE) {
+            return true;
+        }
+        return (chunk[(int) (off & (CHUNK_BITS - 1)) >>> 6] & (1L << off)) != 0;
+    }
+
+    public long first() {
+        return ceiling(base);
+    }
+
+    public long ceiling(long id) {
+        long off = nextFree(Math.max(0, id - base));
+        return off < 0 ? -1L : base + off;
+    }
+
+    public void take(long id) {
+        long off = id - base;
+        if (!contains(id)) {
+            return;
+        }
+
+        int c = (int) (off >>> CHUNK_SHIFT);
+        long[] chunk = materialize(c);
+        chunk[(int) (off & (CHUNK_BITS - 1)) >>> 6] &= ~(1L << off);
+        size--;
+        if (--counts[c] == 0) {
+            chunks[c] = null;
+        }
+    }
+
+    public void free(long id) {
+        long off = id - base;
+        if (off < 0 || off >= width || contains(id)) {
+            return;
+        }
+
+        int c = (int) (off >>> CHUNK_SHIFT);
+        long[] chunk = materialize(c);
+        chunk[(int) (off & (CHUNK_BITS - 1)) >>> 6] |= 1L << off;
+        size++;
+        if (++counts[c] == CHUNK_BITS) {
+            chunks[c] = ALL_FREE;
+        }
+    }
+
+    public void take(Range run) {
+        for (long id = run.getStart(); id <= run.getEnd(); id++) {
+            take(id);
+        }
+    }
+
+    public void free(Range run) {
+        for (long id = run.getStart(); id <= run.getEnd(); id++) {
+            free(id);
+        }
+    }
+
+    public List<Range> ranges() {
+        List<Range> res = new ArrayList<Range>();
+        long off = nextFree(0);
+        while (off >= 0) {
+            long end = nextTaken(off);
+            res.add(new Range(base + off, base + end - 1));
+            off = nextFree(end);
+        }
+        return res;
+    }
+
+    public void reset(Range bounds, Collection<Range> ranges) {
+        base = bounds.getStart();
+        width = bounds.getEnd() - bounds.getStart() + 1;
+
+        int n = (int) ((width + CHUNK_BITS - 1) >>> CHUNK_SHIFT);
+        chunks = new long[n][];
+        counts = new int[n];
+        size = 0;
+
+        for (Range range : ranges) {
+            long lo = Math.max(range.getStart(), bounds.getStart()) - base;
+            long hi = Math.min(range.getEnd(), bounds.getEnd()) - base;
+            if (lo <= hi) {
+                setFree(lo, hi);
+            }
+        }
+    }
+
+    /* Mark the offsets lo..hi as available, the run must not be set. */
+    private void setFree(long lo, long hi) {
+        for (long c = lo >>> CHUNK_SHIFT; c <= hi >>> CHUNK_SHIFT; c++) {
+            long cs = c << CHUNK_SHIFT;
+            long ce = cs + CHUNK_BITS - 1;
+            long a = Math.max(lo, cs);
+            long b = Math.min(hi, ce);
+            int ci = (int) c;
+
+            if (a == cs && b == ce) {
+                chunks[ci] = ALL_FREE;
+                counts[ci] = CHUNK_BITS;
+                size += CHUNK_BITS;
+                continue;
+            }
+
+            long[] chunk = materialize(ci);
+            for (long off = a; off <= b; off++) {
+                chunk[(int) (off & (CHUNK_BITS - 1)) >>> 6] |= 1L << off;
+            }
+            counts[ci] += (int) (b - a + 1);
+            size += b - a + 1;
+        }
+    }
+
+    /* Lowest available offset >= off, or -1. */
+    private long nextFree(long off) {
+        if (off >= width) {
+            return -1L;
+        }
+
+        for (int c = (int) (off >>> CHUNK_SHIFT); c < chunks.length; c++) {
+            long start = Math.max(off, (long) c << CHUNK_SHIFT);
+            long[] chunk = chunks[c];
+            if (chunk == null) {
+                continue;
+            } else if (chunk == ALL_FREE) {
+                return start;
+            }
+
+            int w = (int) (start & (CHUNK_BITS - 1)) >>> 6;
+            long word = chunk[w] & (-1L << start);
+            while (true) {
+                if (word != 0) {
+                    return ((long) c << CHUNK_SHIFT) + (w << 6) +
+                        Long.numberOfTrailingZeros(word);
+                }
+                if (++w == CHUNK_WORDS) {
+                    break;
+                }
+                word = chunk[w];
+            }
+        }
+        return -1L;
+    }
+
+    /* Lowest taken offset >= off, or width if all are available. */
+    private long nextTaken(long off) {
+        for (int c = (int) (off >>> CHUNK_SHIFT); c < chunks.length; c++) {
+            long start = Math.max(off, (long) c << CHUNK_SHIFT);
+            long[] chunk = chunks[c];
+            if (chunk == ALL_FREE) {
+                continue;
+            } else if (chunk == null) {
+                return Math.min(start, width);
+            }
+
+            int w = (int) (start & (CHUNK_BITS - 1)) >>> 6;
+            long word = ~chunk[w] & (-1L << start);
+            while (true) {
+                if (word != 0) {
+                    return Math.min(width, ((long) c << CHUNK_SHIFT) + (w << 6) +
+                                    Long.numberOfTrailingZeros(word));
+                }
+                if (++w == CHUNK_WORDS) {
+                    break;
+                }
+                word = ~chunk[w];
+            }
+        }
+        return width;
+    }
+
+    private long[] materialize(int c) {
+        long[] chunk = chunks[c];
+        if (chunk == null) {
+            chunk = new long[CHUNK_WORDS];
+            chunks[c] = chunk;
+        } else if (chunk == ALL_FREE) {
+            chunk = new long[CHUNK_WORDS];
+            Arrays.fill(chunk, -1L);
+            chunks[c] = chunk;
+        }
+        return chunk;
+    }
+}
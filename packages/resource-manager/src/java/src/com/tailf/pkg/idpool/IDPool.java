@@ -1,7 +1,12 @@
 package com.tailf.pkg.idpool;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 import com.tailf.conf.ConfIdentityRef;
 import com.tailf.pkg.idallocator.IdAllocator;
@@ -16,14 +21,32 @@ public class IDPool extends Pool {
 
     private static Logger LOGGER = Logger.getLogger(IdAllocator.class);
 
+    /*
+     * How the available ids are kept. RANGES stores them as ranges
+     * persisted through the availables set, BITMAP keeps a bitmap in
+     * memory and derives it from the range, excludes and allocations
+     * when the pool is set up. AUTO picks BITMAP for narrow or dense
+     * pools and RANGES otherwise.
+     */
+    public enum Storage { AUTO, RANGES, BITMAP }
+
+    /* Pools wider than this never use a bitmap. */
+    private static final long BITMAP_MAX_WIDTH = 1L << 20;
+    /* Pools up to this width always use a bitmap when AUTO. */
+    private static final long BITMAP_DENSE_WIDTH = 1L << 16;
+    /* Otherwise at least one in this many ids must be allocated. */
+    private static final long BITMAP_MIN_DENSITY = 64;
+
     private String name;
 
     private Set<Range> excludes;
     private Set<Range> availables;
     private Set<Allocation> allocations;
+
+    private Storage storage;
+    private AvailableStore store;
+
     private Long lastAllocation;
-    private Long max;
-    private Long min;
 
     private Range poolRange = new Range(0,1);
 
@@ -33,6 +56,17 @@ public class IDPool extends Pool {
                   Set<Allocation> allocations,
                   boolean alarmsEnabled,
                   int threshold) {
+        this(name, excludes, availables, allocations,
+             alarmsEnabled, threshold, Storage.RANGES);
+    }
+
+    public IDPool(String name,
+                  Set<Range> excludes,
+                  Set<Range> availables,
+                  Set<Allocation> allocations,
+                  boolean alarmsEnabled,
+                  int threshold,
+                  Storage storage) {
 
         super(name, new ConfIdentityRef(idAllocator.hash,
                                     idAllocator._id_pool_exhausted),
@@ -43,7 +77,9 @@ public class IDPool extends Pool {
         this.excludes = excludes;
         this.availables = availables;
         this.allocations = allocations;
-        setupMinMaxAllocs();
+        this.storage = storage;
+        this.store = new RangeStore(availables);
+        setupLastAllocation();
     }
 
     public void setName(String name) {
@@ -68,8 +104,26 @@ public class IDPool extends Pool {
         recalculateRanges();
     }
 
-    public Set<Range> getAvailables() {
-        return availables;
+    public synchronized Set<Range> getAvailables() {
+        return new TreeSet<Range>(store.ranges());
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Change how the available ids are kept. The available ids are
+     * recomputed for the new storage, a pool switched to BITMAP drops
+     * its stored ranges.
+     */
+    public synchronized void setStorage(Storage storage) {
+        if (storage == this.storage) {
+            return;
+        }
+        this.storage = storage;
+        recalculateRanges();
+        reviewAlarms();
     }
 
     public Set<Allocation> getAllocations() {
@@ -90,25 +144,17 @@ public class IDPool extends Pool {
 
     public synchronized Allocation allocate(String occupant)
         throws AllocationException {
-        LOGGER.debug(String.format("Trying to allocate from availables %s", availables));
-        if (availables.isEmpty()) {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(String.format("Trying to allocate from availables %s",
+                                       store.ranges()));
+        }
+        if (store.isEmpty()) {
             throw new PoolExhaustedException(
                           String.format("ID pool %s exhausted", name));
         }
 
-        Range range = availables.iterator().next();
-        long result = range.getStart();
-        availables.remove(range);
-
-        if (range.getStart() != range.getEnd()) {
-            /* Otherwise it's a range with one element, which is now
-             * allocated. */
-            range = new Range(result+1, range.getEnd());
-            if (range.getStart() <= range.getEnd()) {
-                /* Range is not exhausted, add it to availables. */
-                availables.add(range);
-            }
-        }
+        long result = store.first();
+        store.take(result);
 
         reviewAlarms();
 
@@ -122,68 +168,149 @@ public class IDPool extends Pool {
         if (requestMethod.equals(idAllocator._firstfree_)) {
             return allocate(occupant);
         } else if(requestMethod.equals(idAllocator._roundrobin_)) {
-            if (availables.isEmpty()) {
+            if (store.isEmpty()) {
                 throw new PoolExhaustedException(
                               String.format("ID pool %s exhausted", name));
             }
 
-            Long requested;
-            if (this.lastAllocation == null) {
-                requested = this.min;
-            } else {
-                requested = this.lastAllocation + 1;
+            /*
+             * Pick the first available id after the last allocation,
+             * wrapping around to the start of the pool.
+             */
+            long requested = -1L;
+            if (this.lastAllocation != null) {
+                requested = store.ceiling(this.lastAllocation + 1);
             }
-            Allocation returnAlloc = null;
-            while (requested != this.lastAllocation) {
-                if (requested > this.max) { // Try from start again
-                    requested = this.min;
-                }
-                try {
-                    returnAlloc = allocate(occupant, requested);
-                    break;
-                }
-                catch (AllocationException e) {
-                    this.lastAllocation = requested;
-                    requested += 1;
-                }
+            if (requested == -1L) {
+                requested = store.first();
             }
-            reviewAlarms();
-            return returnAlloc;
+            return allocate(occupant, requested);
         }
         throw new AllocationException("Unknown request method");
     }
 
     public synchronized Allocation allocate(String occupant, long requested)
         throws AllocationException {
-        if (availables.isEmpty()) {
+        if (store.isEmpty()) {
             throw new PoolExhaustedException(
                           String.format("ID pool %s exhausted", name));
         }
-        for(Range range : availables) {
-            if (range.getStart() <= requested && range.getEnd() >= requested) {
-                availables.remove(range);
 
-                if (range.getStart() <= requested - 1) {
-                    Range before = new Range(range.getStart(), requested-1);
-                    availables.add(before);
-                }
+        if (!store.contains(requested)) {
+            String err = String.format("Requested id (%d) not available in pool %s",
+                                       requested, name);
+
+            throw new PoolExhaustedException(err);
+        }
+
+        store.take(requested);
+
+        Allocation allocation = new Allocation(requested);
+        allocations.add(allocation);
+        this.lastAllocation = allocation.getAllocated();
+        reviewAlarms();
+        return allocation;
+    }
 
-                if (requested+1 <= range.getEnd()) {
-                    Range after = new Range(requested+1, range.getEnd());
-                    availables.add(after);
+    /**
+     * Allocate a block of <code>size</code> consecutive ids where the
+     * first id is a multiple of <code>alignment</code>.
+     *
+     * The block is taken from the smallest available range that can
+     * hold it, the lowest one if there are several, which keeps the
+     * larger ranges intact for later blocks.
+     *
+     * @param occupant the owner of the allocation
+     * @param size number of ids in the block
+     * @param alignment alignment of the first id, a power of two
+     * @return the allocation of the first id of the block
+     */
+    public synchronized Allocation allocateBlock(String occupant,
+                                                 long size,
+                                                 long alignment)
+        throws AllocationException {
+        checkBlock(size, alignment);
+
+        long best = -1L;
+        long bestWidth = Long.MAX_VALUE;
+        for (Range range : store.ranges()) {
+            long width = range.getEnd() - range.getStart() + 1;
+            long start = alignUp(range.getStart(), alignment);
+            if (width < bestWidth && start + size - 1 <= range.getEnd()) {
+                best = start;
+                bestWidth = width;
+                if (width == size) {
+                    break;
                 }
+            }
+        }
+
+        if (best == -1L) {
+            throw new PoolExhaustedException(
+                String.format("No block of %d ids aligned to %d available" +
+                              " in pool %s", size, alignment, name));
+        }
 
-                Allocation allocation = new Allocation(requested);
-                allocations.add(allocation);
-                this.lastAllocation = allocation.getAllocated();
-                reviewAlarms();
-                return allocation;
+        return takeBlock(best, size);
+    }
+
+    /**
+     * Allocate the block of <code>size</code> consecutive ids starting
+     * at <code>requested</code>.
+     */
+    public synchronized Allocation allocateBlock(String occupant,
+                                                 long requested,
+                                                 long size,
+                                                 long alignment)
+        throws AllocationException {
+        checkBlock(size, alignment);
+
+        if (requested % alignment != 0) {
+            throw new AllocationException(
+                String.format("Requested id (%d) is not aligned to %d",
+                              requested, alignment));
+        }
+
+        for (long id = requested; id < requested + size; id++) {
+            if (!store.contains(id)) {
+                String err = String.format("Requested block (%d-%d) not" +
+                                           " available in pool %s",
+                                           requested, requested + size - 1,
+                                           name);
+                throw new PoolExhaustedException(err);
             }
         }
-        String err = String.format("Requested id (%d) not available in pool %s",
-                                   requested, name);
 
-        throw new PoolExhaustedException(err);
+        return takeBlock(requested, size);
+    }
+
+    private void checkBlock(long size, long alignment)
+        throws AllocationException {
+        if (size < 1) {
+            throw new AllocationException(
+                String.format("Invalid block size %d", size));
+        }
+        if (alignment < 1 || (alignment & (alignment - 1)) != 0) {
+            throw new AllocationException(
+                String.format("Block alignment %d is not a power of two",
+                              alignment));
+        }
+    }
+
+    private static long alignUp(long id, long alignment) {
+        return (id + alignment - 1) & ~(alignment - 1);
+    }
+
+    private Allocation takeBlock(long start, long size) {
+        long end = start + size - 1;
+        store.take(new Range(start, end));
+        for (long id = start; id <= end; id++) {
+            allocations.add(new Allocation(id));
+        }
+
+        this.lastAllocation = end;
+        reviewAlarms();
+        return new Allocation(start);
     }
 
     public synchronized void setRange(Range range) {
@@ -197,118 +324,96 @@ public class IDPool extends Pool {
     }
 
     private void recalculateRanges() {
-        Set<Range> tmp = new HashSet<Range>();
-
-        tmp.add(poolRange);
-        excludeRanges(tmp);
-        for (Allocation id : allocations) {
-            long idInt = id.getAllocated();
-            Set<Range> oldAvailables = new HashSet<Range>(tmp);
-            for (Range availableRange : oldAvailables) {
-                if (!availableRange.contains(idInt)) {
-                    continue;
-                }
-
-                tmp.remove(availableRange);
-                if (availableRange.getStart() == availableRange.getEnd()) {
-                } else if (availableRange.getEnd() == idInt) {
-                    tmp.add(new Range(availableRange.getStart(), idInt - 1));
-                } else if (availableRange.getStart() == idInt) {
-                    tmp.add(new Range(idInt + 1, availableRange.getEnd()));
-                } else if (availableRange.getStart() < idInt) {
-                    tmp.add(new Range(availableRange.getStart(), idInt - 1));
-                    tmp.add(new Range(idInt + 1, availableRange.getEnd()));
-                }
-                break;
-            }
-        }
-
-        /* First remove all that are the same from tmp, and removed
-         * from availables. */
-        Set<Range> toRemove = new HashSet<Range>();
-        for (Range r: availables) {
-            if (tmp.contains(r)) {
-                tmp.remove(r);
-            } else {
-                toRemove.add(r);
-            }
-        }
-
-        for (Range r: toRemove) {
-            availables.remove(r);
-        }
-
-        /* Then add all new. */
-        for (Range r: tmp) {
-            availables.add(r);
-        }
-        setupMinMaxAllocs();
+        selectStore();
+        store.reset(poolRange, sweepAvailables());
+        setupLastAllocation();
     }
 
     /**
-     * Excludes reserved id ranges from the list of available ranges
+     * Computes the available ranges of the pool in a single sweep over
+     * the pool range, the excludes and the allocations, all sorted on
+     * start. Anything not covered by an exclude or an allocation is
+     * available.
      */
-    private void excludeRanges(Set<Range> poolRange) {
-        for (Range reserved : excludes) {
-            Set<Range> oldAvailables = new HashSet<Range>(poolRange);
-            for (Range availableRange : oldAvailables) {
-                if (reserved.isDisjoint(availableRange)) {
-                    continue;
-                }
-
-                /*
-                 * Now we *know* they overlap. Remove the available range.
-                 * If the exclude and availableRange is exactly the same,
-                 * nothing is added later.
-                 */
-                poolRange.remove(availableRange);
-
-                if (availableRange.getStart() < reserved.getStart()) {
-                    poolRange.add(new Range(availableRange.getStart(),
-                                            reserved.getStart() - 1));
-                }
+    private List<Range> sweepAvailables() {
+        List<Range> sortedExcludes = new ArrayList<Range>(excludes);
+        Collections.sort(sortedExcludes);
+
+        long[] ids = new long[allocations.size()];
+        int n = 0;
+        for (Allocation alloc : allocations) {
+            ids[n++] = alloc.getAllocated();
+        }
+        Arrays.sort(ids);
+
+        List<Range> res = new ArrayList<Range>();
+        long cursor = poolRange.getStart();
+        long end = poolRange.getEnd();
+        int e = 0;
+        int i = 0;
+
+        while (cursor <= end) {
+            /* Next taken run, whichever of exclude and allocation is first. */
+            long takenStart;
+            long takenEnd;
+            if (e < sortedExcludes.size() &&
+                (i == ids.length || sortedExcludes.get(e).getStart() <= ids[i])) {
+                takenStart = sortedExcludes.get(e).getStart();
+                takenEnd = sortedExcludes.get(e).getEnd();
+                e++;
+            } else if (i < ids.length) {
+                takenStart = ids[i];
+                takenEnd = ids[i];
+                i++;
+            } else {
+                res.add(new Range(cursor, end));
+                break;
+            }
 
-                if (availableRange.getEnd() > reserved.getEnd()) {
-                    poolRange.add(new Range(reserved.getEnd() + 1,
-                                            availableRange.getEnd()));
-                }
+            if (takenStart > end) {
+                res.add(new Range(cursor, end));
                 break;
             }
+            if (takenStart > cursor) {
+                res.add(new Range(cursor, takenStart - 1));
+            }
+            cursor = Math.max(cursor, takenEnd + 1);
         }
+        return res;
     }
 
-    private void compact(Range range) {
-
-        Set<Range> oldAvailables = new HashSet<Range>(availables);
-        for (Range arange: oldAvailables) {
-            if (arange.equals(range)) {
-                /* Skip myself. */
-                continue;
-            }
+    /*
+     * Switch storage engine if the configured storage, or for AUTO the
+     * width and density of the pool, calls for another one.
+     */
+    private void selectStore() {
+        boolean bitmap;
+        if (storage == Storage.AUTO) {
+            long width = poolRange.getEnd() - poolRange.getStart() + 1;
+            bitmap = width <= BITMAP_MAX_WIDTH &&
+                (width <= BITMAP_DENSE_WIDTH ||
+                 allocations.size() * BITMAP_MIN_DENSITY >= width);
+        } else {
+            bitmap = storage == Storage.BITMAP;
+        }
 
-            if (arange.getStart() == range.getEnd()+1) {
-                availables.remove(range);
-                availables.remove(arange);
-                Range merged = new Range(range.getStart(), arange.getEnd());
-                availables.add(merged);
-                compact(merged);
-                return;
-            } else if (arange.getEnd() == range.getStart()-1) {
-                availables.remove(range);
-                availables.remove(arange);
-                Range merged = new Range(arange.getStart(), range.getEnd());
-                availables.add(merged);
-                return;
-            }
+        if (bitmap && !(store instanceof BitmapStore)) {
+            LOGGER.debug(String.format("Using bitmap storage for pool %s",
+                                       name));
+            /* The bitmap is not persisted, drop the stored ranges. */
+            availables.clear();
+            store = new BitmapStore();
+        } else if (!bitmap && !(store instanceof RangeStore)) {
+            LOGGER.debug(String.format("Using range storage for pool %s",
+                                       name));
+            store = new RangeStore(availables);
         }
     }
 
     public synchronized void release(long id) throws AllocationException {
-        for(Allocation alloc: allocations) {
-            if (alloc.getAllocated() == id) {
-                release(alloc);
-                return;
-            }
+        Allocation alloc = new Allocation(id);
+        if (allocations.contains(alloc)) {
+            release(alloc);
         }
     }
 
@@ -321,84 +426,91 @@ public class IDPool extends Pool {
         }
 
         allocations.remove(allocation);
-        long id = allocation.getAllocated();
-
-        Set<Range> oldAvailables = new HashSet<Range>(availables);
-        for (Range range : oldAvailables) {
-            if (range.getStart() == id+1) {
-                availables.remove(range);
-                Range newr = new Range(id, range.getEnd());
-                availables.add(newr);
-                compact(newr);
-                return;
-            } else if (range.getEnd() == id-1) {
-                availables.remove(range);
-                Range newr = new Range(range.getStart(),id);
-                availables.add(newr);
-                compact(newr);
-                return;
-            }
-        }
-        availables.add(new Range(id, id));
+        store.free(allocation.getAllocated());
     }
 
-    public boolean isAvailable(long id) {
-        for (Range range : availables) {
-            if (id >= range.getStart() && id <= range.getEnd()) {
-                return true;
+    /**
+     * Release a block of <code>size</code> consecutive ids starting at
+     * <code>start</code>, as allocated by allocateBlock.
+     */
+    public synchronized void releaseBlock(long start, long size)
+        throws AllocationException {
+        long end = start + size - 1;
+        for (long id = start; id <= end; id++) {
+            if (!allocations.contains(new Allocation(id))) {
+                String err = String.format("block %d-%d is not allocated" +
+                                           " from the pool %s",
+                                           start, end, name);
+                throw new AllocationException(err);
             }
         }
-        return false;
-    }
 
-    private void setupMinMaxAllocs() {
-        /* For rr scheme, find the highest allocated id, min and max */
-        Long min = null, max = null, current = null, lastAlloc = null;
-        for(Range range: excludes) {
-            current = range.getStart();
-            if (min == null || current <= min) {
-                min = current;
-            }
-            current = range.getEnd();
-            if (max == null || current >= max) {
-                max = current;
-            }
+        for (long id = start; id <= end; id++) {
+            allocations.remove(new Allocation(id));
         }
-        for(Range range: availables) {
-            current = range.getStart();
-            if (min == null || current <= min) {
-                min = current;
-            }
-            current = range.getEnd();
-            if (max == null || current >= max) {
-                max = current;
+        store.free(new Range(start, end));
+    }
+
+    public synchronized boolean isAvailable(long id) {
+        return store.contains(id);
+    }
+
+    /**
+     * Returns the lowest available id that is greater than or equal
+     * to <code>id</code>, or -1 if there is none.
+     */
+    public synchronized long nextAvailable(long id) {
+        return store.ceiling(id);
+    }
+
+    /**
+     * Find the lowest id that is available in all of the given pools.
+     *
+     * The candidate is moved to the next available id of each pool in
+     * turn until a full pass over the pools leaves it unchanged, which
+     * walks the free ids of all pools in a single ascending pass.
+     *
+     * @param pools the pools to search
+     * @return the lowest common available id, or -1 if there is none
+     */
+    public static long lowestCommonAvailable(Collection<IDPool> pools) {
+        long candidate = 0;
+        boolean moved = true;
+
+        while (moved) {
+            moved = false;
+            for (IDPool pool : pools) {
+                long next = pool.nextAvailable(candidate);
+                if (next == -1L) {
+                    return -1L;
+                }
+                if (next != candidate) {
+                    candidate = next;
+                    moved = true;
+                }
             }
         }
+        return candidate;
+    }
+
+    private void setupLastAllocation() {
+        /* For rr scheme, find the highest allocated id. */
+        Long lastAlloc = null;
         for(Allocation alloc : allocations) {
-            current = alloc.getAllocated();
+            long current = alloc.getAllocated();
             if (lastAlloc == null || current >= lastAlloc) {
                 lastAlloc = current;
             }
         }
         this.lastAllocation = lastAlloc;
-        if (max != null) {
-            this.max = max;
-        }
-        if (min != null) {
-            this.min = min;
-        }
     }
 
     public boolean isEmpty() {
-        return availables.isEmpty();
+        return store.isEmpty();
     }
 
     public long getNumberOfAvailables() {
-        long numberOfAvailables = 0;
-        for (Range range : availables) {
-            numberOfAvailables += range.getEnd() - range.getStart() + 1;
-        }
-        return numberOfAvailables;
+        return store.size();
     }
 
     public long getTotalSize() {
@@ -0,0 +1,181 @@
+package com.tailf.pkg.idpool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/*
+ * Keeps the available ids as a set of disjoint ranges.
+ *
+ * The ranges are written through to the backing set (normally a
+ * RangeSet persisting to CDB) and indexed in memory on range start,
+ * so that lookups, splits and merges are O(log n).
+ */
+class RangeStore implements AvailableStore {
+
+    private Set<Range> availables;
+    private TreeMap<Long, Range> index = new TreeMap<Long, Range>();
+    /* Number of available ids, kept current by add() and remove(). */
+    private long size = 0;
+
+    RangeStore(Set<Range> availables) {
+        this.availables = availables;
+        for (Range range : availables) {
+            index.put(range.getStart(), range);
+            size += range.getEnd() - range.getStart() + 1;
+        }
+    }
+
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean contains(long id) {
+        return find(id) != null;
+    }
+
+    public long first() {
+        if (index.isEmpty()) {
+            return -1L;
+        }
+        return index.firstKey();
+    }
+
+    public long ceiling(long id) {
+        if (find(id) != null) {
+            return id;
+        }
+        Long next = index.higherKey(id);
+        return next == null ? -1L : next;
+    }
+
+    public void take(long id) {
+        Range range = find(id);
+        if (range == null) {
+            return;
+        }
+
+        remove(range);
+
+        if (range.getStart() <= id - 1) {
+            add(new Range(range.getStart(), id - 1));
+        }
+
+        if (id + 1 <= range.getEnd()) {
+            add(new Range(id + 1, range.getEnd()));
+        }
+    }
+
+    public void free(long id) {
+        long start = id;
+        long end = id;
+
+        /* Merge with the free ranges immediately below and above. */
+        Map.Entry<Long, Range> below = index.lowerEntry(id);
+        if (below != null && below.getValue().getEnd() == id - 1) {
+            start = below.getValue().getStart();
+            remove(below.getValue());
+        }
+
+        Range above = index.get(id + 1);
+        if (above != null) {
+            end = above.getEnd();
+            remove(above);
+        }
+
+        add(new Range(start, end));
+    }
+
+    public void take(Range run) {
+        Range range = find(run.getStart());
+        if (range == null || !range.contains(run.getEnd())) {
+            return;
+        }
+
+        remove(range);
+
+        if (range.getStart() < run.getStart()) {
+            add(new Range(range.getStart(), run.getStart() - 1));
+        }
+
+        if (run.getEnd() < range.getEnd()) {
+            add(new Range(run.getEnd() + 1, range.getEnd()));
+        }
+    }
+
+    public void free(Range run) {
+        long start = run.getStart();
+        long end = run.getEnd();
+
+        Map.Entry<Long, Range> below = index.lowerEntry(start);
+        if (below != null && below.getValue().getEnd() == start - 1) {
+            start = below.getValue().getStart();
+            remove(below.getValue());
+        }
+
+        Range above = index.get(end + 1);
+        if (above != null) {
+            end = above.getEnd();
+            remove(above);
+        }
+
+        add(new Range(start, end));
+    }
+
+    public List<Range> ranges() {
+        return new ArrayList<Range>(index.values());
+    }
+
+    public void reset(Range bounds, Collection<Range> ranges) {
+        Set<Range> tmp = new HashSet<Range>(ranges);
+
+        /*
+         * First remove all that are the same from tmp, and removed
+         * from availables.
+         */
+        List<Range> toRemove = new ArrayList<Range>();
+        for (Range r : index.values()) {
+            if (!tmp.remove(r)) {
+                toRemove.add(r);
+            }
+        }
+
+        for (Range r : toRemove) {
+            remove(r);
+        }
+
+        /* Then add all new. */
+        for (Range r : tmp) {
+            add(r);
+        }
+    }
+
+    /* Returns the range containing id, or null. */
+    private Range find(long id) {
+        Map.Entry<Long, Range> e = index.floorEntry(id);
+        if (e != null && e.getValue().contains(id)) {
+            return e.getValue();
+        }
+        return null;
+    }
+
+    private void add(Range range) {
+        index.put(range.getStart(), range);
+        availables.add(range);
+        size += range.getEnd() - range.getStart() + 1;
+    }
+
+    private void remove(Range range) {
+        index.remove(range.getStart());
+        availables.remove(range);
+        size -= range.getEnd() - range.getStart() + 1;
+    }
+}
@@ -1,5 +1,8 @@
 package com.tailf.pkg.ipaddressallocator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.List;
 
@@ -8,12 +11,17 @@ import org.apache.log4j.Logger;
 import com.tailf.pkg.ipaddressallocator.namespaces.ipaddressAllocatorOper;
 import com.tailf.pkg.ipam.Allocation;
 import com.tailf.pkg.ipam.Subnet;
+import com.tailf.pkg.nsoutil.Journal;
+import com.tailf.pkg.nsoutil.PoolLoader;
+import com.tailf.pkg.nsoutil.SetLog;
 import com.tailf.cdb.CdbSession;
 import com.tailf.conf.ConfBuf;
 import com.tailf.conf.ConfIP;
 import com.tailf.conf.ConfObject;
 import com.tailf.conf.ConfPath;
 import com.tailf.conf.ConfUInt8;
+import com.tailf.conf.ConfXMLParam;
+import com.tailf.conf.ConfXMLParamValue;
 
 
 public class AllocationsSet extends HashSet<Allocation> {
@@ -26,12 +34,35 @@ public class AllocationsSet extends HashSet<Allocation> {
     public String poolPath;
 
     private ConfPath allocPath;
+    private Journal<Allocation> journal = new Journal<Allocation>();
+    private SetLog<Allocation> log;
+
+    static final SetLog.Codec<Allocation> CODEC =
+        new SetLog.Codec<Allocation>() {
+        public void write(DataOutput out, Allocation e) throws IOException {
+            AvailablesSet.CODEC.write(out, e.getAllocated());
+            out.writeUTF(e.getOccupant());
+            out.writeUTF(e.getUsername());
+            out.writeUTF(e.getRequestId());
+        }
+
+        public Allocation read(DataInput in) throws IOException {
+            Subnet sub = AvailablesSet.CODEC.read(in);
+            String owner = in.readUTF();
+            String username = in.readUTF();
+            String requestId = in.readUTF();
+            return new Allocation(sub, owner, username, requestId);
+        }
+    };
 
     public AllocationsSet(CdbSession wsess, String poolName) {
         super();
 
         this.wsess = wsess;
         this.poolName = poolName;
+        this.log = new SetLog<Allocation>("ip-allocator", poolName,
+                                          ipaddressAllocatorOper._allocation_,
+                                          CODEC);
 
         /* Populate from allocations stored in CDB oper data */
 
@@ -51,8 +82,32 @@ public class AllocationsSet extends HashSet<Allocation> {
           this.allocPath.append(ipaddressAllocatorOper._allocation_);
 
           int n = wsess.getNumberOfInstances(this.allocPath);
-          if (n > 0) {
-              List<ConfObject[]> objs = wsess.getObjects(5, 0, n, this.allocPath);
+
+          /*
+           * Prefer the local snapshot, as long as it is of the
+           * generation of the set in CDB.
+           */
+          List<Allocation> cached = log.load(wsess, new ConfPath(
+                  "/%s:%s/%s{%s}/%s{%s}",
+                  ipaddressAllocatorOper.prefix,
+                  ipaddressAllocatorOper._ip_allocator_,
+                  ipaddressAllocatorOper._pool_, poolName,
+                  ipaddressAllocatorOper._snapshot_,
+                  ipaddressAllocatorOper._allocation_));
+          if (cached != null && cached.size() == n) {
+              LOGGER.debug(String.format(
+                               "Loaded %d allocations from snapshot", n));
+              for (Allocation e : cached) {
+                  super.add(e);
+              }
+              return;
+          }
+
+          /* Read in chunks, to bound the memory used for large pools. */
+          for (int i = 0; i < n; i += PoolLoader.CHUNK) {
+              List<ConfObject[]> objs =
+                  wsess.getObjects(5, i, Math.min(PoolLoader.CHUNK, n - i),
+                                   this.allocPath);
 
               for (ConfObject[] obj : objs) {
                   String address = ((ConfIP)obj[0]).toString();
@@ -64,6 +119,7 @@ public class AllocationsSet extends HashSet<Allocation> {
                   super.add(new Allocation(sub, owner, username, requestId));
               }
           }
+          log.snapshot(this);
 
         } catch (Exception e) {
             LOGGER.error("Failed to setup up allocationsSet", e);
@@ -74,64 +130,93 @@ public class AllocationsSet extends HashSet<Allocation> {
         return this.allocPath.toString();
     }
 
+    /*
+     * Changes are only recorded in the journal, they are written to
+     * CDB by flush().
+     */
     public boolean add(Allocation e) {
-        boolean res = super.add(e);
-
-        if (res) {
-            try {
-                Subnet sub = e.getAllocated();
-                String x = String.format("%s{%s %s}",
-                        this.allocPath.toString(),
-                        sub.getAddress().getHostAddress(),
-                        Integer.toString(sub.getCIDRMask()));
-                this.wsess.create(x);
-                this.wsess.setElem(new ConfBuf(e.getOccupant()),
-                              new ConfPath(x + "/" +
-                                           ipaddressAllocatorOper._owner_));
-                this.wsess.setElem(new ConfBuf(e.getUsername()),
-                              new ConfPath(x + "/" +
-                                           ipaddressAllocatorOper._username_));
-                this.wsess.setElem(new ConfBuf(e.getRequestId()),
-                              new ConfPath(x + "/" +
-                                           ipaddressAllocatorOper._request_id_));
-            } catch (Exception ex) {
-                LOGGER.error("Error adding allocation to pool", ex);
-            }
-        }
-        return res;
+        journal.touch(e, contains(e));
+        return super.add(e);
     }
 
     public boolean remove(Object o) {
-        boolean res = super.remove(o);
-
-        Allocation e = (Allocation) o;
-
-        if (res) {
-            try {
-                Subnet sub = e.getAllocated();
-                String x = String.format("%s{%s %s}",
-                        this.allocPath.toString(),
-                        sub.getAddress().getHostAddress(),
-                        Integer.toString(sub.getCIDRMask()));
-                this.wsess.delete(x);
-            } catch (Exception ex ) {
-                LOGGER.error("Error removing allocation from pool", ex);
-            }
-
+        if (!(o instanceof Allocation)) {
+            return false;
         }
-
-        return res;
+        journal.touch((Allocation) o, contains(o));
+        return super.remove(o);
     }
 
     public void clear() {
+        journal.clear(this);
         super.clear();
+    }
 
-        try {
-            if (this.wsess.exists(this.allocPath)) {
-                this.wsess.delete(this.allocPath);
-            }
-        } catch (Exception ex ) {
-            LOGGER.error("Error clearing pool", ex);
+    /**
+     * Write the changes made since the last flush to CDB.
+     */
+    public void flush() throws Exception {
+        if (journal.isEmpty()) {
+            return;
         }
+        log.begin(wsess);
+        journal.flush(this, writer);
+        log.commit(this);
+    }
+
+    /**
+     * Write with wsess from now on, for a set that was loaded with
+     * another session.
+     */
+    public void setSession(CdbSession wsess) {
+        this.wsess = wsess;
+    }
+
+    /**
+     * Remove the local snapshot, when the pool is deleted.
+     */
+    public void deleteSnapshot() {
+        log.delete();
+    }
+
+    private String allocationPath(Allocation e) {
+        Subnet sub = e.getAllocated();
+        return String.format("%s{%s %s}",
+                             this.allocPath.toString(),
+                             sub.getAddress().getHostAddress(),
+                             Integer.toString(sub.getCIDRMask()));
     }
+
+    private final Journal.Writer<Allocation> writer =
+        new Journal.Writer<Allocation>() {
+        public void create(Allocation e) throws Exception {
+            String x = allocationPath(e);
+            wsess.create(x);
+            /* Set all leafs of the new entry in one go. */
+            wsess.setValues(new ConfXMLParam[] {
+                    new ConfXMLParamValue(ipaddressAllocatorOper.hash,
+                                          ipaddressAllocatorOper._owner_,
+                                          new ConfBuf(e.getOccupant())),
+                    new ConfXMLParamValue(ipaddressAllocatorOper.hash,
+                                          ipaddressAllocatorOper._username_,
+                                          new ConfBuf(e.getUsername())),
+                    new ConfXMLParamValue(ipaddressAllocatorOper.hash,
+                                          ipaddressAllocatorOper._request_id_,
+                                          new ConfBuf(e.getRequestId()))
+                }, x);
+            log.add(e);
+        }
+
+        public void delete(Allocation e) throws Exception {
+            wsess.delete(allocationPath(e));
+            log.remove(e);
+        }
+
+        public void deleteAll() throws Exception {
+            if (wsess.exists(allocPath)) {
+                wsess.delete(allocPath);
+            }
+            log.clear();
+        }
+    };
 }
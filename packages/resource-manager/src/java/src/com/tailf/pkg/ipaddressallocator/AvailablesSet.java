@@ -1,5 +1,9 @@
 package com.tailf.pkg.ipaddressallocator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetAddress;
 import java.util.Comparator;
 import java.util.List;
 import java.util.TreeSet;
@@ -8,6 +12,10 @@ import org.apache.log4j.Logger;
 
 import com.tailf.pkg.ipaddressallocator.namespaces.ipaddressAllocatorOper;
 import com.tailf.pkg.ipam.Subnet;
+import com.tailf.pkg.ipam.exceptions.InvalidNetmaskException;
+import com.tailf.pkg.nsoutil.Journal;
+import com.tailf.pkg.nsoutil.PoolLoader;
+import com.tailf.pkg.nsoutil.SetLog;
 import com.tailf.cdb.CdbSession;
 import com.tailf.conf.ConfIP;
 import com.tailf.conf.ConfObject;
@@ -25,6 +33,28 @@ public class AvailablesSet extends TreeSet<Subnet> {
     public String poolPath;
 
     private ConfPath availPath;
+    private Journal<Subnet> journal = new Journal<Subnet>();
+    private SetLog<Subnet> log;
+
+    static final SetLog.Codec<Subnet> CODEC = new SetLog.Codec<Subnet>() {
+        public void write(DataOutput out, Subnet sub) throws IOException {
+            byte[] addr = sub.getAddress().getAddress();
+            out.writeByte(addr.length);
+            out.write(addr);
+            out.writeByte(sub.getCIDRMask());
+        }
+
+        public Subnet read(DataInput in) throws IOException {
+            byte[] addr = new byte[in.readUnsignedByte()];
+            in.readFully(addr);
+            int mask = in.readUnsignedByte();
+            try {
+                return new Subnet(InetAddress.getByAddress(addr), mask);
+            } catch (InvalidNetmaskException e) {
+                throw new IOException(e);
+            }
+        }
+    };
 
     public AvailablesSet(CdbSession wsess,
                          String poolName,
@@ -32,6 +62,9 @@ public class AvailablesSet extends TreeSet<Subnet> {
         super(comp);
         this.wsess = wsess;
         this.poolName = poolName;
+        this.log = new SetLog<Subnet>("ip-allocator", poolName,
+                                      ipaddressAllocatorOper._available_,
+                                      CODEC);
 
         try {
           this.availPath = new ConfPath("/%s:%s/%s{%s}",
@@ -48,8 +81,32 @@ public class AvailablesSet extends TreeSet<Subnet> {
           this.availPath.append(ipaddressAllocatorOper._available_);
 
           int n = wsess.getNumberOfInstances(this.availPath);
-          if (n > 0) {
-              List<ConfObject[]> objs = wsess.getObjects(2, 0, n, this.availPath);
+
+          /*
+           * Prefer the local snapshot, as long as it is of the
+           * generation of the set in CDB.
+           */
+          List<Subnet> cached = log.load(wsess, new ConfPath(
+                  "/%s:%s/%s{%s}/%s{%s}",
+                  ipaddressAllocatorOper.prefix,
+                  ipaddressAllocatorOper._ip_allocator_,
+                  ipaddressAllocatorOper._pool_, poolName,
+                  ipaddressAllocatorOper._snapshot_,
+                  ipaddressAllocatorOper._available_));
+          if (cached != null && cached.size() == n) {
+              LOGGER.debug(String.format("Loaded %d subnets from snapshot",
+                                         n));
+              for (Subnet sub : cached) {
+                  super.add(sub);
+              }
+              return;
+          }
+
+          /* Read in chunks, to bound the memory used for large pools. */
+          for (int i = 0; i < n; i += PoolLoader.CHUNK) {
+              List<ConfObject[]> objs =
+                  wsess.getObjects(2, i, Math.min(PoolLoader.CHUNK, n - i),
+                                   this.availPath);
 
               for (ConfObject[] obj : objs) {
                   String address = ((ConfIP)obj[0]).toString();
@@ -58,6 +115,7 @@ public class AvailablesSet extends TreeSet<Subnet> {
                   super.add(sub);
               }
           }
+          log.snapshot(this);
         } catch (Exception e) {
             LOGGER.error("Failed to setup availablesSet", e);
         }
@@ -67,56 +125,78 @@ public class AvailablesSet extends TreeSet<Subnet> {
         return this.availPath.toString();
     }
 
+    /*
+     * Changes are only recorded in the journal, they are written to
+     * CDB by flush().
+     */
     public boolean add(Subnet sub) {
-        boolean res = super.add(sub);
+        journal.touch(sub, contains(sub));
+        return super.add(sub);
+    }
 
-        if (res) {
-            try {
-              String address = sub.getAddress().getHostAddress();
-              String mask = Integer.toString(sub.getCIDRMask());
-              String x = String.format("%s{%s %s}",
-                      this.availPath.toString(),
-                      address,
-                      mask);
-              this.wsess.create(x);
-            } catch (Exception ex) {
-                LOGGER.error("Error adding to AvailablesSet", ex);
-            }
+    public boolean remove(Object o) {
+        if (!(o instanceof Subnet)) {
+            return false;
         }
-
-        return res;
+        journal.touch((Subnet) o, contains(o));
+        return super.remove(o);
     }
 
-    public boolean remove(Object o) {
-        boolean res = super.remove(o);
-        Subnet sub = (Subnet) o;
+    public void clear() {
+        journal.clear(this);
+        super.clear();
+    }
 
-        if (res) {
-            try {
-              String address = sub.getAddress().getHostAddress();
-              String mask = Integer.toString(sub.getCIDRMask());
-              String x = String.format("%s{%s %s}",
-                      this.availPath.toString(),
-                      address,
-                      mask);
-              this.wsess.delete(x);
-            } catch (Exception ex ) {
-                LOGGER.error("Error removing from AvailablesSet", ex);
-            }
+    /**
+     * Write the changes made since the last flush to CDB.
+     */
+    public void flush() throws Exception {
+        if (journal.isEmpty()) {
+            return;
         }
+        log.begin(wsess);
+        journal.flush(this, writer);
+        log.commit(this);
+    }
 
-        return res;
+    /**
+     * Write with wsess from now on, for a set that was loaded with
+     * another session.
+     */
+    public void setSession(CdbSession wsess) {
+        this.wsess = wsess;
     }
 
-    public void clear() {
-        super.clear();
+    /**
+     * Remove the local snapshot, when the pool is deleted.
+     */
+    public void deleteSnapshot() {
+        log.delete();
+    }
 
-        try {
-            if (this.wsess.exists(this.availPath)) {
-                this.wsess.delete(this.availPath);
+    private String subnetPath(Subnet sub) {
+        return String.format("%s{%s %s}",
+                             this.availPath.toString(),
+                             sub.getAddress().getHostAddress(),
+                             Integer.toString(sub.getCIDRMask()));
+    }
+
+    private final Journal.Writer<Subnet> writer = new Journal.Writer<Subnet>() {
+        public void create(Subnet sub) throws Exception {
+            wsess.create(subnetPath(sub));
+            log.add(sub);
+        }
+
+        public void delete(Subnet sub) throws Exception {
+            wsess.delete(subnetPath(sub));
+            log.remove(sub);
+        }
+
+        public void deleteAll() throws Exception {
+            if (wsess.exists(availPath)) {
+                wsess.delete(availPath);
             }
-        } catch (Exception ex ) {
-            LOGGER.error("Error clearing AvailablesSet", ex);
+            log.clear();
         }
-    }
+    };
 }
@@ -1,5 +1,7 @@
 package com.tailf.pkg.ipaddressallocator;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import org.apache.log4j.Logger;
@@ -17,39 +19,84 @@ import com.tailf.cdb.*;
 import com.tailf.maapi.*;
 import com.tailf.ncs.annotations.*;
 import com.tailf.pkg.ipaddressallocator.namespaces.ipaddressAllocator;
+import com.tailf.pkg.ipaddressallocator.namespaces.ipaddressAllocatorOper;
 import com.tailf.pkg.ipam.*;
 import com.tailf.pkg.ipam.util.InetAddressRange;
 import com.tailf.pkg.ipam.exceptions.*;
+import com.tailf.pkg.nsoutil.Batcher;
+import com.tailf.pkg.nsoutil.CdbSessionPool;
+import com.tailf.pkg.nsoutil.IntentLog;
 import com.tailf.pkg.nsoutil.NSOUtil;
+import com.tailf.pkg.nsoutil.OwnerTracker;
+import com.tailf.pkg.nsoutil.PendingResponses;
+import com.tailf.pkg.nsoutil.PoolLoader;
+import com.tailf.pkg.nsoutil.PoolWorkers;
+import com.tailf.pkg.nsoutil.ResultCache;
+import com.tailf.pkg.nsoutil.SetLog;
 import com.tailf.pkg.nsoutil.ToRedeploy;
 import com.tailf.dp.services.ServiceContext;
 
 import java.net.InetAddress;
 import java.net.Inet6Address;
-import java.net.Socket;
 import java.net.SocketException;
 import java.nio.channels.ClosedChannelException;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 
 import com.tailf.navu.*;
 
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class IPAddressAllocator implements ApplicationComponent {
     private static final Logger LOGGER = Logger.getLogger(IPAddressAllocator.class);
 
+    /* Responses for the read APIs, while this node allocates. */
+    private static final ResultCache<AllocStatus> results =
+        new ResultCache<AllocStatus>();
+
     private CdbSubscription sub = null;
-    private CdbSession wsess, isess;
+    private CdbSession wsess, isess, ssess;
+
+    private PoolLoader<Pool> pools =
+        new PoolLoader<Pool>("ip-address-allocator", PoolLoader.WORKERS);
+
+    /* Allocations are processed per pool on these workers. */
+    private PoolWorkers workers =
+        new PoolWorkers("ip-address-allocator", PoolWorkers.WORKERS);
+
+    /* Runs the request processing of each subscription notification. */
+    private ExecutorService requests = Executors.newSingleThreadExecutor();
+
+    /* Acknowledged notifications waiting to be processed. */
+    private Batcher<Request> batcher = new Batcher<Request>();
 
-    private Set<Pool> pools = new HashSet<Pool>();
+    /* Responses waiting for their pools to be written, see commit(). */
+    private PendingResponses<Response> responses =
+        new PendingResponses<Response>();
+
+    /* Requests acknowledged to CDB but not processed yet. */
+    private IntentLog<Request> intents =
+        new IntentLog<Request>(String.format("/%s:%s/%s",
+                                   ipaddressAllocatorOper.prefix,
+                                   ipaddressAllocatorOper._ip_allocator_,
+                                   ipaddressAllocatorOper._intent_),
+                               new RequestCodec());
 
     public IPAddressAllocator() {}
 
@@ -65,6 +112,10 @@ public class IPAddressAllocator implements ApplicationComponent {
               qualifier="ip-address-allocator-reactive-fm-loop-iter")
     private Cdb icdb;
 
+    @Resource(type=ResourceType.CDB, scope=Scope.INSTANCE,
+              qualifier="ip-address-allocator-reactive-fm-loop-intent")
+    private Cdb scdb;
+
     @Resource(type=ResourceType.MAAPI, scope=Scope.INSTANCE,
               qualifier="reactive-fm-ipaddressallocator-m")
     private Maapi maapi;
@@ -82,6 +133,12 @@ public class IPAddressAllocator implements ApplicationComponent {
                 EnumSet.<CdbLockType>of(CdbLockType.LOCK_REQUEST,
                                         CdbLockType.LOCK_WAIT);
             wsess = wcdb.startSession(CdbDBType.CDB_OPERATIONAL, flags);
+
+            /*
+             * Oper session of the subscriber thread, used while the
+             * request thread may be writing with wsess.
+             */
+            ssess = scdb.startSession(CdbDBType.CDB_OPERATIONAL, flags);
             /*
              * System session, either we must pick up the NB username
              * through the fastmap data, or we must have a dedicated
@@ -181,9 +238,17 @@ public class IPAddressAllocator implements ApplicationComponent {
                                     AddressPoolException,
                                     InvalidNetmaskException {
 
-        pools = new HashSet<Pool>();
+        pools.shutdown();
+        results.clear();
+        responses = new PendingResponses<Response>();
+        pools = new PoolLoader<Pool>("ip-address-allocator",
+                                     PoolLoader.WORKERS);
 
-        /* Read existing config and create existing pools */
+        /*
+         * Read existing config and start loading existing pools. They
+         * are loaded in the background, a pool that is needed before
+         * then is loaded right away.
+         */
 
         NavuContext context = new NavuContext(maapi, tid);
         NavuContainer base = new NavuContainer(context);
@@ -197,6 +262,82 @@ public class IPAddressAllocator implements ApplicationComponent {
         for (NavuContainer pool : ipaddressPool.elements()) {
             createPool(pool);
         }
+
+        /*
+         * Requests that were acknowledged to CDB but never processed,
+         * in the order they came in.
+         */
+        try {
+            replayIntents();
+        } catch (Exception e) {
+            LOGGER.error("Could not replay requests", e);
+        }
+
+        /* The replay has answered and written its own requests. */
+        for (Pool pool : flushPools()) {
+            reloadPool(pool);
+        }
+    }
+
+    private void replayIntents() throws Exception {
+        SortedMap<Long, List<Request>> pending = intents.recover(wsess);
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        LOGGER.info(String.format("Replaying %d acknowledged notifications",
+                                  pending.size()));
+        Batcher.Batch<Request> batch = new Batcher.Batch<Request>();
+        for (Map.Entry<Long, List<Request>> entry : pending.entrySet()) {
+            batch.seqs.add(entry.getKey());
+            batch.reqs.addAll(entry.getValue());
+            if (batch.reqs.size() >= Batcher.SIZE) {
+                processBatch(batch);
+                batch = new Batcher.Batch<Request>();
+            }
+        }
+        if (!batch.seqs.isEmpty()) {
+            processBatch(batch);
+        }
+    }
+
+    /*
+     * Process the acknowledged notifications that are queued, as one
+     * batch.
+     */
+    private void processBatch() {
+        try {
+            Batcher.Batch<Request> batch = batcher.take();
+            if (batch != null) {
+                processBatch(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOGGER.error("Failed to remove intent", e);
+        }
+    }
+
+    /*
+     * Process the requests of a batch with one write of the pools and
+     * one redeploy, then remove their intents.
+     */
+    private void processBatch(Batcher.Batch<Request> batch) throws Exception {
+        new RequestThread(new ArrayList<Request>(batch.reqs), wsess).run();
+        for (long seq : batch.seqs) {
+            intents.done(wsess, seq);
+        }
+    }
+
+    /*
+     * Wait for the requests already handed to the request thread.
+     */
+    private void awaitRequests() throws Exception {
+        requests.submit(new Runnable() {
+                public void run() {
+                    ;
+                }
+            }).get();
     }
 
     public void run() {
@@ -234,6 +375,8 @@ public class IPAddressAllocator implements ApplicationComponent {
                     /* Remember new isMaster. */
                     isMaster = updatedIsMaster;
                     if (!updatedIsMaster) {
+                        /* Only the master keeps its results current. */
+                        results.clear();
                         /* This node is not the master node, it should sync. */
                         sub.sync(CdbSubscriptionSyncType.DONE_PRIORITY);
                         continue;
@@ -243,13 +386,16 @@ public class IPAddressAllocator implements ApplicationComponent {
             } catch (Exception e) {
                 LOGGER.error("Failed reading HA mode:", e);
             }
-            ExecutorService executor =
-                Executors.newSingleThreadExecutor();
+            Future<?> processing = null;
 
             try {
+                /*
+                 * Running cannot change until we sync the subscription,
+                 * so the reads below need no lock, and other readers
+                 * are not held up while we iterate.
+                 */
                 isess = icdb.startSession(CdbDBType.CDB_RUNNING,
-                                          EnumSet.of(CdbLockType.LOCK_SESSION,
-                                                     CdbLockType.LOCK_WAIT));
+                                          EnumSet.noneOf(CdbLockType.class));
 
                 ArrayList<Request> reqs = new ArrayList<Request>();
                 EnumSet<DiffIterateFlags> enumSet =
@@ -292,7 +438,31 @@ public class IPAddressAllocator implements ApplicationComponent {
                 isess.endSession();
                 RequestThread IterWorkItems = new RequestThread(reqs, wsess);
 
-                executor.execute(IterWorkItems);
+                long seq = -1L;
+                if (IntentLog.EARLY_ACK && reqs != null && !reqs.isEmpty()) {
+                    try {
+                        seq = intents.append(ssess, reqs);
+                    } catch (Exception e) {
+                        LOGGER.error("Failed to log requests, processing" +
+                                     " them before syncing", e);
+                    }
+                }
+
+                if (seq == -1L) {
+                    processing = requests.submit(IterWorkItems);
+                } else {
+                    /*
+                     * The requests are in the intent log, let CDB go
+                     * on and process them in the background, together
+                     * with those of the notifications around it.
+                     */
+                    batcher.add(seq, reqs);
+                    requests.submit(new Runnable() {
+                            public void run() {
+                                processBatch();
+                            }
+                        });
+                }
             } catch (Exception e) {
                 LOGGER.error("", e);
             } catch (Throwable e) {
@@ -300,16 +470,21 @@ public class IPAddressAllocator implements ApplicationComponent {
             }
 
             try {
-                executor.shutdown();
                 /*
                  * We need to wait for a while, otherwise the sync
                  * lock might be released before we have updated the
                  * resource pool status.
                 */
-                if (!executor.awaitTermination(300000, TimeUnit.MILLISECONDS)) {
-                    LOGGER.warn("Timeout waiting for ip address pool" +
-                                " update!");
-                    executor.shutdownNow();
+                if (processing != null) {
+                    try {
+                        processing.get(300000, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        LOGGER.warn("Timeout waiting for ip address pool" +
+                                    " update!");
+                        processing.cancel(true);
+                    } catch (ExecutionException e) {
+                        LOGGER.error("", e.getCause());
+                    }
                 }
 
                 /*
@@ -334,42 +509,106 @@ public class IPAddressAllocator implements ApplicationComponent {
         }
     }
 
-    private void allocateAddress(HashSet<ToRedeploy> redeps,
-                                 Request req,
-                                 boolean reAlloc)
-        throws IOException, ConfException, NavuException {
+    /*
+     * The CDB session for writing responses: the session of the
+     * request worker this runs on, or the subscriber's own session.
+     */
+    private CdbSession wsess() {
+        return workers.session(wsess);
+    }
+
+    /*
+     * The leaves read from an allocation entry, in the order of
+     * requestData().
+     */
+    private static ConfXMLParam[] requestParams() {
+        return new ConfXMLParam[] {
+            new ConfXMLParamLeaf(ipaddressAllocator.hash,
+                                 ipaddressAllocator._allocating_service),
+            new ConfXMLParamLeaf(ipaddressAllocator.hash,
+                                 ipaddressAllocator._username),
+            new ConfXMLParamLeaf(ipaddressAllocator.hash,
+                                 ipaddressAllocator._id),
+            new ConfXMLParamStart(ipaddressAllocator.hash,
+                                  ipaddressAllocator._request),
+            new ConfXMLParamLeaf(ipaddressAllocator.hash,
+                                 ipaddressAllocator._subnet_size),
+            new ConfXMLParamLeaf(ipaddressAllocator.hash,
+                                 ipaddressAllocator._invert_subnet_size),
+            new ConfXMLParamStop(ipaddressAllocator.hash,
+                                 ipaddressAllocator._request)
+        };
+    }
+
+    private static RequestData requestData(ConfXMLParam[] vals)
+        throws ConfException {
+        ConfObject owner = NSOUtil.getValue(vals[0]);
+        ConfObject username = NSOUtil.getValue(vals[1]);
+        ConfObject id = NSOUtil.getValue(vals[2]);
+        ConfObject subnetSize = NSOUtil.getValue(vals[4]);
+
+        return new RequestData(
+            owner == null ?
+                "" : new ConfPath(((ConfObjectRef) owner).getElems()).toString(),
+            username == null ? "" : username.toString(),
+            id == null ? "" : id.toString(),
+            (int) ((ConfUInt8) subnetSize).longValue(),
+            NSOUtil.exists(vals[5]));
+    }
 
-        String owner = "";
-        String requestId = "";
-        String username = "";
+    /* Read the request of an allocation entry in one call. */
+    private static RequestData readRequest(CdbSession sess, String path)
+        throws IOException, ConfException {
+        return requestData(sess.getValues(requestParams(), path));
+    }
 
-        String allocSPath = req.path + "/" + ipaddressAllocator._allocating_service_;
-        String usernamePath = req.path + "/" + ipaddressAllocator._username_;
-        String idPath = req.path + "/" + ipaddressAllocator._id_;
+    private RequestData readRequest(String path)
+        throws IOException, ConfException {
+        return requestData(maapi.getValues(tid, requestParams(), path));
+    }
 
-        if (maapi.exists(tid, allocSPath)) {
-            ConfObjectRef v = (ConfObjectRef) maapi.getElem(tid, allocSPath);
-            owner = new ConfPath(v.getElems()).toString();
+    private static ConfIPPrefix prefix(Subnet net) throws ConfException {
+        if (net.getAddress() instanceof Inet6Address) {
+            return new ConfIPv6Prefix(net.toString());
         }
+        return new ConfIPv4Prefix(net.toString());
+    }
 
-        username = maapi.getElem(tid, usernamePath).toString();
-        requestId = maapi.getElem(tid, idPath).toString();
-
-
-        int subnetSize = (int) ((ConfUInt8)
-                maapi.
-                getElem(tid, req.path+"/"+
-                    ipaddressAllocator.
-                    _request_+
-                    "/"+
-                    ipaddressAllocator.
-                    _subnet_size_)).
-            longValue();
-        boolean invertSubnetSize = maapi.exists(
-                tid,
-                req.path + "/" +
-                ipaddressAllocator._request_ + "/" +
-                ipaddressAllocator._invert_subnet_size_);
+    /* Make a response written to CDB visible to the read APIs. */
+    private static void publish(ConfPath path, ConfValue subnet,
+                                ConfValue from, ConfValue error)
+        throws ConfException {
+        ConfObject[] kp = path.getKP();
+        AllocStatus res = new AllocStatus();
+        res.subnet = subnet;
+        res.from = from;
+        res.error = error;
+        results.put(((ConfKey) kp[2]).elementAt(0).toString(),
+                    ((ConfKey) kp[0]).elementAt(0).toString(), res);
+    }
+
+    private static void unpublish(ConfPath path) throws ConfException {
+        ConfObject[] kp = path.getKP();
+        results.remove(((ConfKey) kp[2]).elementAt(0).toString(),
+                       ((ConfKey) kp[0]).elementAt(0).toString());
+    }
+
+    /*
+     * Allocate for a request. The response is held back until the
+     * pool is written, see commit().
+     */
+    private void allocateAddress(Request req, boolean reAlloc)
+        throws IOException, ConfException, NavuException {
+
+        RequestData data = req.data != null ?
+            req.data : readRequest(req.path.toString());
+
+        String owner = data.owner;
+        String requestId = data.requestId;
+        String username = data.username;
+
+        int subnetSize = data.subnetSize;
+        boolean invertSubnetSize = data.invertSubnetSize;
 
         int cidr4, cidr6;
         if (invertSubnetSize) {
@@ -379,76 +618,88 @@ public class IPAddressAllocator implements ApplicationComponent {
             cidr4 = cidr6 = subnetSize;
         }
 
+        Response r = new Response();
+        r.path = req.path;
+        r.data = data;
+        r.reAlloc = reAlloc;
+
         Allocation a = null;
         try {
             a = req.pool.ipPool.allocate(cidr4, cidr6, owner, username, requestId);
-
-            /* Write the result and redeploy */
-            Subnet net = a.getAllocated();
-
-            Subnet fromNet = null;
+            r.subnet = a.getAllocated();
 
             for (Subnet sub : req.pool.subnets) {
-                if (sub.contains(net)) {
-                    fromNet = sub;
+                if (sub.contains(r.subnet)) {
+                    r.from = sub;
                     break;
                 }
             }
+        } catch (AddressPoolException ex) {
+            r.error = ex.toString();
+        }
 
-            if (a.getAllocated().getAddress() instanceof Inet6Address) {
-                wsess.setElem(new ConfIPv6Prefix(net.toString()),
-                              req.path+"/"+
-                              ipaddressAllocator._response_+"/"+
-                              ipaddressAllocator._subnet_);
-            } else {
-                wsess.setElem(new ConfIPv4Prefix(net.toString()),
-                              req.path+"/"+
-                              ipaddressAllocator._response_+"/"+
-                              ipaddressAllocator._subnet_);
-            }
+        if (owner != "") {
+            boolean autoReDeploy = getAutoReDeploy(req.pool.path);
+            r.redeploy = !reAlloc || (reAlloc && autoReDeploy);
+        }
 
-            if (fromNet != null &&
-                fromNet.getAddress() instanceof Inet6Address) {
-                wsess.setElem(new ConfIPv6Prefix(fromNet.toString()),
-                              req.path+"/"+
-                              ipaddressAllocator._response_+"/"+
-                              ipaddressAllocator._from_);
-            } else if (fromNet != null) {
-                wsess.setElem(new ConfIPv4Prefix(fromNet.toString()),
-                              req.path+"/"+
+        ConfObject[] kp = req.path.getKP();
+        responses.put(((ConfKey) kp[2]).elementAt(0).toString(),
+                      ((ConfKey) kp[0]).elementAt(0).toString(), r);
+    }
+
+    /*
+     * Write a response held back by allocateAddress() and add its
+     * owner to redeps if it is to be redeployed.
+     */
+    private void writeResponse(Response r, Set<ToRedeploy> redeps)
+        throws IOException, ConfException {
+        if (r.error == null) {
+            wsess().setElem(prefix(r.subnet),
+                          r.path+"/"+
+                          ipaddressAllocator._response_+"/"+
+                          ipaddressAllocator._subnet_);
+
+            if (r.from != null) {
+                wsess().setElem(prefix(r.from),
+                              r.path+"/"+
                               ipaddressAllocator._response_+"/"+
                               ipaddressAllocator._from_);
             }
             /* We need to setCase after setElem due to a bug in NCS */
-            wsess.setCase(ipaddressAllocator.
+            wsess().setCase(ipaddressAllocator.
                           _response_choice_,
                           ipaddressAllocator._ok_,
-                          req.path+"/"+
+                          r.path+"/"+
                           ipaddressAllocator._response_);
-
-        } catch (AddressPoolException ex) {
-            wsess.setElem(new ConfBuf(ex.toString()),
-                          req.path + "/"+
+            publish(r.path, prefix(r.subnet),
+                    r.from == null ? null : prefix(r.from), null);
+        } else {
+            wsess().setElem(new ConfBuf(r.error),
+                          r.path + "/"+
                           ipaddressAllocator._response_+"/"+
                           ipaddressAllocator._error_);
             /* We need to setCase after setElem due to a bug in NCS */
-            wsess.setCase(ipaddressAllocator.
+            wsess().setCase(ipaddressAllocator.
                           _response_choice_,
                           ipaddressAllocator._error_,
-                          req.path+"/"+
+                          r.path+"/"+
                           ipaddressAllocator._response_);
+            publish(r.path, null, null, new ConfBuf(r.error));
         }
 
+        String owner = r.data.owner;
         if (owner != "") {
             /*
              * Redeploy the service that consumes this
-             * data, runs in separate thread
+             * data, runs in separate thread, once none of
+             * its other allocations are outstanding.
              */
-            ToRedeploy t = new ToRedeploy(owner, username);
-            boolean autoReDeploy = getAutoReDeploy(req.pool.path);
+            ToRedeploy t = new ToRedeploy(owner, r.data.username);
 
-            if (!redeps.contains(t)) {
-                if (!reAlloc || (reAlloc && autoReDeploy)) {
+            if (OwnerTracker.getInstance().answered(t, r.path.toString()) &&
+                !redeps.contains(t)) {
+                if (r.redeploy) {
                     redeps.add(t);
                 }
             }
@@ -492,13 +743,13 @@ public class IPAddressAllocator implements ApplicationComponent {
             String responsePath = cdbAllocPath + "/" +
                                   ipaddressAllocator._response_;
 
-            if (((ConfTag) wsess.getCase(ipaddressAllocator.
+            if (((ConfTag) wsess().getCase(ipaddressAllocator.
                                          _response_choice_,responsePath)).
                 getTag().equals(ipaddressAllocator._ok_) &&
-                wsess.getElem(responsePath + "/" + ipaddressAllocator._subnet_)
+                wsess().getElem(responsePath + "/" + ipaddressAllocator._subnet_)
                               != null) {
                 Subnet allocatedSubnet =
-                    new Subnet(wsess.getElem(responsePath + "/" +
+                    new Subnet(wsess().getElem(responsePath + "/" +
                                              ipaddressAllocator._subnet_)
                                .toString());
                 if (subnet.contains(allocatedSubnet) ||
@@ -506,7 +757,8 @@ public class IPAddressAllocator implements ApplicationComponent {
                     allocatedSubnet.contains(subnet)) {
 
                     /* Needs to be reallocated */
-                    wsess.delete(responsePath + "/" + ipaddressAllocator._subnet_);
+                    unpublish(new ConfPath(alloc.getKeyPath()));
+                    wsess().delete(responsePath + "/" + ipaddressAllocator._subnet_);
                     pool.ipPool.release(allocatedSubnet.getAddress());
                     Request r = new Request();
                     r.path = new ConfPath(alloc.getKeyPath());
@@ -518,8 +770,14 @@ public class IPAddressAllocator implements ApplicationComponent {
     }
 
     public void finish() {
+        pools.shutdown();
+        results.clear();
+        requests.shutdownNow();
+        workers.shutdown();
+
         try {
             wsess.endSession();
+            ssess.endSession();
         } catch (ClosedChannelException e) {
             /* Silence here, normal close (redeploy/reload package) */
         } catch (Exception e) {
@@ -529,6 +787,7 @@ public class IPAddressAllocator implements ApplicationComponent {
         try {
             safeclose(cdb);
             safeclose(wcdb);
+            safeclose(scdb);
             try {
                 maapi.finishTrans(tid);
             } catch (Throwable ignore) {
@@ -551,167 +810,277 @@ public class IPAddressAllocator implements ApplicationComponent {
                     tid, path+"/auto-redeploy")).booleanValue();
     }
 
+    /*
+     * Read the configuration of a pool and start loading it. The
+     * configuration is read here, the oper data of the pool is read
+     * by the loader with a session of its own.
+     */
     private void createPool(NavuContainer pool)
         throws ConfException, UnknownHostException, AddressPoolException,
                InvalidNetmaskException, IOException {
+        final PoolConfig conf = new PoolConfig();
+
+        conf.name = pool.leaf(ipaddressAllocator._name).value().toString();
+        conf.path = pool.getKeyPath();
+
+        NavuList poolSubnet = pool.list(ipaddressAllocator.prefix,
+                                        ipaddressAllocator._subnet_);
+
+        for (NavuContainer subnet : poolSubnet.elements()) {
+            String address = subnet.leaf(ipaddressAllocator._address_).
+                value().toString();
+            String mask = subnet.leaf(ipaddressAllocator._cidrmask_).
+                value().toString();
+
+            int imask =
+                (int) ((ConfUInt8) subnet.
+                       leaf(ipaddressAllocator._cidrmask_).
+                       value()).longValue();
+            conf.subnets.put(address+" "+mask, new Subnet(address, imask));
+        }
+
+        NavuList poolExclude = pool.list(ipaddressAllocator.prefix,
+                                         ipaddressAllocator._exclude_);
+
+        for (NavuContainer exclude : poolExclude.elements()) {
+            String address = exclude.leaf(ipaddressAllocator._address_).
+                value().toString();
+            String mask = exclude.leaf(ipaddressAllocator._cidrmask_).
+                value().toString();
+
+            int imask =
+                (int) ((ConfUInt8) exclude.
+                       leaf(ipaddressAllocator._cidrmask_).
+                       value()).longValue();
+            conf.excludes.put(address+" "+mask, new Subnet(address, imask));
+        }
+
+        pools.submit(conf.name, new PoolLoader.Loader<Pool>() {
+                public Pool load(CdbSession sess) throws Exception {
+                    return loadPool(conf, sess);
+                }
+            });
+    }
+
+    /*
+     * Build a pool from its oper data, read with sess. Runs on a
+     * loader thread, so it must only touch the new pool.
+     */
+    private Pool loadPool(PoolConfig conf, CdbSession sess)
+        throws ConfException, IOException {
         AllocationsSet allocations;
         AvailablesSet availables;
-        Set<Subnet> subnets = new HashSet<Subnet>();
-        Set<Subnet> excludes = new HashSet<Subnet>();
+        Set<Subnet> subnets = new HashSet<Subnet>(conf.subnets.values());
+        Set<Subnet> excludes = new HashSet<Subnet>(conf.excludes.values());
+
+        String pname = conf.name;
 
-        String pname = pool.leaf(ipaddressAllocator._name).value().toString();
+        availables = new AvailablesSet(sess, pname, new SubnetComparator());
+        allocations = new AllocationsSet(sess, pname);
 
-        availables = new AvailablesSet(wsess, pname, new SubnetComparator());
-        allocations = new AllocationsSet(wsess, pname);
+        /* The pool is written by the subscriber, with its own session. */
+        availables.setSession(wsess);
+        allocations.setSession(wsess);
 
-        /* Compare configured subnets to known subnets and add/remove */
+        /* Compare configured subnets to known subnets and add new ones */
         String cdbSubnetPath = availables.getAvailablesPath()
                                + "/../" + ipaddressAllocator._subnet_;
 
-        NavuList poolSubnet = pool.list(ipaddressAllocator.prefix,
-                                        ipaddressAllocator._subnet_);
+        IPAddressPool ipPool = new IPAddressPool(pname, availables,
+                                                 allocations, subnets);
+
+        for (Map.Entry<String, Subnet> subnet :
+                 conf.subnets.entrySet()) {
+            String subnetPath = cdbSubnetPath+"{"+subnet.getKey()+"}";
 
-            /* First add those that are new */
-            for (NavuContainer subnet : poolSubnet.elements()) {
-                String address = subnet.leaf(ipaddressAllocator._address_).
-                    value().toString();
-                String mask = subnet.leaf(ipaddressAllocator._cidrmask_).
-                    value().toString();
-
-                int imask =
-                    (int) ((ConfUInt8) subnet.
-                           leaf(ipaddressAllocator._cidrmask_).
-                           value()).longValue();
-                Subnet snet = new Subnet(address, imask);
-                subnets.add(snet);
+            if (!sess.exists(subnetPath)) {
+                ipPool.addToAvailable(subnet.getValue());
+                sess.create(subnetPath);
             }
+        }
 
-            IPAddressPool ipPool = new IPAddressPool(pname, availables,
-                                                     allocations, subnets);
+        /* Compare configured excludes to known excludes and add new ones */
+        String cdbExcludePath = availables.getAvailablesPath()
+                                + "/../" + ipaddressAllocator._exclude_;
+
+        for (Map.Entry<String, Subnet> exclude :
+                 conf.excludes.entrySet()) {
+            Subnet excludedSubnet = exclude.getValue();
+
+            String exPath = cdbExcludePath+"{"+exclude.getKey()+"}";
+            if (!sess.exists(exPath)) {
+                for (Subnet subnet : subnets) {
+                    if (subnet.contains(excludedSubnet)) {
+                        try {
+                            ipPool.removeFromAvailable(excludedSubnet);
+                        } catch (Exception e) {
+                            LOGGER.error("", e);
+                        }
+                    }
+                }
+                sess.create(exPath);
+            }
+        }
 
-            for (NavuContainer subnet : poolSubnet.elements()) {
-                String address = subnet.leaf(ipaddressAllocator._address_).
-                    value().toString();
-                String mask = subnet.leaf(ipaddressAllocator._cidrmask_).
-                    value().toString();
+        Pool po = new Pool();
+        po.ipPool = ipPool;
+        po.availables = availables;
+        po.allocations = allocations;
+        po.subnets = subnets;
+        po.excludes = excludes;
+        po.path = conf.path;
 
-                int imask =
-                    (int) ((ConfUInt8) subnet.
-                           leaf(ipaddressAllocator._cidrmask_).
-                           value()).longValue();
-                Subnet snet = new Subnet(address, imask);
+        return po;
+    }
 
-                String subnetPath = cdbSubnetPath+"{"+address+" "+mask+"}";
+    /*
+     * Write the pools, then the responses held back since the last
+     * commit, and add the services to redeploy to redeps. A subnet is
+     * only handed out once the pool it came from is in CDB, so it is
+     * never free there, not even after a crash.
+     *
+     * A pool that fails to write may be written in part, so it is
+     * loaded again from CDB and the requests answered from it are
+     * allocated again, once. Any that are still not answered are
+     * left without a response.
+     */
+    private void commit(Set<ToRedeploy> redeps) {
+        commit(redeps, true);
+    }
 
-                if (!wsess.exists(subnetPath)) {
-                    ipPool.addToAvailable(snet);
-                    wsess.create(subnetPath);
-                }
+    private void commit(Set<ToRedeploy> redeps, boolean retry) {
+        Map<String, List<Response>> pending = responses.take();
+        Map<String, List<Response>> dropped =
+            new LinkedHashMap<String, List<Response>>();
+        for (Pool pool : flushPools()) {
+            String name = pool.ipPool.getName();
+            List<Response> rs = pending.remove(name);
+            if (rs != null) {
+                dropped.put(name, rs);
             }
+            reloadPool(pool);
+        }
 
-            /* Then remove those that have been removed */
-            Set<String> toDelete = new HashSet<String>();
-
-            for (NavuContainer subnet : poolSubnet.elements()) {
-                String address = subnet.leaf(ipaddressAllocator._address_).
-                        value().toString();
-                String mask = subnet.leaf(ipaddressAllocator._cidrmask_).
-                        value().toString();
+        writeResponses(pending, redeps);
 
-                if (poolSubnet.elem(new String[] {address,mask}) == null) {
-                    int imask =
-                            (int) ((ConfUInt8) subnet.
-                                   leaf(ipaddressAllocator._cidrmask_).
-                                   value()).longValue();
-                    try {
-                        ipPool.removeFromAvailable(new Subnet(address, imask));
-                    } catch (Exception e) {
-                        LOGGER.error("", e);
-                    }
-                    toDelete.add(cdbSubnetPath+"{"+address+" "+mask+"}");
+        if (dropped.isEmpty()) {
+            return;
+        } else if (!retry) {
+            for (List<Response> rs : dropped.values()) {
+                for (Response r : rs) {
+                    LOGGER.error(String.format("Could not answer %s",
+                                               r.path));
                 }
             }
+            return;
+        }
 
-            for (String subnetPath : toDelete) {
-                wsess.delete(subnetPath);
+        for (Map.Entry<String, List<Response>> e : dropped.entrySet()) {
+            Pool pool = pools.get(e.getKey());
+            if (pool == null) {
+                continue;
             }
-
-            /* Compare configured excludess to known excludes and add/remove */
-            String cdbExcludePath = availables.getAvailablesPath()
-                                    + "/../" + ipaddressAllocator._exclude_;
-
-            NavuList poolExclude = pool.list(ipaddressAllocator.prefix,
-                                             ipaddressAllocator._exclude_);
-
-            /* First add those that are new */
-            for (NavuContainer exclude : poolExclude.elements()) {
-                String address = exclude.leaf(ipaddressAllocator._address_).
-                    value().toString();
-                String mask = exclude.leaf(ipaddressAllocator._cidrmask_).
-                    value().toString();
-
-                int imask =
-                    (int) ((ConfUInt8) exclude.
-                           leaf(ipaddressAllocator._cidrmask_).
-                           value()).longValue();
-                Subnet excludedSubnet = new Subnet(address, imask);
-                excludes.add(excludedSubnet);
-
-                String exPath = cdbExcludePath+"{"+address+" "+mask+"}";
-                if (!wsess.exists(exPath)) {
-                    for (Subnet subnet : subnets) {
-                        if (subnet.contains(excludedSubnet)) {
-                            try {
-                                ipPool.removeFromAvailable(excludedSubnet);
-                            } catch (Exception e) {
-                                LOGGER.error("", e);
-                            }
-                        }
-                    }
-                    wsess.create(exPath);
+            for (Response r : e.getValue()) {
+                Request req = new Request();
+                req.path = r.path;
+                req.pool = pool;
+                req.data = r.data;
+                try {
+                    allocateAddress(req, r.reAlloc);
+                } catch (Exception ex) {
+                    LOGGER.error(String.format(
+                        "Error processing allocation %s", req.path), ex);
                 }
             }
+        }
+        commit(redeps, false);
+    }
 
-            toDelete = new HashSet<String>();
-
-            /* Then remove those that have been removed */
-            for (NavuContainer exclude : poolExclude.elements()) {
-                String address = exclude.leaf(ipaddressAllocator._address_).
-                    value().toString();
-                String mask = exclude.leaf(ipaddressAllocator._cidrmask_).
-                    value().toString();
+    /*
+     * Write the changes made to the oper data of each pool since the
+     * last flush. The pool sets only journal their changes, this is
+     * where they reach CDB, once per batch of requests.
+     *
+     * @return the pools that could not be written
+     */
+    private List<Pool> flushPools() {
+        List<Pool> failed = new ArrayList<Pool>();
+        for (Pool pool : pools.loaded()) {
+            try {
+                pool.availables.flush();
+                pool.allocations.flush();
+            } catch (Exception e) {
+                LOGGER.error(String.format("Failed to write pool %s",
+                                           pool.ipPool.getName()), e);
+                failed.add(pool);
+            }
+        }
+        return failed;
+    }
 
-                if (poolExclude.elem(new String[] {address,mask}) == null) {
-                    int imask =
-                        (int) ((ConfUInt8) exclude.leaf(ipaddressAllocator._cidrmask_)
-                                                  .value()).longValue();
+    /*
+     * Replace a pool that failed to write with one loaded from CDB,
+     * since what is in memory may no longer match what is there.
+     * Its snapshots are dropped so the new pool is read from CDB.
+     */
+    private void reloadPool(Pool pool) {
+        String name = pool.ipPool.getName();
+        try {
+            pool.availables.deleteSnapshot();
+            pool.allocations.deleteSnapshot();
+
+            NavuContext context = new NavuContext(maapi, tid);
+            NavuContainer base = new NavuContainer(context);
+            NavuContainer root = base.container(resourceAllocator.hash);
+            NavuContainer resources =
+                root.container(resourceAllocator.prefix,
+                               resourceAllocator._resource_pools_);
+            createPool(resources.list(ipaddressAllocator.prefix,
+                                      ipaddressAllocator._ip_address_pool_).
+                       elem(name));
+        } catch (Exception e) {
+            LOGGER.error(String.format("Failed to reload pool %s", name), e);
+            pools.remove(name);
+        }
+    }
 
-                    Subnet excludeSnet = new Subnet(address, imask);
-                    for (Subnet osub : subnets) {
-                        if (osub.contains(excludeSnet)) {
+    /*
+     * Write responses and make them visible, one job per pool on the
+     * request workers.
+     */
+    private void writeResponses(Map<String, List<Response>> pending,
+                                Set<ToRedeploy> redeps) {
+        final List<HashSet<ToRedeploy>> jobRedeps =
+            new ArrayList<HashSet<ToRedeploy>>();
+        Map<String, Runnable> jobs = new LinkedHashMap<String, Runnable>();
+        for (final Map.Entry<String, List<Response>> e : pending.entrySet()) {
+            final HashSet<ToRedeploy> poolRedeps =
+                new HashSet<ToRedeploy>();
+            jobRedeps.add(poolRedeps);
+            jobs.put(e.getKey(), new Runnable() {
+                    public void run() {
+                        for (Response r : e.getValue()) {
                             try {
-                                 ipPool.addToAvailable(excludeSnet);
-                            } catch (Exception e) {
-                                LOGGER.error("", e);
+                                writeResponse(r, poolRedeps);
+                            } catch (Exception ex) {
+                                LOGGER.error(String.format(
+                                    "Failed to write response %s",
+                                    r.path), ex);
                             }
                         }
                     }
-                    toDelete.add(cdbExcludePath+"{"+address+" "+mask+"}");
-                }
-            }
-
-            for (String subnetPath : toDelete) {
-              wsess.delete(subnetPath);
-            }
-
-        Pool po = new Pool();
-        po.ipPool = ipPool;
-        po.availables = availables;
-        po.subnets = subnets;
-        po.excludes = excludes;
-        po.path = pool.getKeyPath();
+                });
+        }
+        try {
+            workers.runAll(jobs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.error("Interrupted writing responses", e);
+        }
 
-        pools.add(po);
+        for (HashSet<ToRedeploy> poolRedeps : jobRedeps) {
+            redeps.addAll(poolRedeps);
+        }
     }
 
     private void safeclose(Cdb s) {
@@ -722,9 +1091,18 @@ public class IPAddressAllocator implements ApplicationComponent {
         }
     }
 
+    /* Configuration of a pool, keyed by "address mask". */
+    private class PoolConfig {
+        String name;
+        String path;
+        Map<String, Subnet> subnets = new LinkedHashMap<String, Subnet>();
+        Map<String, Subnet> excludes = new LinkedHashMap<String, Subnet>();
+    }
+
     private class Pool {
         IPAddressPool ipPool;
         AvailablesSet availables;
+        AllocationsSet allocations;
         Set<Subnet> subnets;
         Set<Subnet> excludes;
         String path;
@@ -734,6 +1112,28 @@ public class IPAddressAllocator implements ApplicationComponent {
     private enum Type { ALLOC, SUBNET, RANGE, EXCLUDE, POOL,
                         ALARMS_ENABLED, ALARMS_THRESHOLD};
 
+    /*
+     * The request leaves of an allocation. They are read in one call
+     * when the allocation is iterated, so processing it does not need
+     * to read the configuration again.
+     */
+    private static final class RequestData {
+        final String owner;
+        final String username;
+        final String requestId;
+        final int subnetSize;
+        final boolean invertSubnetSize;
+
+        RequestData(String owner, String username, String requestId,
+                    int subnetSize, boolean invertSubnetSize) {
+            this.owner = owner;
+            this.username = username;
+            this.requestId = requestId;
+            this.subnetSize = subnetSize;
+            this.invertSubnetSize = invertSubnetSize;
+        }
+    }
+
     private class Request {
         Pool pool;
         ConfKey poolKey;
@@ -743,6 +1143,8 @@ public class IPAddressAllocator implements ApplicationComponent {
         ConfPath path;
         ConfValue response;
         int alarmThreshold;
+        /* For a new allocation, read when it was iterated. */
+        RequestData data;
 
         public String getAddress() {
             return subnetKey.elementAt(0).toString();
@@ -778,6 +1180,53 @@ public class IPAddressAllocator implements ApplicationComponent {
         }
     }
 
+    /* Requests as stored in the intent log. */
+    private class RequestCodec implements SetLog.Codec<Request> {
+        public void write(DataOutput out, Request r) throws IOException {
+            out.writeUTF(r.type.name());
+            out.writeUTF(r.op.name());
+            IntentLog.writeKey(out, r.poolKey);
+            IntentLog.writeKey(out, r.subnetKey);
+            out.writeUTF(r.path.toString());
+            out.writeBoolean(r.response != null);
+            if (r.response != null) {
+                out.writeUTF(r.response.toString());
+            }
+            out.writeInt(r.alarmThreshold);
+            out.writeBoolean(r.data != null);
+            if (r.data != null) {
+                out.writeUTF(r.data.owner);
+                out.writeUTF(r.data.username);
+                out.writeUTF(r.data.requestId);
+                out.writeInt(r.data.subnetSize);
+                out.writeBoolean(r.data.invertSubnetSize);
+            }
+        }
+
+        public Request read(DataInput in) throws IOException {
+            Request r = new Request();
+            r.type = Type.valueOf(in.readUTF());
+            r.op = Operation.valueOf(in.readUTF());
+            r.poolKey = IntentLog.readKey(in);
+            r.subnetKey = IntentLog.readKey(in);
+            String path = in.readUTF();
+            try {
+                r.path = new ConfPath(path);
+            } catch (Exception e) {
+                throw new IOException("Bad request path " + path, e);
+            }
+            /* Only read as a string, see the release of an allocation. */
+            r.response = in.readBoolean() ? new ConfBuf(in.readUTF()) : null;
+            r.alarmThreshold = in.readInt();
+            if (in.readBoolean()) {
+                r.data = new RequestData(in.readUTF(), in.readUTF(),
+                                         in.readUTF(), in.readInt(),
+                                         in.readBoolean());
+            }
+            return r;
+        }
+    }
+
     private class Iter implements CdbDiffIterate {
         Type itype;
 
@@ -820,6 +1269,12 @@ public class IPAddressAllocator implements ApplicationComponent {
                     r.subnetKey = null;
                 }
 
+                if (itype == Type.ALLOC && r.subnetKey != null) {
+                    /* The response, if any, is about to change. */
+                    results.remove(r.poolKey.elementAt(0).toString(),
+                                   r.subnetKey.elementAt(0).toString());
+                }
+
                 if (op == DiffIterateOperFlag.MOP_CREATED &&
                     itype != Type.ALLOC) {
                     LOGGER.debug(String.format("Got MOP_CREATED " + kp));
@@ -846,12 +1301,26 @@ public class IPAddressAllocator implements ApplicationComponent {
                     r.op = Operation.DELETE;
                     r.type = itype;
 
+                    if (r.type == Type.POOL) {
+                        results.removePool(r.poolKey.elementAt(0).toString());
+                    }
+
                     if (r.type == Type.ALLOC && kp.length <= 5) {
                         LOGGER.debug("ALLOC");
-                        ConfValue v =
-                            wsess.getElem(r.path+"/"+
-                                          ipaddressAllocator._response_ + "/"
-                                          +ipaddressAllocator._subnet_);
+                        OwnerTracker.getInstance().forget(r.path.toString());
+                        String subnetPath = r.path + "/" +
+                            ipaddressAllocator._response_ + "/" +
+                            ipaddressAllocator._subnet_;
+                        /*
+                         * With early acknowledgement the allocation may
+                         * not be answered yet. Its response is gone
+                         * once we sync, so read it after the requests
+                         * before this one are done.
+                         */
+                        if (IntentLog.EARLY_ACK && !ssess.exists(subnetPath)) {
+                            awaitRequests();
+                        }
+                        ConfValue v = ssess.getElem(subnetPath);
                         r.response = v;
                         LOGGER.debug("ALLOC:"+v);
                     }
@@ -860,11 +1329,17 @@ public class IPAddressAllocator implements ApplicationComponent {
                            itype == Type.ALLOC &&
                            kp.length == 7) {
                     ConfPath requestp = new ConfPath(Arrays.copyOfRange(kp,2,kp.length));
-                    if (wsess.exists(requestp+"/"+ipaddressAllocator._response_+ "/"
-                                     +ipaddressAllocator._subnet_)) {
+                    String subnetPath = requestp + "/" +
+                        ipaddressAllocator._response_ + "/" +
+                        ipaddressAllocator._subnet_;
+                    if (IntentLog.EARLY_ACK && !ssess.exists(subnetPath)) {
+                        /* The old request may not be answered yet. */
+                        awaitRequests();
+                    }
+                    if (ssess.exists(subnetPath)) {
                         LOGGER.debug("An allocation already exists, removing old");
                         ConfValue v =
-                            wsess.getElem(requestp+"/"+
+                            ssess.getElem(requestp+"/"+
                                           ipaddressAllocator._response_ + "/"
                                           +ipaddressAllocator._subnet_);
                         r.response = v;
@@ -882,20 +1357,19 @@ public class IPAddressAllocator implements ApplicationComponent {
                     rcreate.subnetKey = (ConfKey) kp[kp.length-5];
                     rcreate.op = Operation.CREATE;
                     rcreate.type = Type.ALLOC;
+                    rcreate.data = readRequest(isess, requestp.toString());
+                    if (rcreate.data.owner != "") {
+                        OwnerTracker.getInstance().expect(
+                            new ToRedeploy(rcreate.data.owner,
+                                           rcreate.data.username),
+                            requestp.toString());
+                    }
                     reqs.add(rcreate);
 
                 } else if (op == DiffIterateOperFlag.MOP_VALUE_SET &&
                            itype == Type.ALARMS_THRESHOLD) {
-                    String low_th =
-                        String.format("/%s:%s/%s%s/%s/%s",
-                                      resourceAllocator.prefix,
-                                      resourceAllocator._resource_pools_,
-                                      ipaddressAllocator._ip_address_pool_,
-                                      r.poolKey,
-                                      ipaddressAllocator._alarms_,
-                                      ipaddressAllocator._low_threshold_alarm_);
                     r.alarmThreshold =
-                        (int) ((ConfUInt8) isess.getElem(low_th)).longValue();
+                        (int) ((ConfUInt8) newValue).longValue();
                     r.poolKey = (ConfKey) kp[kp.length-3];
                     r.op = Operation.CREATE;
                     r.type = itype;
@@ -1167,72 +1641,145 @@ public class IPAddressAllocator implements ApplicationComponent {
         }
     }
 
+    /**
+     * Read results of several ip subnet allocation requests in one
+     * session.
+     *
+     * @param cdb      a <code>Cdb</code> resource
+     * @param poolName name of pool the requests were created in
+     * @param ids      unique allocation ids
+     * @return         the allocated subnet of each request, by
+     *                 allocation id
+     * @throws ResourceErrorException if an allocation has failed,
+     *                                a request does not exist, or
+     *                                the pool does not exist
+     * @throws ResourceWaitException if an allocation is not ready
+     */
+    public static Map<String, ConfIPPrefix> subnetRead(Cdb cdb,
+                                                       String poolName,
+                                                       Collection<String> ids)
+        throws ResourceException, NavuException, ConfException, IOException {
+
+        Map<String, AllocStatus> allocs = cdbAllocations(cdb, poolName, ids);
+        Map<String, ConfIPPrefix> res =
+            new LinkedHashMap<String, ConfIPPrefix>();
+
+        for (String id : ids) {
+            AllocStatus alloc = allocs.get(id);
+            if (alloc == null) {
+                throw new ResourceErrorException(String.format("No such" +
+                                                     " allocation: %s", id));
+            } else if (alloc.subnet != null) {
+                res.put(id, (ConfIPPrefix) alloc.subnet);
+            } else if (alloc.error != null) {
+                throw new ResourceErrorException(alloc.error.toString());
+            } else {
+                throw new ResourceWaitException(String.format("Not ready:" +
+                                                              " %s", id));
+            }
+        }
+        return res;
+    }
+
     private static AllocStatus cdbAllocation(Cdb cdb, String poolName,
                                              String id)
         throws NavuException, ResourceErrorException, ConfException, IOException
     {
-        Cdb myCdb = null;
-        CdbSession session = null;
-        try {
-            /* Create a new Cdb instance */
-            Socket cdbSock = cdb.getSocket();
-            InetAddress ia = cdbSock.getInetAddress();
-            int port = cdbSock.getPort();
-            myCdb = new Cdb("cbdAllocation", new Socket(ia, port));
-
-            session = myCdb.startSession(CdbDBType.CDB_RUNNING,
-                                         EnumSet.of(CdbLockType.LOCK_REQUEST,
-                                                    CdbLockType.LOCK_WAIT));
-
-            ConfPath poolPath = new ConfPath("/%s:%s/%s:%s{%s}",
-                    resourceAllocator.prefix,
-                        resourceAllocator._resource_pools_,
-                    ipaddressAllocator.prefix,
-                        ipaddressAllocator._ip_address_pool_,
-                    poolName);
+        return cdbAllocations(cdb, poolName,
+                              Collections.singletonList(id)).get(id);
+    }
+
+    /*
+     * The status of each allocation that exists, from the results
+     * of this allocator or read with pooled sessions.
+     */
+    private static Map<String, AllocStatus> cdbAllocations(
+        Cdb cdb, String poolName, Collection<String> ids)
+        throws NavuException, ResourceErrorException, ConfException, IOException
+    {
+        Map<String, AllocStatus> res = new HashMap<String, AllocStatus>();
+        List<String> missing = new ArrayList<String>();
+        for (String id : ids) {
+            AllocStatus alloc = results.get(poolName, id);
+            if (alloc != null) {
+                res.put(id, alloc);
+            } else {
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()) {
+            return res;
+        }
 
+        ConfPath poolPath = new ConfPath("/%s:%s/%s:%s{%s}",
+                resourceAllocator.prefix,
+                    resourceAllocator._resource_pools_,
+                ipaddressAllocator.prefix,
+                    ipaddressAllocator._ip_address_pool_,
+                poolName);
+        List<String> existing = new ArrayList<String>();
+
+        CdbSessionPool runPool = CdbSessionPool.running();
+        CdbSession session = runPool.take(cdb);
+        boolean ok = false;
+        try {
             if (session.exists(poolPath) == false) {
                 LOGGER.info(String.format("Checking response ready for missing ip address pool '%s'", poolName));
-                return null;
+                ok = true;
+                return res;
             }
 
-            ConfPath allocPath = poolPath.copyAppend("/allocation{" + id + "}");
-
-            if (session.exists(allocPath) == false) {
-                return null;
+            for (String id : missing) {
+                if (session.exists(
+                        poolPath.copyAppend("/allocation{" + id + "}"))) {
+                    existing.add(id);
+                }
             }
+            ok = true;
+        }
+        finally {
+            if (ok) {
+                runPool.put(session);
+            } else {
+                runPool.discard(session);
+            }
+        }
 
-            session.endSession();
-            session = myCdb.startSession(CdbDBType.CDB_OPERATIONAL,
-                                         EnumSet.of(CdbLockType.LOCK_REQUEST,
-                                                    CdbLockType.LOCK_WAIT));
-
-            ConfPath fromPath = allocPath.copyAppend("/response/from");
-            ConfPath subnetPath = allocPath.copyAppend("/response/subnet");
-            ConfPath errPath = allocPath.copyAppend("/response/error");
+        CdbSessionPool operPool = CdbSessionPool.operational();
+        session = operPool.take(cdb);
+        ok = false;
+        try {
+            for (String id : existing) {
+                ConfPath allocPath =
+                    poolPath.copyAppend("/allocation{" + id + "}");
+                ConfPath fromPath = allocPath.copyAppend("/response/from");
+                ConfPath subnetPath = allocPath.copyAppend("/response/subnet");
+                ConfPath errPath = allocPath.copyAppend("/response/error");
 
-            AllocStatus res = new AllocStatus();
+                AllocStatus alloc = new AllocStatus();
 
-            if (session.exists(fromPath)) {
-                res.from = session.getElem(fromPath);
-            }
+                if (session.exists(fromPath)) {
+                    alloc.from = session.getElem(fromPath);
+                }
 
-            if (session.exists(subnetPath)) {
-                res.subnet = session.getElem(subnetPath);
-            }
+                if (session.exists(subnetPath)) {
+                    alloc.subnet = session.getElem(subnetPath);
+                }
 
-            if (session.exists(errPath)) {
-                res.error = session.getElem(errPath);
+                if (session.exists(errPath)) {
+                    alloc.error = session.getElem(errPath);
+                }
+                res.put(id, alloc);
             }
+            ok = true;
 
             return res;
         }
         finally {
-            if (session != null) {
-                session.endSession();
-            }
-            if (myCdb != null) {
-                myCdb.close();
+            if (ok) {
+                operPool.put(session);
+            } else {
+                operPool.discard(session);
             }
         }
     }
@@ -1243,6 +1790,17 @@ public class IPAddressAllocator implements ApplicationComponent {
         ConfValue error = null;
     }
 
+    /* A response held back until its pool is written, see commit(). */
+    private static class Response {
+        ConfPath path;
+        RequestData data;
+        Subnet subnet = null;
+        Subnet from = null;
+        String error = null;
+        boolean reAlloc;
+        boolean redeploy = false;
+    }
+
     private class RequestThread implements Runnable {
 
         private ArrayList<Request> reqs;
@@ -1284,13 +1842,7 @@ public class IPAddressAllocator implements ApplicationComponent {
                     }
                     LOGGER.debug(String.format("Processing a %s %s", req.type,
                                                req.op));
-                    Pool pool = null;
-                    for (Pool p : pools) {
-                        if (p.ipPool.getName().equals(req.poolKey.elementAt(0).toString())) {
-                            pool = p;
-                            break;
-                        }
-                    }
+                    Pool pool = pools.get(req.poolKey.elementAt(0).toString());
 
                     if (pool == null) {
                         LOGGER.error(String.format("No matching pool found: %s",
@@ -1335,7 +1887,7 @@ public class IPAddressAllocator implements ApplicationComponent {
                              * and we can remove the subnet
                              */
                             wsess.delete(subnetPath);
-                            pool.subnets.remove(sub);
+                            pool.ipPool.removeSubnet(sub);
                             try {
                                 pool.ipPool.removeFromAvailable(sub);
                             } catch (Exception e) {
@@ -1360,14 +1912,7 @@ public class IPAddressAllocator implements ApplicationComponent {
                     }
                     LOGGER.debug(String.format("Processing a %s %s",
                                                req.type, req.op));
-                    Pool pool = null;
-
-                    for (Pool p : pools) {
-                        if (p.ipPool.getName().equals(req.poolKey.elementAt(0).toString())) {
-                            pool = p;
-                            break;
-                        }
-                    }
+                    Pool pool = pools.get(req.poolKey.elementAt(0).toString());
 
                     if (pool == null &&
                         !(req.type == Type.POOL &&
@@ -1401,7 +1946,9 @@ public class IPAddressAllocator implements ApplicationComponent {
                             /* An existing pool has been removed, cleanup */
                             try {
                                 pool.ipPool.clearAllAlarms();
-                                pools.remove(pool);
+                                pools.remove(pool.ipPool.getName());
+                                pool.availables.deleteSnapshot();
+                                pool.allocations.deleteSnapshot();
                                 /* Delete CDB oper structures for pool */
                                 wsess.delete(pool.availables.getAvailablesPath()
                                              + "/..");
@@ -1434,7 +1981,7 @@ public class IPAddressAllocator implements ApplicationComponent {
                             if (!wsess.exists(subnetPath)) {
                                 pool.ipPool.addToAvailable(sub);
                                 wsess.create(subnetPath);
-                                pool.subnets.add(sub);
+                                pool.ipPool.addSubnet(sub);
 
                                 /* Check all excludes */
                                 for (Subnet esub : pool.excludes) {
@@ -1544,6 +2091,7 @@ public class IPAddressAllocator implements ApplicationComponent {
                              * Clean up oper data, and de-allocate
                              */
                             try {
+                                unpublish(req.path);
                                 try {
                                     wsess.setCase(
                                         ipaddressAllocator._response_choice_,
@@ -1603,39 +2151,34 @@ public class IPAddressAllocator implements ApplicationComponent {
                     }
                 }
 
-                for (Request reallocReq : reallocReqs) {
-                    allocateAddress(redeps, reallocReq, false);
-                }
-
-                reallocReqs = new ArrayList<Request>();
-
-                /* Finally do all new allocations */
+                /*
+                 * Finally do all new allocations, after the
+                 * reallocations of the same pool.
+                 */
 
                 for (Request req : reqs) {
 
                     if (req.type == Type.ALLOC && req.op == Operation.CREATE) {
-                        Pool pool = null;
-
-                        for (Pool p : pools) {
-                            String requestPoolKey =
-                                req.poolKey.elementAt(0).toString();
-                            if (p.ipPool.getName().equals(requestPoolKey)) {
-                                pool = p;
-                                break;
-                            }
-                        }
+                        Pool pool =
+                            pools.get(req.poolKey.elementAt(0).toString());
 
                         if (pool == null)  {
                             continue;
                         }
 
                         req.pool = pool;
-                        allocateAddress(redeps, req, false);
+                        reallocReqs.add(req);
                     } else {
                         continue;
                     }
                 }
 
+                processAllocations(reallocReqs);
+                reallocReqs = new ArrayList<Request>();
+
+                /* The retries below read the error responses from CDB. */
+                commit(redeps);
+
                 LOGGER.debug("Subscription processing done");
 
                 /*
@@ -1687,11 +2230,14 @@ public class IPAddressAllocator implements ApplicationComponent {
                                 Request r = new Request();
                                 r.path = new ConfPath(alloc.getKeyPath());
                                 r.pool = p;
-                                allocateAddress(redeps, r, true);
+                                allocateAddress(r, true);
                             }
                         }
                     }
 
+                    /* Write the changed pools, then the responses. */
+                    commit(redeps);
+
                     LOGGER.debug("REDEPLOYING....");
 
                     /* invoke redeploy */
@@ -1717,5 +2263,43 @@ public class IPAddressAllocator implements ApplicationComponent {
                 LOGGER.error("", e);
             }
         }
+
+        /*
+         * Do the allocations, one job per pool on the request workers,
+         * and wait for them. The allocations of a pool are done in
+         * order, different pools in parallel.
+         */
+        private void processAllocations(List<Request> allocs)
+            throws InterruptedException {
+            Map<String, List<Request>> byPool =
+                new LinkedHashMap<String, List<Request>>();
+            for (Request req : allocs) {
+                String poolName = req.pool.ipPool.getName();
+                List<Request> poolReqs = byPool.get(poolName);
+                if (poolReqs == null) {
+                    poolReqs = new ArrayList<Request>();
+                    byPool.put(poolName, poolReqs);
+                }
+                poolReqs.add(req);
+            }
+
+            Map<String, Runnable> jobs = new LinkedHashMap<String, Runnable>();
+            for (final Map.Entry<String, List<Request>> e : byPool.entrySet()) {
+                jobs.put(e.getKey(), new Runnable() {
+                        public void run() {
+                            for (Request req : e.getValue()) {
+                                try {
+                                    allocateAddress(req, false);
+                                } catch (Exception ex) {
+                                    LOGGER.error(String.format(
+                                        "Error processing allocation %s",
+                                        req.path), ex);
+                                }
+                            }
+                        }
+                    });
+            }
+            workers.runAll(jobs);
+        }
     }
 }
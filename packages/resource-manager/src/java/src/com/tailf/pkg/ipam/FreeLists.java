@@ -0,0 +1,141 @@
+package com.tailf.pkg.ipam;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import com.tailf.pkg.ipam.exceptions.InvalidNetmaskException;
+
+/*
+ * Keeps the available subnets of an IPAddressPool as free lists, one
+ * per address family and prefix length, the way a buddy allocator
+ * does.
+ *
+ * The subnets are written through to the backing set (normally an
+ * AvailablesSet persisting to CDB) and indexed in memory, so that the
+ * narrowest free subnet of a size, or the free subnet containing a
+ * given one, is found with one lookup per prefix length.
+ */
+class FreeLists {
+
+    private Set<Subnet> availables;
+    private List<TreeSet<Subnet>> v4 = levels(Subnet.MAX_PREFIX4);
+    private List<TreeSet<Subnet>> v6 = levels(Subnet.MAX_PREFIX6);
+
+    FreeLists(Set<Subnet> availables) {
+        this.availables = availables;
+        reload();
+    }
+
+    /**
+     * Rebuild the free lists from the backing set, after it has been
+     * changed behind our back.
+     */
+    void reload() {
+        for (TreeSet<Subnet> level : v4) {
+            level.clear();
+        }
+        for (TreeSet<Subnet> level : v6) {
+            level.clear();
+        }
+        for (Subnet subnet : availables) {
+            level(subnet).add(subnet);
+        }
+    }
+
+    boolean contains(Subnet subnet) {
+        return level(subnet).contains(subnet);
+    }
+
+    /**
+     * The free subnets with the given prefix length, lowest address
+     * first.
+     */
+    SortedSet<Subnet> level(boolean ipv6, int prefix) {
+        return (ipv6 ? v6 : v4).get(prefix);
+    }
+
+    /**
+     * The free subnet that contains subnet, or null if no part of it
+     * is free.
+     */
+    Subnet containing(Subnet subnet) {
+        boolean ipv6 = subnet.getFirstAddress().isIPv6();
+        for (int prefix = subnet.getCIDRMask(); prefix >= 0; prefix--) {
+            SortedSet<Subnet> level = level(ipv6, prefix);
+            if (level.isEmpty()) {
+                continue;
+            }
+            try {
+                Subnet candidate = new Subnet(subnet.getFirstAddress(), prefix);
+                if (level.contains(candidate)) {
+                    return candidate;
+                }
+            } catch (InvalidNetmaskException e) {
+                throw new Error(e); // Can not happen, prefix is narrowed
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The free subnets inside subnet that are narrower than it.
+     */
+    List<Subnet> within(Subnet subnet) {
+        List<Subnet> result = new ArrayList<Subnet>();
+        boolean ipv6 = subnet.getFirstAddress().isIPv6();
+        int max = subnet.getSingleHostPrefix();
+        for (int prefix = subnet.getCIDRMask() + 1; prefix <= max; prefix++) {
+            TreeSet<Subnet> level = (ipv6 ? v6 : v4).get(prefix);
+            if (level.isEmpty()) {
+                continue;
+            }
+            try {
+                /* The first and the last subnet of this size in subnet. */
+                Subnet first = new Subnet(subnet.getFirstAddress(), prefix);
+                Subnet last = new Subnet(subnet.getLastAddress(), prefix);
+                result.addAll(level.subSet(first, true, last, true));
+            } catch (InvalidNetmaskException e) {
+                throw new Error(e); // Can not happen, prefix is at most max
+            }
+        }
+        return result;
+    }
+
+    boolean add(Subnet subnet) {
+        if (!availables.add(subnet)) {
+            return false;
+        }
+        level(subnet).add(subnet);
+        return true;
+    }
+
+    boolean remove(Subnet subnet) {
+        if (!availables.remove(subnet)) {
+            return false;
+        }
+        level(subnet).remove(subnet);
+        return true;
+    }
+
+    void clear() {
+        availables.clear();
+        reload();
+    }
+
+    private TreeSet<Subnet> level(Subnet subnet) {
+        boolean ipv6 = subnet.getFirstAddress().isIPv6();
+        return (ipv6 ? v6 : v4).get(subnet.getCIDRMask());
+    }
+
+    private static List<TreeSet<Subnet>> levels(int max) {
+        List<TreeSet<Subnet>> levels = new ArrayList<TreeSet<Subnet>>();
+        for (int prefix = 0; prefix <= max; prefix++) {
+            /* All subnets of a level have the same mask, so by address. */
+            levels.add(new TreeSet<Subnet>(new SubnetComparator()));
+        }
+        return levels;
+    }
+}
@@ -1,9 +1,8 @@
 package com.tailf.pkg.ipam;
 
 import java.io.Serializable;
+import java.math.BigInteger;
 import java.net.InetAddress;
-import java.net.Inet4Address;
-import java.net.Inet6Address;
 import java.util.Collection;
 import java.util.Set;
 
@@ -14,7 +13,7 @@ import com.tailf.pkg.ipam.exceptions.AddressPoolException;
 import com.tailf.pkg.ipam.exceptions.AddressPoolMaskInvalidException;
 import com.tailf.pkg.ipam.exceptions.AddressRequestNotAvailableException;
 import com.tailf.pkg.ipam.exceptions.InvalidNetmaskException;
-import com.tailf.pkg.ipam.util.InetAddressRangeSet;
+import com.tailf.pkg.ipam.util.Address;
 
 import com.tailf.pkg.ipaddressallocator.namespaces.ipaddressAllocator;
 import com.tailf.pkg.nsoutil.Pool;
@@ -32,8 +31,20 @@ public class IPAddressPool extends Pool implements Serializable {
                                   *  addresses from these networks
                                   */
     private Set<Subnet> availables;
+    private FreeLists free;
     private Set<Allocation> allocations;
 
+    /*
+     * Sum of Subnet.exactSize() over availables and subnets. They are
+     * updated on every change to the sets, so that alarm evaluation
+     * does not have to walk them.
+     */
+    private BigInteger availableCount = BigInteger.ZERO;
+    private BigInteger totalCount = BigInteger.ZERO;
+
+    private static final BigInteger LONG_MAX =
+        BigInteger.valueOf(Long.MAX_VALUE);
+
     private String name;
 
     public IPAddressPool(String name,
@@ -48,8 +59,16 @@ public class IPAddressPool extends Pool implements Serializable {
 
         this.name = name;
         this.availables = availables;
+        this.free = new FreeLists(availables);
         this.allocations = allocations;
         this.subnets = subnets;
+
+        for (Subnet subnet : availables) {
+            availableCount = availableCount.add(subnet.exactSize());
+        }
+        for (Subnet subnet : subnets) {
+            totalCount = totalCount.add(subnet.exactSize());
+        }
     }
 
     public String getName() {
@@ -75,31 +94,17 @@ public class IPAddressPool extends Pool implements Serializable {
                                             String requestId)
         throws AddressPoolException {
         /*
-         * Iterate through available subnets. The set is ordered from
-         * narrowest to widest so we will choose the narrowest subnet
-         * that fits the requested size.
+         * Take the narrowest free subnet that fits the requested
+         * size, of either address family.
          */
-        for (Subnet availableSubnet : availables) {
-            int cidr;
-
-            InetAddress address = availableSubnet.getAddress();
-            if (address instanceof Inet4Address) {
-                cidr = cidr4;
-            } else if (address instanceof Inet6Address) {
-                cidr = cidr6;
-            } else {
-                throw new Error("Unsupported IP version");
-            }
-
-            if (availableSubnet.getCIDRMask() == cidr &&
-                notNetworkBroadcast(availableSubnet, cidr)) {
-                availables.remove(availableSubnet);
-                allocations.add(new Allocation(availableSubnet, owner, username, requestId));
-                reviewAlarms();
-                return new Allocation(availableSubnet, owner, username, requestId);
-            } else if (availableSubnet.getCIDRMask() < cidr) {
-                return allocateFrom(availableSubnet, cidr, owner, username, requestId);
-            }
+        Subnet subnet4 = fit(false, cidr4);
+        Subnet subnet6 = fit(true, cidr6);
+        if (subnet4 != null &&
+            (subnet6 == null ||
+             subnet4.getCIDRMask() >= subnet6.getCIDRMask())) {
+            return allocateFrom(subnet4, cidr4, owner, username, requestId);
+        } else if (subnet6 != null) {
+            return allocateFrom(subnet6, cidr6, owner, username, requestId);
         }
 
         /* If we get here, then there is no room in the pool for the requested subnet */
@@ -122,32 +127,41 @@ public class IPAddressPool extends Pool implements Serializable {
         }
     }
 
+    /**
+     * The narrowest free subnet a subnet with prefix length cidr can
+     * be allocated from, lowest address first, or null if there is
+     * none. One free list is looked at per prefix length.
+     */
+    private Subnet fit(boolean ipv6, int cidr) {
+        int max = ipv6 ? Subnet.MAX_PREFIX6 : Subnet.MAX_PREFIX4;
+        for (int prefix = Math.min(cidr, max); prefix >= 0; prefix--) {
+            if (prefix == cidr) {
+                for (Subnet subnet : free.level(ipv6, prefix)) {
+                    if (notNetworkBroadcast(subnet, cidr)) {
+                        return subnet;
+                    }
+                }
+            } else if (!free.level(ipv6, prefix).isEmpty()) {
+                return free.level(ipv6, prefix).first();
+            }
+        }
+        return null;
+    }
+
     private boolean notNetworkBroadcast(Subnet net, int cidr) {
-        InetAddress a = net.getAddress();
-        if (((a instanceof Inet4Address) && cidr != 32) ||
-            ((a instanceof Inet6Address) && cidr != 128)) {
+        Address a = net.getFirstAddress();
+        if (cidr != a.width()) {
             return true;
         }
 
         for(Subnet sub : subnets) {
-            InetAddress na = sub.getAddress();
-            InetAddress ba = sub.getBroadcast();
-            if (na instanceof Inet6Address) {
-                if (sub.getCIDRMask() > 126) {
-                    /* Don't worry about broadcast for such small networks */
-                    continue;
-                }
-                if (na.equals(a) || ba.equals(a)) {
-                    return false;
-                }
-            } else {
-                if (sub.getCIDRMask() > 30) {
-                    /* Don't worry about broadcast for such small networks */
-                    continue;
-                }
-                if (na.equals(a) || ba.equals(a)) {
-                    return false;
-                }
+            if (sub.getCIDRMask() > sub.getSingleHostPrefix() - 2) {
+                /* Don't worry about broadcast for such small networks */
+                continue;
+            }
+            if (sub.getFirstAddress().equals(a) ||
+                sub.getLastAddress().equals(a)) {
+                return false;
             }
         }
         return true;
@@ -158,57 +172,54 @@ public class IPAddressPool extends Pool implements Serializable {
 
         assert(source.getCIDRMask() <= request);
         /* In any case, source subnet will no longer be available */
-        availables.remove(source);
-        if (source.getCIDRMask() == request) {
-            Allocation a = new Allocation(source, owner, username, requestId);
-            allocations.add(a);
-            reviewAlarms();
-            return a;
-        }
-        /* Split source, make the two halves available, and recurse on the first half. */
-        try {
-            Subnet[] subs = source.split();
-
-            /* Special case here to handle subnet of just two addresses, ie /31. */
-            boolean isIpv6 = source.getAddress() instanceof Inet6Address;
-
-            if ((!isIpv6 && subs.length == 4 && request == 31 ) ||
-                ( isIpv6 && subs.length == 4 && request == 127)) {
-                /*
-                 * Split the four into two twos instead
-                 * Add only single addresses to available.
-                 * add 3rd and 4th to available.
-                 */
-                availables.add(subs[2]);
-                availables.add(subs[3]);
-                /* Allocate as a 2-address "Subnet". */
-                Allocation a = new Allocation(new Subnet(subs[0].getAddress(), request),
-                                              owner, username, requestId);
-                allocations.add(a);
-                reviewAlarms();
-                return a;
-            } else {
-                for (int i = 0; i < subs.length; i++) {
-                    availables.add(subs[i]);
-                }
+        removeAvailable(source);
 
-                int Sub0CIDR = subs[0].getCIDRMask();
+        /*
+         * Split source down to the requested size, keeping the first
+         * half at each level. Only the halves that are not split any
+         * further are made available, so the subnets in between never
+         * touch the free lists.
+         */
+        Subnet allocated = source;
+        int host = source.getSingleHostPrefix();
+        try {
+            while (allocated.getCIDRMask() != request) {
+                Subnet[] subs = allocated.split();
 
-                if ((!isIpv6 && request == 32 &&  Sub0CIDR == 32) ||
-                    ( isIpv6 && request == 128 && Sub0CIDR == 128)) {
+                /* Special case here to handle subnet of just two addresses, ie /31. */
+                if (subs.length == 4 && request == host - 1) {
+                    /*
+                     * Split the four into two twos instead
+                     * Add only single addresses to available.
+                     * add 3rd and 4th to available.
+                     */
+                    addAvailable(subs[2]);
+                    addAvailable(subs[3]);
+                    /* Allocate as a 2-address "Subnet". */
+                    allocated = new Subnet(subs[0].getFirstAddress(), request);
+                    break;
+                }
 
-                    if (notNetworkBroadcast(subs[0], request)) {
-                        return allocateFrom(subs[0], request, owner, username, requestId);
-                    } else {
-                        return allocateFrom(subs[1], request, owner, username, requestId);
+                int keep = 0;
+                if (request == host && subs[0].getCIDRMask() == host &&
+                    !notNetworkBroadcast(subs[0], request)) {
+                    keep = 1;
+                }
+                for (int i = 0; i < subs.length; i++) {
+                    if (i != keep) {
+                        addAvailable(subs[i]);
                     }
-                } else {
-                    return allocateFrom(subs[0], request, owner, username, requestId);
                 }
+                allocated = subs[keep];
             }
         } catch (InvalidNetmaskException e) {
             throw new Error("Internal error, allocation failed", e);
         }
+
+        Allocation a = new Allocation(allocated, owner, username, requestId);
+        allocations.add(a);
+        reviewAlarms();
+        return a;
     }
 
     public synchronized void addToAvailable(Subnet subnet) {
@@ -218,37 +229,109 @@ public class IPAddressPool extends Pool implements Serializable {
             return;
         }
 
-        availables.add(subnet);
+        /* Nothing to do if it is all available already. */
+        if (free.containing(subnet) != null) {
+            return;
+        }
 
         /*
-         * With IP Address Reservation we now have the situation where
-         * the user may allocate subnets and then free portions of the
-         * subnets.  The original code (commented out below) did not
-         * handle this situation correctly.  For example if the
-         * available subnets were 10.1.0.0/32, 10.1.0.1/32,
-         * 10.1.0.2/31, 10.1.0.4/30, 10.1.0.8/29, 10.1.0.16/28,
-         * 10.1.0.32/27, 10.1.0.64/26 and 10.1.0.128/25, and subnet
-         * 10.1.0.0/25 was added to the available pool, it would merge
-         * 10.1.0.18/25 and 10.1.0.0/25 into 10.1.0.0/24, without
-         * removing the others, so many subnets would be in the
-         * available list twice.  Then when for instance 10.1.0.16/28
-         * was reserved and removed, 10.1.0.0/24 would still be there,
-         * and 10.1.0.0/24 includes 10.1.0.16/28
+         * The availables are kept as the widest aligned subnets that
+         * the free addresses make up, with two-address subnets stored
+         * as their two single addresses. With IP Address Reservation
+         * parts of subnet may already be available, those are taken
+         * out first. Then subnet is merged with its buddy for as long
+         * as the buddy is all available, so only the subnets that
+         * actually change are touched.
          */
+        for (Subnet inside : free.within(subnet)) {
+            removeAvailable(inside);
+        }
 
-        /* Put all available addresses into a RangeSet. */
-        InetAddressRangeSet rangeSet = new InetAddressRangeSet(availables);
+        try {
+            Subnet merged = subnet;
+            while (merged.getCIDRMask() > 0 && takeAvailable(buddy(merged))) {
+                merged = new Subnet(merged.getFirstAddress(),
+                                    merged.getCIDRMask() - 1);
+            }
 
-        /* Now copy them into available as subnets. */
-        availables.clear();
+            if (merged.size() == 0) {
+                /* Two-address "Subnet", add its single addresses. */
+                for (Subnet single : merged.split()) {
+                    addAvailable(single);
+                }
+            } else {
+                addAvailable(merged);
+            }
+        } catch (InvalidNetmaskException e) {
+            throw new Error(e); // Should not happen
+        }
+    }
 
-        try {
-            for (Subnet eachSubnet : rangeSet.asSubnetSet()) {
-                assert(eachSubnet instanceof Subnet);
-                availables.add(eachSubnet);
+    /**
+     * Remove subnet from the availables if all of it is available,
+     * either as one subnet or, for a two-address subnet, as two single
+     * addresses.
+     *
+     * @return true if subnet was removed
+     */
+    private boolean takeAvailable(Subnet subnet)
+        throws InvalidNetmaskException {
+        if (free.contains(subnet)) {
+            removeAvailable(subnet);
+            return true;
+        }
+
+        if (subnet.size() == 0) {
+            Subnet[] singles = subnet.split();
+            if (free.contains(singles[0]) && free.contains(singles[1])) {
+                removeAvailable(singles[0]);
+                removeAvailable(singles[1]);
+                return true;
             }
-        } catch (InvalidNetmaskException e1) {
-            throw new Error(e1); // Should not happen
+        }
+        return false;
+    }
+
+    /**
+     * The other half of the subnet one prefix length wider than
+     * subnet.
+     */
+    private static Subnet buddy(Subnet subnet) throws InvalidNetmaskException {
+        int prefix = subnet.getCIDRMask();
+        Address addr = subnet.getFirstAddress();
+        return new Subnet(addr.withBit(prefix - 1, 1 - addr.getBit(prefix - 1)),
+                          prefix);
+    }
+
+    private void addAvailable(Subnet subnet) {
+        if (free.add(subnet)) {
+            availableCount = availableCount.add(subnet.exactSize());
+        }
+    }
+
+    private void removeAvailable(Subnet subnet) {
+        if (free.remove(subnet)) {
+            availableCount = availableCount.subtract(subnet.exactSize());
+        }
+    }
+
+    /**
+     * Add a configured subnet of the pool. The subnet is not made
+     * available, use addToAvailable for that.
+     */
+    public synchronized void addSubnet(Subnet subnet) {
+        if (subnets.add(subnet)) {
+            totalCount = totalCount.add(subnet.exactSize());
+        }
+    }
+
+    /**
+     * Remove a configured subnet of the pool. The subnet is not
+     * removed from the availables, use removeFromAvailable for that.
+     */
+    public synchronized void removeSubnet(Subnet subnet) {
+        if (subnets.remove(subnet)) {
+            totalCount = totalCount.subtract(subnet.exactSize());
         }
     }
 
@@ -278,59 +361,35 @@ public class IPAddressPool extends Pool implements Serializable {
         }
 
         /* Must exactly match an available subnet or be contained in another subnet. */
-        if (availables.contains(subnet)) {
-            availables.remove(subnet);
-        } else {
-            /*
-             * We did not find an exact match, look for subnet
-             * that contains the desired subnet, split and call
-             * recursively
-             */
-            for (Subnet source : availables) {
-                if (source.contains(subnet)) {
-                    /* Split subnet and remove the part we are looking for */
-                    availables.remove(source);
-                    assert(source.getCIDRMask() < subnet.getCIDRMask());
-                    /*
-                     * Split source and put the two halves on the available list
-                     * recurse on the half that contains the subnet
-                     */
-                    try {
-                        Subnet[] subs = source.split();
-
-                        if (subs.length == 4 && subnet.size() == 0) {
-                            /* Split the four into two twos instead. */
-                            Subnet[] newSubs = source.split4into2();
-                            if (newSubs[0].contains(subnet)) {
-                                /* Add 3rd and 4th to available */
-                                availables.add(subs[2]);
-                                availables.add(subs[3]);
-                            } else {
-                                /* Add 1st and 2nd to availables */
-                                availables.add(subs[0]);
-                                availables.add(subs[1]);
-                            }
-
-                            return;
-                        } else {
-                            for (Subnet s : subs) {
-                                availables.add(s);
-                            }
-                            removeFromAvailable(subnet);
-                            return;
-                        }
-                    } catch (InvalidNetmaskException e) {
-                        String err = String
-                            .format("Address %s is not an available subnet defined by the pool",
-                                    subnet);
-                        throw new AddressRequestNotAvailableException(err);
+        Subnet source = free.containing(subnet);
+        if (source == null) {
+            String err =
+                String.format("Address %s is not an available subnet defined by the pool", subnet);
+            throw new AddressRequestNotAvailableException(err);
+        }
+
+        /*
+         * Split source down to subnet, and put the halves that do not
+         * contain it on the available list.
+         */
+        removeAvailable(source);
+        Subnet part = source;
+        try {
+            while (!part.equals(subnet)) {
+                Subnet next = null;
+                for (Subnet s : part.split()) {
+                    if (next == null && s.contains(subnet)) {
+                        next = s;
+                    } else {
+                        addAvailable(s);
                     }
                 }
+                part = next;
             }
-
-            /* No subnet found, throw error */
-            String err =
-                String.format("Address %s is not an available subnet defined by the pool", subnet);
+        } catch (InvalidNetmaskException e) {
+            String err = String
+                .format("Address %s is not an available subnet defined by the pool",
+                        subnet);
             throw new AddressRequestNotAvailableException(err);
         }
     }
@@ -387,18 +446,25 @@ public class IPAddressPool extends Pool implements Serializable {
     }
 
     public long getNumberOfAvailables () {
-        long numberOfAvailables = 0;
-        for (Subnet subnet : availables) {
-            numberOfAvailables += subnet.size();
-        }
-        return numberOfAvailables;
+        return clamp(availableCount);
     }
 
     public long getTotalSize() {
-        long sum = 0;
-        for (Subnet subnet : subnets) {
-            sum += subnet.size();
+        return clamp(totalCount);
+    }
+
+    protected BigInteger getAvailableCount() {
+        return availableCount;
+    }
+
+    protected BigInteger getTotalCount() {
+        return totalCount;
+    }
+
+    private static long clamp(BigInteger count) {
+        if (count.compareTo(LONG_MAX) > 0) {
+            return Long.MAX_VALUE;
         }
-        return sum;
+        return count.longValue();
     }
 }
@@ -1,5 +1,8 @@
 package com.tailf.pkg.ipam;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.math.BigInteger;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
@@ -9,7 +12,7 @@ import java.nio.ByteBuffer;
 import java.util.Iterator;
 
 import com.tailf.pkg.ipam.exceptions.InvalidNetmaskException;
-import com.tailf.pkg.ipam.util.BitString;
+import com.tailf.pkg.ipam.util.Address;
 
 /**
  * Used to represent an IP Subnet in the same spirit as the
@@ -44,11 +47,18 @@ public class Subnet implements java.io.Serializable {
         MAX_PREFIX4   = SIZEOF_INET4 * BITS_PER_BYTE,
         MAX_PREFIX6   = SIZEOF_INET6 * BITS_PER_BYTE;
 
+    /* exactSize() of each prefix length, so it does not allocate. */
+    private static final BigInteger[] SIZES4 = sizes(MAX_PREFIX4);
+    private static final BigInteger[] SIZES6 = sizes(MAX_PREFIX6);
+
     /**********************************************************************/
-    private InetAddress           address;
+    private volatile InetAddress  address;
     private int                   cidrmask;
 
-    private transient InetAddress mask, broadcast;
+    /* The network and broadcast addresses, computed on construction. */
+    private transient Address first, last;
+
+    private transient volatile InetAddress mask, broadcast;
 
     public static final Subnet ANY;
     /* Possible improvement: define "any" subnet for ipv6 */
@@ -123,8 +133,7 @@ public class Subnet implements java.io.Serializable {
                      "Netmask and address must share " +
                      "the same address family");
         }
-        this.cidrmask = mask2prefix(mask);
-        this.address  = networkOf(address, cidrmask);
+        init(Address.of(address), mask2prefix(mask));
         this.mask     = mask;
     }
 
@@ -145,8 +154,25 @@ public class Subnet implements java.io.Serializable {
         } else {
             throw new Error("Unsupported IP version");
         }
-        this.address      = networkOf(address, mask);
-        this.cidrmask     = mask;
+        init(Address.of(address), mask);
+    }
+
+    /**
+     * creates a subnet with the specified network address and mask.
+     *
+     * @param address network address
+     * @param mask netmask in CIDR form
+     *
+     * @throws InvalidNetmaskException if the mask is not valid
+     */
+    public Subnet(Address address, int mask)
+        throws InvalidNetmaskException {
+        if (address.isIPv6()) {
+            checkPrefix6(mask);
+        } else {
+            checkPrefix4(mask);
+        }
+        init(address, mask);
     }
 
     public Subnet(String address, int mask)
@@ -154,6 +180,40 @@ public class Subnet implements java.io.Serializable {
         this(InetAddress.getByName(address), mask);
     }
 
+    private void init(Address a, int prefix) {
+        this.cidrmask = prefix;
+        this.first = a.network(prefix);
+        this.last = a.broadcast(prefix);
+    }
+
+    /*
+     * Only the address and the mask are serialized, the rest is
+     * derived from them.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getAddress();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (address != null) {
+            init(Address.of(address), cidrmask);
+        }
+    }
+
+    private static BigInteger[] sizes(int max) {
+        BigInteger[] sizes = new BigInteger[max + 1];
+        for (int prefix = 0; prefix < max; prefix++) {
+            sizes[prefix] = BigInteger.ONE.shiftLeft(max - prefix).
+                subtract(BigInteger.ONE).
+                subtract(BigInteger.ONE);
+        }
+        sizes[max] = BigInteger.ONE;
+        return sizes;
+    }
+
     private static int parseMask(String smask)
         throws InvalidNetmaskException {
         try {
@@ -293,7 +353,30 @@ public class Subnet implements java.io.Serializable {
      * @return network address
      */
     public InetAddress getAddress() {
-        return address;
+        InetAddress a = address;
+        if (a == null && first != null) {
+            a = first.toInetAddress();
+            address = a;
+        }
+        return a;
+    }
+
+    /**
+     * Returns the network address of the Subnet, as an Address.
+     *
+     * @return first address
+     */
+    public Address getFirstAddress() {
+        return first;
+    }
+
+    /**
+     * Returns the broadcast address of the Subnet, as an Address.
+     *
+     * @return last address
+     */
+    public Address getLastAddress() {
+        return last;
     }
 
     /**
@@ -301,20 +384,22 @@ public class Subnet implements java.io.Serializable {
      *
      * @return network netmask
      */
-    public synchronized InetAddress getMask() {
-        if (mask == null) {
+    public InetAddress getMask() {
+        InetAddress m = mask;
+        if (m == null) {
             try {
-                if (address instanceof Inet4Address) {
-                    mask = prefix2mask4(cidrmask);
-                } else if (address instanceof Inet6Address) {
-                    mask = prefix2mask6(cidrmask);
+                if (first.isIPv6()) {
+                    m = prefix2mask6(cidrmask);
+                } else {
+                    m = prefix2mask4(cidrmask);
                 }
             } catch (InvalidNetmaskException e) {
                 /* Can't happen since it is checked upon construction of the Subnet object */
                 throw new Error(e);
             }
+            mask = m;
         }
-        return mask;
+        return m;
     }
 
     /**
@@ -331,21 +416,13 @@ public class Subnet implements java.io.Serializable {
      *
      * @return an InetAddress representing the network's broadcast address
      */
-    public synchronized InetAddress getBroadcast() {
-        if (broadcast == null) {
-            try {
-                /* Binary OR the address with the complement of the netmask */
-                byte[] bmask = getMask().getAddress();
-                byte[] baddr = address.getAddress();
-                for (int i = 0; i < baddr.length; i++) {
-                    baddr[i] |= (~ bmask[i]);
-                }
-                broadcast = InetAddress.getByAddress(baddr);
-            } catch (UnknownHostException e) {
-                throw new Error(e); // The broadcast address can never be invalid
-            }
+    public InetAddress getBroadcast() {
+        InetAddress b = broadcast;
+        if (b == null) {
+            b = last.toInetAddress();
+            broadcast = b;
         }
-        return broadcast;
+        return b;
     }
 
     /**
@@ -360,7 +437,7 @@ public class Subnet implements java.io.Serializable {
         if (cidrmask > other.cidrmask) {
             return false;
         }
-        return networkOf(other.getAddress(), cidrmask).equals(address);
+        return first.sameNetwork(other.first, cidrmask);
     }
 
     /**
@@ -371,7 +448,7 @@ public class Subnet implements java.io.Serializable {
      * @return true if the address is contained in the subnet.
      */
     public boolean contains(InetAddress a) {
-        return networkOf(a, cidrmask).equals(address);
+        return first.sameNetwork(Address.of(a), cidrmask);
     }
 
     /**
@@ -447,18 +524,11 @@ public class Subnet implements java.io.Serializable {
     }
 
     public int getSingleHostPrefix() {
-        if (address instanceof Inet4Address) {
-            return MAX_PREFIX4;
-        }
-        if (address instanceof Inet6Address) {
-            return MAX_PREFIX6;
-        }
-        throw new Error("Unsupported IP version");
+        return first.width();
     }
 
     public boolean isSingleHost() {
-        return ((address instanceof Inet4Address) && (cidrmask == MAX_PREFIX4))
-            || ((address instanceof Inet6Address) && (cidrmask == MAX_PREFIX6));
+        return first != null && cidrmask == first.width();
     }
 
     /**
@@ -471,27 +541,29 @@ public class Subnet implements java.io.Serializable {
      *         more than Long.MAX_VALUE addresses are available.
      */
     public long size() {
-        if (isSingleHost()) {
+        if (first == null) {
+            return -1; // An empty Subnet() has no address width
+        }
+        int shiftWidth = first.width() - cidrmask;
+        if (shiftWidth == 0) {
             return 1;
+        } else if (shiftWidth >= 64) {
+            return Long.MAX_VALUE; // Return plenty
         } else {
-            int shiftWidth = 0;
-            if (address instanceof Inet4Address) {
-                shiftWidth = MAX_PREFIX4 - cidrmask;
-            } else if (address instanceof Inet6Address) {
-                shiftWidth = MAX_PREFIX6 - cidrmask;
-            }
-            BigInteger res = BigInteger.ONE.shiftLeft(shiftWidth).
-                subtract(BigInteger.ONE).
-                subtract(BigInteger.ONE);
-            BigInteger max = new BigInteger(Long.toString(Long.MAX_VALUE));
-            if (res.compareTo(max) > 0) {
-                return Long.MAX_VALUE; // Return plenty
-            } else {
-                return res.longValue();
-            }
+            return (1L << shiftWidth) - 2;
         }
     }
 
+    /**
+     * Same as {@link #size()}, but exact also for IPv6 subnets with
+     * more than Long.MAX_VALUE addresses.
+     *
+     * @return The number of non-broadcast addresses
+     */
+    public BigInteger exactSize() {
+        return first.isIPv6() ? SIZES6[cidrmask] : SIZES4[cidrmask];
+    }
+
     /*
      * Correct behavior for Object.equals()
      */
@@ -504,7 +576,7 @@ public class Subnet implements java.io.Serializable {
             Subnet other = (Subnet) o;
 
             return (cidrmask == other.cidrmask) &&
-                address.equals(other.address);
+                first.equals(other.first);
         } catch (ClassCastException cce) {
             return false;
         } catch (NullPointerException npe) {
@@ -516,7 +588,7 @@ public class Subnet implements java.io.Serializable {
      * Correct behavior when used in a HashTable
      */
     public int hashCode() {
-        return address.hashCode() ^ cidrmask;
+        return first.hashCode() ^ cidrmask;
     }
 
     /**********************************************************************/
@@ -535,17 +607,17 @@ public class Subnet implements java.io.Serializable {
      * However, only in one of these directions.
      */
     private class SubnetIterator implements Iterator<InetAddress> {
-        private BigInteger i;
-        private BigInteger max;
-        private BigInteger min;
+        private Address i;
+        private Address max;
+        private Address min;
         boolean reverse = false;
 
         private SubnetIterator() {
-            this(address, false);
+            this(getAddress(), false);
         }
 
         private SubnetIterator(boolean reverse) {
-            this(address, reverse);
+            this(getAddress(), reverse);
         }
 
         private SubnetIterator(InetAddress a) {
@@ -554,8 +626,8 @@ public class Subnet implements java.io.Serializable {
 
         private SubnetIterator(InetAddress a, boolean reverse) {
             this.reverse = reverse;
-            min = new BigInteger(1, a.getAddress());
-            max = new BigInteger(1, getBroadcast().getAddress());
+            min = Address.of(a);
+            max = last;
             i = reverse ? max : min;
 
             /*
@@ -563,12 +635,8 @@ public class Subnet implements java.io.Serializable {
              * in the Subnet. In other cases we must make sure
              * to skip the first address in the subnet.
              */
-            if ((! isSingleHost()) && a.equals(address)) {
-                if (reverse) {
-                    i = i.subtract(BigInteger.ONE);
-                } else {
-                    i = i.add(BigInteger.ONE);
-                }
+            if ((! isSingleHost()) && min.equals(first)) {
+                i = i.add(reverse ? -1 : 1);
             }
         }
 
@@ -583,38 +651,8 @@ public class Subnet implements java.io.Serializable {
         }
 
         public InetAddress next() {
-            byte[] naddr = null;
-            int targetSize =
-                (address instanceof Inet4Address) ? SIZEOF_INET4 :
-                (address instanceof Inet6Address) ? SIZEOF_INET6 :
-                0; // Can't happen
-            byte[] baddr = i.toByteArray();
-            if (baddr.length == targetSize) {
-                naddr = baddr;
-            } else if (baddr.length < targetSize) {
-                /* Big int is smaller than what we need */
-                naddr = new byte[targetSize];
-                System.arraycopy(baddr, 0, naddr,
-                                 targetSize - baddr.length,
-                                 baddr.length);
-            } else {
-                /* First byte is 0 (sign bit) and should be ignored */
-                assert((baddr[0] == 0) &&
-                       (baddr.length == targetSize + 1));
-                naddr = new byte[targetSize];
-                System.arraycopy(baddr, 1, naddr, 0, naddr.length);
-            }
-            InetAddress nextAddress = null;
-            try {
-                nextAddress = InetAddress.getByAddress(naddr);
-            } catch (UnknownHostException e) {
-                throw new Error(e); // The next address can never be invalid
-            }
-            if (reverse) {
-                i = i.subtract(BigInteger.ONE);
-            } else {
-                i = i.add(BigInteger.ONE);
-            }
+            InetAddress nextAddress = i.toInetAddress();
+            i = i.add(reverse ? -1 : 1);
             return nextAddress;
         }
 
@@ -660,17 +698,8 @@ public class Subnet implements java.io.Serializable {
         }
 
         Subnet[] result = new Subnet[2];
-        InetAddress network = getAddress();
-        try {
-            result[0] = new Subnet(network, cidrmask + 1);
-            BitString addr = new BitString(network.getAddress());
-            addr.setBit(cidrmask, 1);
-            result[1] = new Subnet(InetAddress.getByAddress(addr.getData()),
-                                   cidrmask + 1);
-        } catch (UnknownHostException e) {
-            /* Flipping bits in an IP address can not cause UnknownHostException */
-            throw new Error(e);
-        }
+        result[0] = new Subnet(first, cidrmask + 1);
+        result[1] = new Subnet(first.withBit(cidrmask, 1), cidrmask + 1);
         return result;
     }
 
@@ -688,47 +717,30 @@ public class Subnet implements java.io.Serializable {
          * Four-address Subnet (smallest REAL subnet).size() == 2.
          * Eight-address Subnet.size() == 6 and so on.
          */
-        boolean isIpv6 = (address instanceof Inet6Address);
-        try {
-            if (size() > 1 || size() == 0) {
-                if (size() > 2) {
-                    Subnet[] result = new Subnet[2];
-                    InetAddress network = getAddress();
-
-                    /* First subnet has the same network address with a wider mask */
-                    result[0] = new Subnet(network, cidrmask + 1);
-
-                    /* Second subnet has the last bit of the wider mask set */
-                    BitString addr = new BitString(network.getAddress());
-                    addr.setBit(cidrmask, 1);
-                    result[1] = new Subnet(InetAddress.getByAddress(addr.getData()),
-                                           cidrmask + 1);
-                    return result;
-                } else if (size() == 0) {
-                    int prefix = isIpv6 ? 128 : 32;
-                    /* Split two-address "Subnet" into 2 /32 or /128 addresses. */
-                    Subnet[] result = new Subnet[2];
-                    InetAddress network = getAddress();
-                    byte[] addr = network.getAddress();
-                    result[0] = new Subnet(InetAddress.getByAddress(addr), prefix);
-                    addr[addr.length-1]++;
-                    result[1] = new Subnet(InetAddress.getByAddress(addr), prefix);
-                    return result;
-                }
-                /* Must split the subnet into 4 /32 or /128 addresses at this point */
-                int prefix = isIpv6 ? 128 : 32;
-                Subnet[] result = new Subnet[4];
-                InetAddress network = getAddress();
-                byte[] addr = network.getAddress();
-                for (int i = 0; i < result.length; i++) {
-                    result[i] = new Subnet(InetAddress.getByAddress(addr), prefix);
-                    addr[addr.length-1]++;
-                }
-                return result;
+        int prefix = first.width();
+        int shiftWidth = prefix - cidrmask;
+        if (shiftWidth > 2) {
+            Subnet[] result = new Subnet[2];
+
+            /* First subnet has the same network address with a wider mask */
+            result[0] = new Subnet(first, cidrmask + 1);
+
+            /* Second subnet has the last bit of the wider mask set */
+            result[1] = new Subnet(first.withBit(cidrmask, 1), cidrmask + 1);
+            return result;
+        } else if (shiftWidth == 1) {
+            /* Split two-address "Subnet" into 2 /32 or /128 addresses. */
+            Subnet[] result = new Subnet[2];
+            result[0] = new Subnet(first, prefix);
+            result[1] = new Subnet(first.add(1), prefix);
+            return result;
+        } else if (shiftWidth == 2) {
+            /* Must split the subnet into 4 /32 or /128 addresses at this point */
+            Subnet[] result = new Subnet[4];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = new Subnet(first.add(i), prefix);
             }
-        } catch (UnknownHostException e) {
-            /* Splitting a subnet can not reasonably cause an UnknownHostException */
-            throw new Error(e);
+            return result;
         }
         throw new InvalidNetmaskException("Can't split subnet further");
     }
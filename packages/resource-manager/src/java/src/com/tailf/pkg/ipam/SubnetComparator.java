@@ -2,17 +2,21 @@ package com.tailf.pkg.ipam;
 
 import java.util.Comparator;
 
+import com.tailf.pkg.ipam.util.Address;
+
 public class SubnetComparator implements Comparator<Subnet> {
     public int compare(Subnet o1, Subnet o2) {
         /* Order first by mask */
         if (o1.getCIDRMask() == o2.getCIDRMask()) {
-            /* Order by address next */
-            byte[] bo1 = o1.getAddress().getAddress();
-            byte[] bo2 = o2.getAddress().getAddress();
-            for (int i = 0; i < bo1.length; i++) {
-                if (bo1[i] != bo2[i]) {
-                    return (bo1[i] & 0xff) - (bo2[i] & 0xff);
-                }
+            /* Order by address next, IPv4 before IPv6 */
+            Address a1 = o1.getFirstAddress();
+            Address a2 = o2.getFirstAddress();
+            if (a1.isIPv6() != a2.isIPv6()) {
+                return a1.isIPv6() ? 1 : -1;
+            }
+            int c = a1.compareTo(a2);
+            if (c != 0) {
+                return c;
             }
         }
         /* Order subnets from narrowest to widest */
@@ -0,0 +1,247 @@
+package com.tailf.pkg.ipam.util;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * An IPv4 or IPv6 address held as an unsigned 128 bit number.
+ *
+ * IPv4 addresses use the low 32 bits of lo, IPv6 addresses use all
+ * of hi and lo. This is an immutable object, and all comparisons and
+ * prefix tests work on the two longs without allocating.
+ *
+ * Addresses are ordered by their value only, so an IPv4 address
+ * compares like its IPv4-compatible IPv6 address, the same way
+ * InetAddressComparator does.
+ */
+public final class Address implements Comparable<Address> {
+
+    private static final long MASK4 = 0xffffffffL;
+
+    private final boolean ipv6;
+    private final long hi;
+    private final long lo;
+
+    private Address(boolean ipv6, long hi, long lo) {
+        this.ipv6 = ipv6;
+        this.hi = ipv6 ? hi : 0;
+        this.lo = ipv6 ? lo : lo & MASK4;
+    }
+
+    public static Address of(InetAddress address) {
+        return of(address.getAddress());
+    }
+
+    /**
+     * @param bytes a 4 or 16 byte address, in network order
+     */
+    public static Address of(byte[] bytes) {
+        if (bytes.length == 16) {
+            return new Address(true, toLong(bytes, 0), toLong(bytes, 8));
+        } else if (bytes.length == 4) {
+            return new Address(false, 0, toLong(bytes, 0) >>> 32);
+        }
+        throw new IllegalArgumentException(
+            String.format("Invalid address length %d", bytes.length));
+    }
+
+    public boolean isIPv6() {
+        return ipv6;
+    }
+
+    /**
+     * The number of bits in the address, 32 or 128.
+     */
+    public int width() {
+        return ipv6 ? 128 : 32;
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[ipv6 ? 16 : 4];
+        if (ipv6) {
+            putLong(bytes, 0, hi);
+            putLong(bytes, 8, lo);
+        } else {
+            for (int i = 0; i < 4; i++) {
+                bytes[i] = (byte) (lo >>> (24 - 8 * i));
+            }
+        }
+        return bytes;
+    }
+
+    public InetAddress toInetAddress() {
+        try {
+            return InetAddress.getByAddress(toBytes());
+        } catch (UnknownHostException e) {
+            throw new Error(e); // Can't happen, the length is valid
+        }
+    }
+
+    public BigInteger toBigInteger() {
+        return new BigInteger(1, toBytes());
+    }
+
+    /**
+     * The first address of the prefix this address is in.
+     */
+    public Address network(int prefix) {
+        return new Address(ipv6, hi & maskHi(prefix), lo & maskLo(prefix));
+    }
+
+    /**
+     * The last address of the prefix this address is in.
+     */
+    public Address broadcast(int prefix) {
+        return new Address(ipv6, hi | ~maskHi(prefix), lo | ~maskLo(prefix));
+    }
+
+    /**
+     * Is other in the same prefix as this address? Addresses of
+     * different families never are.
+     */
+    public boolean sameNetwork(Address other, int prefix) {
+        return ipv6 == other.ipv6 &&
+            ((hi ^ other.hi) & maskHi(prefix)) == 0 &&
+            ((lo ^ other.lo) & maskLo(prefix)) == 0;
+    }
+
+    /**
+     * The address with bit pos, counted from the most significant
+     * bit, set to val.
+     */
+    public Address withBit(int pos, int val) {
+        int shift = width() - 1 - pos;
+        long h = hi;
+        long l = lo;
+        if (shift >= 64) {
+            long bit = 1L << (shift - 64);
+            h = val != 0 ? h | bit : h & ~bit;
+        } else {
+            long bit = 1L << shift;
+            l = val != 0 ? l | bit : l & ~bit;
+        }
+        return new Address(ipv6, h, l);
+    }
+
+    public int getBit(int pos) {
+        int shift = width() - 1 - pos;
+        if (shift >= 64) {
+            return (int) (hi >>> (shift - 64)) & 1;
+        }
+        return (int) (lo >>> shift) & 1;
+    }
+
+    /**
+     * The address n higher, wrapping around at the end of the
+     * address space.
+     */
+    public Address add(long n) {
+        long l = lo + n;
+        long h = hi;
+        if (ipv6 && n >= 0 && compareUnsigned(l, lo) < 0) {
+            h++;
+        } else if (ipv6 && n < 0 && compareUnsigned(l, lo) > 0) {
+            h--;
+        }
+        return new Address(ipv6, h, l);
+    }
+
+    /**
+     * The length of the longest prefix this address is the first
+     * address of, i.e. the address width minus the number of
+     * trailing zero bits.
+     */
+    public int alignment() {
+        if (lo != 0) {
+            return width() - Long.numberOfTrailingZeros(lo);
+        } else if (ipv6 && hi != 0) {
+            return 64 - Long.numberOfTrailingZeros(hi);
+        }
+        return 0;
+    }
+
+    /**
+     * Is other the address right after this one, the way add(1)
+     * would give it?
+     */
+    public boolean isFollowedBy(Address other) {
+        if (ipv6 != other.ipv6) {
+            return false;
+        }
+        if (!ipv6) {
+            return ((lo + 1) & MASK4) == other.lo;
+        }
+        long l = lo + 1;
+        long h = l == 0 ? hi + 1 : hi;
+        return l == other.lo && h == other.hi;
+    }
+
+    public int compareTo(Address other) {
+        int c = compareUnsigned(hi, other.hi);
+        if (c != 0) {
+            return c;
+        }
+        return compareUnsigned(lo, other.lo);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Address)) {
+            return false;
+        }
+        Address other = (Address) o;
+        return ipv6 == other.ipv6 && hi == other.hi && lo == other.lo;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = hi * 31 + lo;
+        return (int) (h ^ (h >>> 32)) ^ (ipv6 ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return toInetAddress().getHostAddress();
+    }
+
+    private long maskHi(int prefix) {
+        int bits = ipv6 ? prefix : prefix + 96;
+        if (bits >= 64) {
+            return -1L;
+        }
+        return bits == 0 ? 0 : -1L << (64 - bits);
+    }
+
+    private long maskLo(int prefix) {
+        int bits = (ipv6 ? prefix : prefix + 96) - 64;
+        if (bits <= 0) {
+            return 0;
+        }
+        return bits >= 64 ? -1L : -1L << (64 - bits);
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+        return a < b ? -1 : a == b ? 0 : 1;
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            int b = offset + i < bytes.length ? bytes[offset + i] & 0xff : 0;
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+}
@@ -104,6 +104,11 @@ public class InclusiveSubnet extends Subnet {
         super(address, mask);
     }
 
+    public InclusiveSubnet(Address address, int mask)
+        throws InvalidNetmaskException {
+        super(address, mask);
+    }
+
     public InclusiveSubnet(Subnet subnet)
         throws InvalidNetmaskException {
         super(subnet.getAddress(), subnet.getCIDRMask());
@@ -160,25 +165,12 @@ public class InclusiveSubnet extends Subnet {
      */
     @Override
     public long size() {
-        if (isSingleHost()) {
-            return 1;
+        int shiftWidth = getFirstAddress().width() - getCIDRMask();
+        if (shiftWidth >= 63) {
+            // return plenty
+            return Long.MAX_VALUE;
         } else {
-            int shiftWidth = 0;
-            if (getAddress() instanceof Inet4Address) {
-                shiftWidth = MAX_PREFIX4 - getCIDRMask();
-            } else if (getAddress() instanceof Inet6Address) {
-                shiftWidth = MAX_PREFIX6 - getCIDRMask();
-            } else {
-                assert(false);
-            }
-            BigInteger res = BigInteger.ONE.shiftLeft(shiftWidth);
-            BigInteger max = new BigInteger(Long.toString(Long.MAX_VALUE));
-            if (res.compareTo(max) > 0) {
-                // return plenty
-                return Long.MAX_VALUE;
-            } else {
-                return res.longValue();
-            }
+            return 1L << shiftWidth;
         }
     }
 
@@ -255,19 +247,13 @@ public class InclusiveSubnet extends Subnet {
         throws InvalidNetmaskException {
         if (size() > 1) {
             InclusiveSubnet[] result = new InclusiveSubnet[2];
-            InetAddress network = getAddress();
+            Address network = getFirstAddress();
             // First subnet has the same network address with a wider mask
             result[0] = new InclusiveSubnet(network, getCIDRMask() + 1);
 
             // Second subnet has the last bit of the wider mask set
-            BitString addr = new BitString(network.getAddress());
-            addr.setBit(getCIDRMask(), 1);
-            try {
-                result[1] = new InclusiveSubnet(InetAddress.getByAddress(addr.getData()),
-                                                getCIDRMask() + 1);
-            } catch (UnknownHostException e) {
-                throw new Error(e);
-            }
+            result[1] = new InclusiveSubnet(network.withBit(getCIDRMask(), 1),
+                                            getCIDRMask() + 1);
             return result;
         }
         throw new InvalidNetmaskException("Can't split subnet further");
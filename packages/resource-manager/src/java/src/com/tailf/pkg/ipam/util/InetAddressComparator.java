@@ -28,21 +28,9 @@ public class InetAddressComparator implements Comparator<InetAddress> {
      *
      */
     public int compare(InetAddress addr1, InetAddress addr2) {
-        // Turn the addresses into byte arrays.
-        byte[] bytes1 = addr1.getAddress();
-        byte[] bytes2 = addr2.getAddress();
-
-        // They must both be IPv4 or IPv6.  If they do not match,
-        // convert the shorter to IPv6.
-
-        if (bytes1.length < bytes2.length){
-            bytes1 = ipv4ToIpv6(addr1).getAddress();
-        } else if (bytes2.length < bytes1.length) {
-            bytes2 = ipv4ToIpv6(addr2).getAddress();
-        }
-        // Now compare.
-        return (unsignedBytesToBigInteger(bytes1).compareTo(
-                              unsignedBytesToBigInteger(bytes2)));
+        // An Address holds an IPv4 address the same way as the
+        // equivalent IPv6 address, so compare their values directly.
+        return Address.of(addr1).compareTo(Address.of(addr2));
     }
 
     /**
@@ -4,7 +4,6 @@ import org.apache.log4j.Logger;
 
 import java.math.BigInteger;
 import java.net.InetAddress;
-import java.net.Inet6Address;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
@@ -23,7 +22,8 @@ import com.tailf.pkg.ipam.Subnet;
  *
  *   Both must be the same kind, either IPv4 or IPv6.
  *
- *   This is an immutable object.
+ *   This is an immutable object. The addresses are held as Address
+ *   values, so that comparing ranges does not allocate.
  *
  * @author mlutton
  *
@@ -31,31 +31,12 @@ import com.tailf.pkg.ipam.Subnet;
 public class InetAddressRange implements Comparable<InetAddressRange> {
     private static final Logger LOGGER = Logger.getLogger(InetAddressRange.class);
 
-    private final InetAddress lowerAddress;
-    private final InetAddress higherAddress;
+    private final Address lower;
+    private final Address higher;
 
-    private final static BigInteger mask4;
-    private final static BigInteger mask6;
-
-    static {
-        BigInteger m4 = BigInteger.ONE;
-        BigInteger m6 = BigInteger.ONE;
-        for(int i = 0; i < 31; i++) {
-            m4 = m4.shiftLeft(1).setBit(0);
-            m6 = m6.shiftLeft(1).setBit(0);
-        }
-        for(int i = 0; i < 96; i++) {
-            m6 = m6.shiftLeft(1).setBit(0);
-        }
-        mask4 = m4;
-        mask6 = m6;
-    }
-
-    /**
-     * Instantiate a Comparator for internet addresses.
-     */
-    private final InetAddressComparator comparator =
-        new InetAddressComparator();
+    /* The addresses as InetAddress, made when first asked for. */
+    private volatile InetAddress lowerAddress;
+    private volatile InetAddress higherAddress;
 
     /**
      * Constructor takes two InetAddresses.
@@ -64,15 +45,37 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
      * @param theSecond
      */
     public InetAddressRange(InetAddress theFirst, InetAddress theSecond) {
-        if (comparator.compare(theFirst, theSecond) < 0) {
+        Address first = Address.of(theFirst);
+        Address second = Address.of(theSecond);
+        if (first.compareTo(second) < 0) {
+            lower = first;
+            higher = second;
             lowerAddress = theFirst;
             higherAddress = theSecond;
         } else {
+            lower = second;
+            higher = first;
             lowerAddress = theSecond;
             higherAddress = theFirst;
         }
     }
 
+    /**
+     * Constructor takes two Addresses.
+     *
+     * @param theFirst
+     * @param theSecond
+     */
+    public InetAddressRange(Address theFirst, Address theSecond) {
+        if (theFirst.compareTo(theSecond) < 0) {
+            lower = theFirst;
+            higher = theSecond;
+        } else {
+            lower = theSecond;
+            higher = theFirst;
+        }
+    }
+
     /**
      * Constructor takes two byte arrays.
      *
@@ -92,7 +95,7 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
      * @param subnet
      */
     public InetAddressRange(Subnet subnet) {
-        this(subnet.getAddress(), subnet.getBroadcast());
+        this(subnet.getFirstAddress(), subnet.getLastAddress());
     }
 
     /**
@@ -100,7 +103,12 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
      * @return lower address.
      */
     public InetAddress getStart() {
-        return lowerAddress;
+        InetAddress a = lowerAddress;
+        if (a == null) {
+            a = lower.toInetAddress();
+            lowerAddress = a;
+        }
+        return a;
     }
 
     /**
@@ -109,15 +117,24 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
      * @return higher address.
      */
     public InetAddress getEnd() {
-        return higherAddress;
+        InetAddress a = higherAddress;
+        if (a == null) {
+            a = higher.toInetAddress();
+            higherAddress = a;
+        }
+        return a;
+    }
+
+    public Address getFirstAddress() {
+        return lower;
+    }
+
+    public Address getLastAddress() {
+        return higher;
     }
 
     public BigInteger getSize() {
-        BigInteger lowerValue =
-            comparator.unsignedBytesToBigInteger(lowerAddress.getAddress());
-        BigInteger higherValue =
-            comparator.unsignedBytesToBigInteger(higherAddress.getAddress());
-        return higherValue.subtract(lowerValue);
+        return higher.toBigInteger().subtract(lower.toBigInteger());
     }
 
     /**
@@ -134,10 +151,10 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
      * @return
      */
     public int compareTo(InetAddressRange other) {
-        if (this.getStart().equals(other.getStart())) {
-            return comparator.compare(this.getEnd(), other.getEnd());
+        if (this.lower.equals(other.lower)) {
+            return this.higher.compareTo(other.higher);
         } else {
-            return comparator.compare(this.getStart(), other.getStart());
+            return this.lower.compareTo(other.lower);
         }
     }
 
@@ -152,10 +169,10 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
      */
     public boolean overlaps(InetAddressRange other) {
         /* True if start or end address of either is contained in the other. */
-        return this.contains(other.getStart()) ||
-            this.contains(other.getEnd())      ||
-            other.contains(this.getStart())    ||
-            other.contains(this.getEnd());
+        return this.contains(other.lower) ||
+            this.contains(other.higher)   ||
+            other.contains(this.lower)    ||
+            other.contains(this.higher);
     }
 
     /**
@@ -167,8 +184,8 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
      * @return true if the two ranges are adjacent.
      */
     public boolean isAdjacentTo(InetAddressRange other) {
-        return (comparator.addOne(this.getEnd()).equals(other.getStart())) ||
-            (comparator.addOne(other.getEnd()).equals(this.getStart()));
+        return this.higher.isFollowedBy(other.lower) ||
+            other.higher.isFollowedBy(this.lower);
     }
 
     /**
@@ -182,15 +199,15 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
      * @return       The union of the two (plus everything in between).
      */
     public InetAddressRange combine(InetAddressRange other) {
-        InetAddress lower = this.getStart();
-        if (comparator.compare(lower, other.getStart()) > 0) {
+        Address lower = this.lower;
+        if (lower.compareTo(other.lower) > 0) {
             /* The other has a lower start address. */
-            lower = other.getStart();
+            lower = other.lower;
         }
-        InetAddress upper = this.getEnd();
-        if (comparator.compare(upper, other.getEnd()) < 0) {
+        Address upper = this.higher;
+        if (upper.compareTo(other.higher) < 0) {
             /* The other has a higher end address. */
-            upper = other.getEnd();
+            upper = other.higher;
         }
         return new InetAddressRange(lower, upper);
     }
@@ -232,14 +249,14 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
          */
 
         /* Reduce range of other to within this. */
-        InetAddress otherLow = other.getStart();
-        if (comparator.compare(otherLow, this.getStart()) < 0) {
-            otherLow = this.getStart();
+        Address otherLow = other.lower;
+        if (otherLow.compareTo(this.lower) < 0) {
+            otherLow = this.lower;
         }
 
-        InetAddress otherHigh = other.getEnd();
-        if (comparator.compare(otherHigh, this.getEnd()) > 0) {
-            otherHigh = other.getEnd();
+        Address otherHigh = other.higher;
+        if (otherHigh.compareTo(this.higher) > 0) {
+            otherHigh = this.higher;
         }
 
         /*
@@ -251,10 +268,9 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
          * 1. Other range starts at this.  Result is one greater than
          *    other range end, up through this end.
          */
-        if (this.getStart().equals(otherLow)) {
+        if (this.lower.equals(otherLow)) {
             InetAddressRange[] result = new InetAddressRange[1];
-            result[0] = new InetAddressRange(comparator.addOne(otherHigh),
-                                             this.getEnd());
+            result[0] = new InetAddressRange(otherHigh.add(1), this.higher);
             return result;
         }
 
@@ -262,10 +278,9 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
          * 2. Other range ends at this.  Result is this start, up through
          *    one less than other range start.
          */
-        if (this.getEnd().equals(otherHigh)) {
+        if (this.higher.equals(otherHigh)) {
             InetAddressRange[] result = new InetAddressRange[1];
-            result[0] = new InetAddressRange(this.getStart(),
-                                             comparator.subtractOne(otherLow));
+            result[0] = new InetAddressRange(this.lower, otherLow.add(-1));
             return result;
         }
 
@@ -275,10 +290,8 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
          *    through this end.
          */
         InetAddressRange[] result = new InetAddressRange[2];
-        result[0] = new InetAddressRange(this.getStart(),
-                                         comparator.subtractOne(otherLow));
-        result[1] = new InetAddressRange(comparator.addOne(otherHigh),
-                                         this.getEnd());
+        result[0] = new InetAddressRange(this.lower, otherLow.add(-1));
+        result[1] = new InetAddressRange(otherHigh.add(1), this.higher);
         return result;
     }
 
@@ -290,13 +303,17 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
      * @return True if the range contains the address.
      */
     public boolean contains(InetAddress address) {
+        return contains(Address.of(address));
+    }
+
+    private boolean contains(Address address) {
         /*
          * Return true if range start is less than or equal to this address
          * and if this address is less than or equal to range end.
          */
         return
-            (comparator.compare(this.getStart(), address) <= 0) &&
-            (comparator.compare(address, this.getEnd()) <= 0);
+            (this.lower.compareTo(address) <= 0) &&
+            (address.compareTo(this.higher) <= 0);
     }
 
     /**
@@ -308,7 +325,7 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
      * @return true if all addresses in other are also in this.
      */
     public boolean containsAll(InetAddressRange other) {
-        return this.contains(other.getStart()) && this.contains(other.getEnd());
+        return this.contains(other.lower) && this.contains(other.higher);
     }
 
     /**
@@ -319,7 +336,8 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
      * @return
      */
     public boolean containsAll(InclusiveSubnet subnet) {
-        return containsAll(subnet.toInetAddressRange());
+        return this.contains(subnet.getFirstAddress()) &&
+            this.contains(subnet.getLastAddress());
     }
 
     /**
@@ -333,23 +351,7 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
      * @return
      */
     public int cidrForStartAddr() {
-        byte [] asBytes = getStart().getAddress();
-        int result = 8 * asBytes.length;
-
-        /* Count backwards.  Stop at first non-zero. */
-        for (int i = asBytes.length - 1; i >= 0; i--) {
-            byte oneByte = asBytes[i];
-            byte mask = 1;  // We will shift left until shifted out.
-            while (mask != 0) {
-                if ((oneByte & mask) != 0) {
-                    return result;      // Found the first 1 bit.
-                }
-                result--;
-                mask <<= 1;
-            }
-        }
-
-        return 0;
+        return lower.alignment();
     }
 
     /**
@@ -367,8 +369,8 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
             return false;
         }
         InetAddressRange other = (InetAddressRange) otherObject;
-        return this.getStart().equals(other.getStart()) &&
-            this.getEnd().equals(other.getEnd());
+        return this.lower.equals(other.lower) &&
+            this.higher.equals(other.higher);
     }
 
     /**
@@ -377,8 +379,8 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
     @Override
     public int hashCode() {
         int result = 17;
-        result = 37 * result + this.getStart().hashCode();
-        result = 37 * result + this.getEnd().hashCode();
+        result = 37 * result + this.lower.hashCode();
+        result = 37 * result + this.higher.hashCode();
         return result;
     }
 
@@ -391,85 +393,37 @@ public class InetAddressRange implements Comparable<InetAddressRange> {
         return sb.toString();
     }
 
-    private BigInteger c2m(int width, int cidr) {
-        BigInteger mask = width == 128? mask6 : mask4;
-        return (((BigInteger.ONE.shiftLeft(width)).subtract(BigInteger.ONE)).shiftLeft(width - cidr)).and(mask);
-    }
-
-    private InetAddress big2Inet(int width, BigInteger ip) {
-        int n = width == 128 ? 16 : 4;
-        byte[] bytes = ip.toByteArray(); /* May contain an annoying sign bit */
-        byte[] bytes2 = new byte[n];
-        for (int i = 1; i <= n; i++) {
-            if (bytes.length >= i) {
-                bytes2[n-i] = bytes[bytes.length-i];
-            } else {
-                bytes2[n-i]=0;
-            }
-        }
-        try {
-            return InetAddress.getByAddress(bytes2);
-        } catch (Exception e) {
-            throw new Error("Internal error in IP conversion", e);
-        }
-    }
-
     /**
      *  Return the smallest number of subnets that make up this range
      */
     public List<Subnet> getSubnets() {
-        int width = getStart() instanceof Inet6Address ? 128 : 32;
-        BigInteger low = new BigInteger(1, getStart().getAddress());
-        BigInteger high = new BigInteger(1, getEnd().getAddress());
-
-        return doGetSubnets(width, low, high);
-    }
-
-    private List<Subnet> doGetSubnets(int width, BigInteger low, BigInteger high) {
         List<Subnet> subnets = new ArrayList<Subnet>();
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug(String.format("getSubnets: %s -> %s",
-                                       big2Inet(width, low), big2Inet(width, high)));
+            LOGGER.debug(String.format("getSubnets: %s -> %s", lower, higher));
         }
 
-        for (int containingCIDR = width; containingCIDR >= 0; --containingCIDR) {
-            BigInteger mask = c2m(width, containingCIDR);
-            BigInteger network = low.and(mask);
-            BigInteger nextNet = network.add(BigInteger.ONE.shiftLeft(width - containingCIDR));
-
-            if (network.compareTo(low) <= 0 && nextNet.compareTo(high) > 0) {
-                /* Perfect match */
-                if (network.compareTo(low) == 0 && nextNet.compareTo(high.add(BigInteger.ONE)) == 0) {
-                    if(LOGGER.isDebugEnabled()) {
-                        LOGGER.debug(String.format("Adding %s/%d",
-                                                   big2Inet(width, low), containingCIDR));
-                    }
-                    try {
-                        subnets.add(new Subnet(big2Inet(width, low), containingCIDR));
-                    } catch (Exception e) {
-                        throw new Error("Internal error creating subnet", e);
-                    }
-                    break;
-                }
-
-                int subCidr = containingCIDR + 1;
-                BigInteger subMask = c2m(width, subCidr);
-                BigInteger lowSubnet = network.and(subMask);
-                BigInteger highSubnet = lowSubnet.add(BigInteger.ONE.shiftLeft(width - subCidr));
-
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug(String.format("low subnet: %s", big2Inet(width, lowSubnet)));
-                    LOGGER.debug(String.format("high subnet: %s", big2Inet(width, highSubnet)));
-                }
-
-                if (low.compareTo(lowSubnet) >= 0) {
-                    subnets.addAll(doGetSubnets(width, low, highSubnet.subtract(BigInteger.ONE)));
-                }
-                if (high.compareTo(highSubnet) >= 0) {
-                    subnets.addAll(doGetSubnets(width, highSubnet, high));
-                }
+        Address low = lower;
+        while (true) {
+            /* The widest subnet starting at low that ends within the range. */
+            int prefix = low.alignment();
+            while (low.broadcast(prefix).compareTo(higher) > 0) {
+                prefix++;
+            }
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(String.format("Adding %s/%d", low, prefix));
+            }
+            try {
+                subnets.add(new Subnet(low, prefix));
+            } catch (Exception e) {
+                throw new Error("Internal error creating subnet", e);
+            }
+
+            Address end = low.broadcast(prefix);
+            if (end.equals(higher)) {
                 break;
             }
+            low = end.add(1);
         }
         return subnets;
     }
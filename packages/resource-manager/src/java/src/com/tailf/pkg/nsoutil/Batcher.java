@@ -0,0 +1,79 @@
+package com.tailf.pkg.nsoutil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the requests of consecutive subscription notifications
+ * into one processing batch.
+ *
+ * Notifications are added as they are acknowledged, each with the
+ * sequence number of its intent. Taking a batch collects what is
+ * queued, waits up to LATENCY milliseconds after the first
+ * notification for more to arrive, and stops once the batch holds
+ * SIZE requests. The requests keep the order of the notifications.
+ */
+public class Batcher<E> {
+
+    /* Longest time a request waits for others to join its batch. */
+    public static final long LATENCY =
+        Long.getLong("com.tailf.pkg.resourcemanager.batch.latency", 0);
+
+    /* Requests in a batch before it is processed without waiting. */
+    public static final int SIZE =
+        Integer.getInteger("com.tailf.pkg.resourcemanager.batch.size", 1000);
+
+    /**
+     * The requests of a batch, and the intents they came from.
+     */
+    public static class Batch<E> {
+        public final List<Long> seqs = new ArrayList<Long>();
+        public final List<E> reqs = new ArrayList<E>();
+    }
+
+    private static class Notification<E> {
+        long seq;
+        List<E> reqs;
+
+        Notification(long seq, List<E> reqs) {
+            this.seq = seq;
+            this.reqs = reqs;
+        }
+    }
+
+    private LinkedBlockingQueue<Notification<E>> queue =
+        new LinkedBlockingQueue<Notification<E>>();
+
+    public void add(long seq, List<E> reqs) {
+        queue.add(new Notification<E>(seq, reqs));
+    }
+
+    /**
+     * Take the next batch.
+     *
+     * @return the batch, or null if nothing is queued
+     */
+    public Batch<E> take() throws InterruptedException {
+        Notification<E> n = queue.poll();
+        if (n == null) {
+            return null;
+        }
+
+        Batch<E> batch = new Batch<E>();
+        long deadline = System.currentTimeMillis() + LATENCY;
+        while (n != null) {
+            batch.seqs.add(n.seq);
+            batch.reqs.addAll(n.reqs);
+            if (batch.reqs.size() >= SIZE) {
+                break;
+            }
+
+            long left = deadline - System.currentTimeMillis();
+            n = left > 0 ?
+                queue.poll(left, TimeUnit.MILLISECONDS) : queue.poll();
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,107 @@
+package com.tailf.pkg.nsoutil;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import com.tailf.cdb.Cdb;
+import com.tailf.cdb.CdbDBType;
+import com.tailf.cdb.CdbLockType;
+import com.tailf.cdb.CdbSession;
+import com.tailf.conf.ConfException;
+
+/**
+ * Read sessions shared by the static read APIs of the allocators.
+ *
+ * Each session has a CDB connection of its own and is kept open
+ * between uses, up to SIZE idle sessions per database. A session
+ * takes its lock per request, so it can be kept open without holding
+ * up anyone else. Sessions are connected to the same address as the
+ * Cdb passed by the first caller that needs a new one.
+ */
+public class CdbSessionPool {
+
+    /* Idle sessions kept per database. */
+    public static final int SIZE =
+        Integer.getInteger("com.tailf.pkg.resourcemanager.readers", 8);
+
+    private static final CdbSessionPool running =
+        new CdbSessionPool(CdbDBType.CDB_RUNNING);
+    private static final CdbSessionPool operational =
+        new CdbSessionPool(CdbDBType.CDB_OPERATIONAL);
+
+    private CdbDBType db;
+    private LinkedBlockingDeque<CdbSession> idle =
+        new LinkedBlockingDeque<CdbSession>();
+    private Map<CdbSession, Cdb> connections =
+        new ConcurrentHashMap<CdbSession, Cdb>();
+
+    private CdbSessionPool(CdbDBType db) {
+        this.db = db;
+    }
+
+    public static CdbSessionPool running() {
+        return running;
+    }
+
+    public static CdbSessionPool operational() {
+        return operational;
+    }
+
+    /**
+     * Take an idle session, or open a new one.
+     *
+     * @param cdb tells where to connect a new session
+     */
+    public CdbSession take(Cdb cdb) throws IOException, ConfException {
+        CdbSession sess = idle.pollFirst();
+        if (sess != null) {
+            return sess;
+        }
+
+        Socket sock = cdb.getSocket();
+        Cdb myCdb = new Cdb("cdbSessionPool",
+                            new Socket(sock.getInetAddress(), sock.getPort()));
+        try {
+            sess = myCdb.startSession(db,
+                                      EnumSet.of(CdbLockType.LOCK_REQUEST,
+                                                 CdbLockType.LOCK_WAIT));
+        } catch (ConfException e) {
+            myCdb.close();
+            throw e;
+        } catch (IOException e) {
+            myCdb.close();
+            throw e;
+        }
+        connections.put(sess, myCdb);
+        return sess;
+    }
+
+    /**
+     * Give back a session that is still good.
+     */
+    public void put(CdbSession sess) {
+        if (idle.size() >= SIZE) {
+            discard(sess);
+        } else {
+            idle.addFirst(sess);
+        }
+    }
+
+    /**
+     * Close a session that failed, or is not needed any more.
+     */
+    public void discard(CdbSession sess) {
+        Cdb cdb = connections.remove(sess);
+        if (cdb != null) {
+            try {
+                cdb.close();
+            } catch (Exception ignore) {
+                ;
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.tailf.pkg.nsoutil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.tailf.cdb.CdbSession;
+import com.tailf.conf.ConfBinary;
+import com.tailf.conf.ConfBuf;
+import com.tailf.conf.ConfKey;
+import com.tailf.conf.ConfObject;
+import com.tailf.conf.ConfUInt32;
+import com.tailf.conf.ConfUInt64;
+import com.tailf.conf.ConfUInt8;
+
+/**
+ * Requests that have been acknowledged to CDB but not processed yet.
+ *
+ * With early acknowledgement a subscriber writes the requests it has
+ * read from a notification to the log, syncs the subscription right
+ * away and processes the requests afterwards. Each notification is
+ * one entry in an operational list, removed once its requests are
+ * processed. Since the list is in CDB it survives a restart and is
+ * replicated to the other HA nodes, so whoever becomes master next
+ * replays the entries that are left.
+ */
+public class IntentLog<E> {
+
+    /* Acknowledge subscription notifications before processing them. */
+    public static final boolean EARLY_ACK =
+        Boolean.getBoolean("com.tailf.pkg.resourcemanager.earlyack");
+
+    private static final byte KEY_UINT8 = 1;
+    private static final byte KEY_UINT32 = 2;
+    private static final byte KEY_STRING = 3;
+
+    private String path;
+    private SetLog.Codec<E> codec;
+    private AtomicLong last = new AtomicLong(0);
+
+    /**
+     * @param path the intent list, with the leaves seq and data
+     * @param codec reads and writes the requests
+     */
+    public IntentLog(String path, SetLog.Codec<E> codec) {
+        this.path = path;
+        this.codec = codec;
+    }
+
+    /**
+     * Read the entries that were never processed.
+     *
+     * @return the requests of each entry, in the order they were logged
+     */
+    public SortedMap<Long, List<E>> recover(CdbSession sess)
+        throws Exception {
+        SortedMap<Long, List<E>> res = new TreeMap<Long, List<E>>();
+
+        int n = sess.getNumberOfInstances(path);
+        for (int i = 0; i < n; i += PoolLoader.CHUNK) {
+            List<ConfObject[]> objs =
+                sess.getObjects(2, i, Math.min(PoolLoader.CHUNK, n - i), path);
+            for (ConfObject[] obj : objs) {
+                long seq = ((ConfUInt64) obj[0]).longValue();
+                res.put(seq, decode(((ConfBinary) obj[1]).bytesValue()));
+            }
+        }
+
+        if (!res.isEmpty()) {
+            last.set(Math.max(last.get(), res.lastKey()));
+        }
+        return res;
+    }
+
+    /**
+     * Write the requests of a notification to CDB.
+     *
+     * @return the sequence number to pass to done(CdbSession, long)
+     */
+    public long append(CdbSession sess, List<E> reqs) throws Exception {
+        long seq = last.incrementAndGet();
+        String entry = String.format("%s{%d}", path, seq);
+
+        sess.create(entry);
+        sess.setElem(new ConfBinary(encode(reqs)), entry + "/data");
+        return seq;
+    }
+
+    /**
+     * Remove an entry once all of its requests are processed.
+     */
+    public void done(CdbSession sess, long seq) throws Exception {
+        String entry = String.format("%s{%d}", path, seq);
+        if (sess.exists(entry)) {
+            sess.delete(entry);
+        }
+    }
+
+    private byte[] encode(List<E> reqs) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(reqs.size());
+        for (E e : reqs) {
+            codec.write(out, e);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private List<E> decode(byte[] data) throws IOException {
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(data));
+        int n = in.readInt();
+        List<E> res = new ArrayList<E>(n);
+        for (int i = 0; i < n; i++) {
+            res.add(codec.read(in));
+        }
+        return res;
+    }
+
+    /**
+     * Write a list key, or null, for a request codec. Integer key
+     * elements keep their type, all others are read back as strings.
+     */
+    public static void writeKey(DataOutput out, ConfKey key)
+        throws IOException {
+        if (key == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        ConfObject[] elems = key.elements();
+        out.writeInt(elems.length);
+        for (ConfObject e : elems) {
+            if (e instanceof ConfUInt8) {
+                out.writeByte(KEY_UINT8);
+                out.writeLong(((ConfUInt8) e).longValue());
+            } else if (e instanceof ConfUInt32) {
+                out.writeByte(KEY_UINT32);
+                out.writeLong(((ConfUInt32) e).longValue());
+            } else {
+                out.writeByte(KEY_STRING);
+                out.writeUTF(e.toString());
+            }
+        }
+    }
+
+    public static ConfKey readKey(DataInput in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+
+        ConfObject[] elems = new ConfObject[n];
+        for (int i = 0; i < n; i++) {
+            byte type = in.readByte();
+            if (type == KEY_UINT8) {
+                elems[i] = new ConfUInt8(in.readLong());
+            } else if (type == KEY_UINT32) {
+                elems[i] = new ConfUInt32(in.readLong());
+            } else if (type == KEY_STRING) {
+                elems[i] = new ConfBuf(in.readUTF());
+            } else {
+                throw new IOException("Bad key element " + type);
+            }
+        }
+        return new ConfKey(elems);
+    }
+}
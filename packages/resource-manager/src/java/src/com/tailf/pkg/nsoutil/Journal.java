@@ -0,0 +1,104 @@
+package com.tailf.pkg.nsoutil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Write-behind journal for a set that is persisted in CDB.
+ *
+ * The set records every element it changes, together with whether
+ * the element was a member before its first change. At flush time
+ * only elements whose membership actually differs are written, so an
+ * element that is added and removed again within a batch, such as
+ * the intermediate subnets of a split, never reaches CDB.
+ *
+ * A flush that fails half way may already have written part of the
+ * changes, and which part is not known. The set can then no longer be
+ * trusted and must be loaded from CDB again.
+ */
+public class Journal<E> {
+
+    /**
+     * Writes the changes of a set to CDB. Deletes are always done
+     * before creates, so an element can be replaced by an equal key.
+     */
+    public interface Writer<E> {
+        void create(E e) throws Exception;
+
+        void delete(E e) throws Exception;
+
+        /* Delete every element, used when the set was cleared. */
+        void deleteAll() throws Exception;
+    }
+
+    /* Membership of each changed element before its first change. */
+    private Map<E, Boolean> before = new LinkedHashMap<E, Boolean>();
+    private boolean cleared = false;
+
+    /**
+     * Record that e is about to change.
+     *
+     * @param e the element
+     * @param present whether e is currently in the set
+     */
+    public void touch(E e, boolean present) {
+        if (!before.containsKey(e)) {
+            before.put(e, present);
+        }
+    }
+
+    /**
+     * Record that the set is about to be cleared.
+     *
+     * @param current the current elements of the set
+     */
+    public void clear(Collection<E> current) {
+        for (E e : current) {
+            touch(e, true);
+        }
+        cleared = true;
+    }
+
+    public boolean isEmpty() {
+        return before.isEmpty();
+    }
+
+    /**
+     * Write all changes of set since the last flush.
+     */
+    public void flush(Set<E> set, Writer<E> writer) throws Exception {
+        if (before.isEmpty()) {
+            return;
+        }
+
+        List<E> deletes = new ArrayList<E>();
+        List<E> creates = new ArrayList<E>();
+        for (Map.Entry<E, Boolean> entry : before.entrySet()) {
+            boolean present = set.contains(entry.getKey());
+            if (present && !entry.getValue()) {
+                creates.add(entry.getKey());
+            } else if (!present && entry.getValue()) {
+                deletes.add(entry.getKey());
+            }
+        }
+
+        if (cleared && set.isEmpty() && !deletes.isEmpty()) {
+            writer.deleteAll();
+        } else {
+            for (E e : deletes) {
+                writer.delete(e);
+            }
+        }
+
+        for (E e : creates) {
+            writer.create(e);
+        }
+
+        before.clear();
+        cleared = false;
+    }
+}
@@ -0,0 +1,180 @@
+package com.tailf.pkg.nsoutil;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.tailf.conf.ConfPath;
+
+/**
+ * Outstanding allocations of the services that requested them, shared
+ * by all allocators.
+ *
+ * An allocator tells the tracker about each new allocation request as
+ * it reads it, and asks it when an allocation is answered if the owner
+ * should be redeployed. The owner is held back until its last
+ * outstanding allocation is answered or deleted, so that a service
+ * waiting for several resources is redeployed once. An owner that is
+ * still held TIMEOUT milliseconds after its first request is
+ * redeployed anyway, and its remaining allocations are forgotten.
+ *
+ * Allocations are known by their path, in any form ConfPath reads.
+ */
+public class OwnerTracker {
+    private static final Logger LOGGER = Logger.getLogger(OwnerTracker.class);
+
+    /* Longest time an answered owner waits for its other allocations. */
+    public static final long TIMEOUT =
+        Long.getLong("com.tailf.pkg.resourcemanager.redeploy.timeout", 30000);
+
+    private static final OwnerTracker instance = new OwnerTracker();
+
+    private static class Owner {
+        Set<String> outstanding = new HashSet<String>();
+        boolean answered = false;
+    }
+
+    private Map<ToRedeploy, Owner> owners = new HashMap<ToRedeploy, Owner>();
+    private Map<String, ToRedeploy> allocations =
+        new HashMap<String, ToRedeploy>();
+
+    private ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "owner-tracker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    public static OwnerTracker getInstance() {
+        return instance;
+    }
+
+    /**
+     * A new allocation has been requested by owner.
+     */
+    public synchronized void expect(ToRedeploy owner, String allocation) {
+        allocation = canonical(allocation);
+        ToRedeploy prev = allocations.put(allocation, owner);
+        if (prev != null && !prev.equals(owner)) {
+            remove(prev, allocation);
+        }
+
+        Owner o = owners.get(owner);
+        if (o == null) {
+            o = new Owner();
+            owners.put(owner, o);
+            scheduleTimeout(owner, o);
+        }
+        o.outstanding.add(allocation);
+    }
+
+    /**
+     * An allocation of owner has been answered.
+     *
+     * @return true if owner should be redeployed now
+     */
+    public synchronized boolean answered(ToRedeploy owner, String allocation) {
+        return answered(owner, allocation, true);
+    }
+
+    /**
+     * An allocation of owner has been answered.
+     *
+     * @param redeploy whether this answer needs a redeploy, false if
+     * owner has it already, such as an allocation made in the
+     * transaction of owner
+     * @return true if owner should be redeployed now, for this answer
+     * or for others it was held back for
+     */
+    public synchronized boolean answered(ToRedeploy owner, String allocation,
+                                         boolean redeploy) {
+        allocation = canonical(allocation);
+        allocations.remove(allocation);
+
+        Owner o = owners.get(owner);
+        if (o == null) {
+            return redeploy;
+        }
+        o.outstanding.remove(allocation);
+        if (o.outstanding.isEmpty()) {
+            owners.remove(owner);
+            return redeploy || o.answered;
+        }
+
+        LOGGER.debug(String.format("Holding redeploy of %s for %d allocations",
+                                   owner.getAllocatingService(),
+                                   o.outstanding.size()));
+        o.answered = o.answered || redeploy;
+        return false;
+    }
+
+    /**
+     * An allocation has been deleted, answered or not. Redeploys its
+     * owner if this was the last allocation it was held for.
+     */
+    public synchronized void forget(String allocation) {
+        allocation = canonical(allocation);
+        ToRedeploy owner = allocations.remove(allocation);
+        if (owner != null) {
+            remove(owner, allocation);
+        }
+    }
+
+    private void remove(ToRedeploy owner, String allocation) {
+        Owner o = owners.get(owner);
+        if (o == null) {
+            return;
+        }
+        o.outstanding.remove(allocation);
+        if (o.outstanding.isEmpty()) {
+            owners.remove(owner);
+            if (o.answered) {
+                NSOUtil.redeploy(Collections.singleton(owner));
+            }
+        }
+    }
+
+    private void scheduleTimeout(final ToRedeploy owner, final Owner o) {
+        timer.schedule(new Runnable() {
+                public void run() {
+                    timeout(owner, o);
+                }
+            }, TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void timeout(ToRedeploy owner, Owner o) {
+        if (owners.get(owner) != o) {
+            /* Resolved already. */
+            return;
+        }
+
+        owners.remove(owner);
+        for (String allocation : o.outstanding) {
+            allocations.remove(allocation);
+        }
+        if (o.answered) {
+            LOGGER.warn(String.format(
+                "Redeploying %s with %d allocations still outstanding",
+                owner.getAllocatingService(), o.outstanding.size()));
+            NSOUtil.redeploy(Collections.singleton(owner));
+        }
+    }
+
+    private static String canonical(String path) {
+        try {
+            return new ConfPath(path).toString();
+        } catch (Exception e) {
+            return path;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.tailf.pkg.nsoutil;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Responses of a batch of requests by pool and allocation id, held
+ * back until the oper data of their pools has been written.
+ *
+ * The pools only reach CDB when they are flushed at the end of a
+ * batch. A response written before that could outlive a failed
+ * flush or a crash, and the resource it names would then be free in
+ * the pool and handed out again. So an allocator puts each response
+ * here, flushes the pools, and only then takes the responses and
+ * writes them. Until it is taken a response is visible to get(), for
+ * the requests later in the same batch.
+ */
+public class PendingResponses<R> {
+
+    private Map<String, Map<String, R>> pools =
+        new LinkedHashMap<String, Map<String, R>>();
+
+    public synchronized R get(String pool, String id) {
+        Map<String, R> responses = pools.get(pool);
+        return responses == null ? null : responses.get(id);
+    }
+
+    public synchronized void put(String pool, String id, R response) {
+        Map<String, R> responses = pools.get(pool);
+        if (responses == null) {
+            responses = new LinkedHashMap<String, R>();
+            pools.put(pool, responses);
+        }
+        responses.put(id, response);
+    }
+
+    public synchronized R remove(String pool, String id) {
+        Map<String, R> responses = pools.get(pool);
+        return responses == null ? null : responses.remove(id);
+    }
+
+    public synchronized boolean isEmpty() {
+        for (Map<String, R> responses : pools.values()) {
+            if (!responses.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Take all responses, in the order they were put.
+     *
+     * @return the responses of each pool that has any, by pool name
+     */
+    public synchronized Map<String, List<R>> take() {
+        Map<String, List<R>> res = new LinkedHashMap<String, List<R>>();
+        for (Map.Entry<String, Map<String, R>> e : pools.entrySet()) {
+            if (!e.getValue().isEmpty()) {
+                res.put(e.getKey(), new ArrayList<R>(e.getValue().values()));
+            }
+        }
+        pools.clear();
+        return res;
+    }
+}
@@ -6,6 +6,7 @@ import com.tailf.conf.ConfIdentityRef;
 import com.tailf.conf.ConfException;
 import com.tailf.navu.NavuException;
 import java.io.IOException;
+import java.math.BigInteger;
 import com.tailf.ncs.alarmman.common.ManagedDevice;
 import com.tailf.ncs.alarmman.common.ManagedObject;
 import com.tailf.ncs.alarmman.common.PerceivedSeverity;
@@ -15,6 +16,7 @@ import org.apache.log4j.Logger;
 
 public abstract class Pool {
     private static final Logger LOGGER = Logger.getLogger(Pool.class);
+    private static final BigInteger HUNDRED = BigInteger.valueOf(100);
     protected boolean alarmsEnabled = false;
     protected boolean exhaustedAlarmRaised = false;
     protected boolean lowThresholdAlarmRaised = false;
@@ -173,9 +175,11 @@ public abstract class Pool {
     }
 
     public boolean isLowThresholdReached() {
-        long availablesLeft = getNumberOfAvailables();
-        long threshold = (long) (getTotalSize() * (this.threshold/100f));
-        if (availablesLeft > threshold) {
+        BigInteger availablesLeft = getAvailableCount();
+        BigInteger threshold = getTotalCount().
+            multiply(BigInteger.valueOf(this.threshold)).
+            divide(HUNDRED);
+        if (availablesLeft.compareTo(threshold) > 0) {
             LOGGER.debug(String.format("There are more availables left %s  %s",
                                        availablesLeft, threshold));
             return false; }
@@ -186,6 +190,20 @@ public abstract class Pool {
             return true; }
     }
 
+    /*
+     * Exact counts used for the threshold. Pools that can hold more
+     * than Long.MAX_VALUE resources, such as IPv6 address pools,
+     * override these. All four count methods are called on every
+     * allocation and release, so they must be cheap.
+     */
+    protected BigInteger getAvailableCount() {
+        return BigInteger.valueOf(getNumberOfAvailables());
+    }
+
+    protected BigInteger getTotalCount() {
+        return BigInteger.valueOf(getTotalSize());
+    }
+
     protected abstract long getNumberOfAvailables();
 
     protected abstract long getTotalSize();
@@ -0,0 +1,243 @@
+package com.tailf.pkg.nsoutil;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.tailf.cdb.Cdb;
+import com.tailf.cdb.CdbDBType;
+import com.tailf.cdb.CdbSession;
+import com.tailf.ncs.NcsMain;
+
+/**
+ * The pools of an allocator, loaded in the background.
+ *
+ * Each pool is submitted with a loader that builds it from CDB. The
+ * loaders run on a bounded set of worker threads, each with its own
+ * CDB connection and operational session, so that pools load in
+ * parallel without touching the session of the subscriber.
+ *
+ * Looking up a pool that has not been loaded yet loads it right away
+ * on the calling thread, or waits for the worker already loading it,
+ * so requests can be served before all pools are loaded.
+ */
+public class PoolLoader<P> {
+    private static final Logger LOGGER = Logger.getLogger(PoolLoader.class);
+
+    /* Number of list entries to read from CDB at a time. */
+    public static final int CHUNK = 1000;
+
+    /* Default number of worker threads. */
+    public static final int WORKERS =
+        Integer.getInteger("com.tailf.pkg.resourcemanager.loaders", 4);
+
+    /* How long an idle worker keeps its CDB connection. */
+    private static final long KEEPALIVE = 30;
+
+    /**
+     * Builds a pool.
+     */
+    public interface Loader<P> {
+        /**
+         * @param sess an operational session to read and create the
+         *             oper data of the pool with. It must not be kept
+         *             after the pool is loaded.
+         */
+        P load(CdbSession sess) throws Exception;
+    }
+
+    private String name;
+    private ThreadPoolExecutor executor;
+    private Map<String, FutureTask<P>> pools =
+        new LinkedHashMap<String, FutureTask<P>>();
+
+    /* The session of the worker running on this thread, if any. */
+    private ThreadLocal<CdbSession> workerSession =
+        new ThreadLocal<CdbSession>();
+
+    /**
+     * @param name used to name the threads and CDB connections
+     * @param workers maximum number of pools loaded at the same time
+     */
+    public PoolLoader(String name, int workers) {
+        this.name = name;
+        this.executor =
+            new ThreadPoolExecutor(workers, workers,
+                                   KEEPALIVE, TimeUnit.SECONDS,
+                                   new LinkedBlockingQueue<Runnable>(),
+                                   new WorkerFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Add a pool and start loading it in the background. A pool with
+     * the same name is replaced.
+     */
+    public synchronized void submit(String pool, final Loader<P> loader) {
+        FutureTask<P> task = new FutureTask<P>(new Callable<P>() {
+                public P call() throws Exception {
+                    return load(loader);
+                }
+            });
+        pools.put(pool, task);
+        executor.execute(task);
+    }
+
+    /**
+     * Get a pool, loading it first if needed.
+     *
+     * @return the pool, or null if there is no such pool or it
+     *         could not be loaded
+     */
+    public P get(String pool) {
+        FutureTask<P> task;
+        synchronized (this) {
+            task = pools.get(pool);
+        }
+        if (task == null) {
+            return null;
+        }
+
+        /* Does nothing if a worker has already started it. */
+        task.run();
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            LOGGER.error(String.format("Failed to load pool %s", pool),
+                         e.getCause());
+            synchronized (this) {
+                if (pools.get(pool) == task) {
+                    pools.remove(pool);
+                }
+            }
+            return null;
+        }
+    }
+
+    public synchronized boolean contains(String pool) {
+        return pools.containsKey(pool);
+    }
+
+    public synchronized void remove(String pool) {
+        pools.remove(pool);
+    }
+
+    public synchronized int size() {
+        return pools.size();
+    }
+
+    public synchronized List<String> names() {
+        return new ArrayList<String>(pools.keySet());
+    }
+
+    /**
+     * The pools that are done loading, without waiting for the rest.
+     */
+    public List<P> loaded() {
+        List<FutureTask<P>> tasks;
+        synchronized (this) {
+            tasks = new ArrayList<FutureTask<P>>(pools.values());
+        }
+
+        List<P> res = new ArrayList<P>();
+        for (FutureTask<P> task : tasks) {
+            if (!task.isDone()) {
+                continue;
+            }
+            try {
+                res.add(task.get());
+            } catch (Exception e) {
+                /* Reported by get(String). */
+                ;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Stop the workers. Pools not loaded yet are still loaded on
+     * demand by get(String).
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private P load(Loader<P> loader) throws Exception {
+        CdbSession sess = workerSession.get();
+        if (sess != null) {
+            return loader.load(sess);
+        }
+
+        /* Loaded on demand, outside of the workers. */
+        Cdb cdb = connect();
+        try {
+            return loader.load(cdb.startSession(CdbDBType.CDB_OPERATIONAL));
+        } finally {
+            close(cdb);
+        }
+    }
+
+    private Cdb connect() throws Exception {
+        Socket sock = new Socket(NcsMain.getInstance().getNcsHost(),
+                                 NcsMain.getInstance().getNcsPort());
+        return new Cdb(name, sock);
+    }
+
+    private static void close(Cdb cdb) {
+        try {
+            cdb.close();
+        } catch (Exception ignore) {
+            ;
+        }
+    }
+
+    /*
+     * Each worker opens its CDB connection when it starts and closes
+     * it when it times out or the loader is shut down.
+     */
+    private class WorkerFactory implements ThreadFactory {
+        private int count = 0;
+
+        public synchronized Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        Cdb cdb = null;
+                        try {
+                            cdb = connect();
+                            workerSession.set(
+                                cdb.startSession(
+                                    CdbDBType.CDB_OPERATIONAL));
+                        } catch (Exception e) {
+                            /* Tasks then connect on their own. */
+                            LOGGER.error("Failed to connect to CDB", e);
+                        }
+                        try {
+                            r.run();
+                        } finally {
+                            workerSession.remove();
+                            if (cdb != null) {
+                                close(cdb);
+                            }
+                        }
+                    }
+                }, String.format("%s-loader-%d", name, ++count));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.tailf.pkg.nsoutil;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.tailf.cdb.Cdb;
+import com.tailf.cdb.CdbDBType;
+import com.tailf.cdb.CdbLockType;
+import com.tailf.cdb.CdbSession;
+import com.tailf.ncs.NcsMain;
+
+/**
+ * Long-lived workers that process the requests of an allocator per
+ * pool.
+ *
+ * All work for a pool goes to the same worker and is done in the
+ * order it was submitted, while pools on different workers progress
+ * concurrently. Each worker has its own CDB connection and
+ * operational session, which code running on the worker gets from
+ * session(CdbSession).
+ */
+public class PoolWorkers {
+    private static final Logger LOGGER = Logger.getLogger(PoolWorkers.class);
+
+    /* Default number of workers. */
+    public static final int WORKERS =
+        Integer.getInteger("com.tailf.pkg.resourcemanager.workers", 4);
+
+    private String name;
+    private Worker[] workers;
+
+    /* The worker running on this thread, if any. */
+    private ThreadLocal<Worker> current = new ThreadLocal<Worker>();
+
+    /**
+     * @param name used to name the threads and CDB connections
+     * @param n number of workers
+     */
+    public PoolWorkers(String name, int n) {
+        this.name = name;
+        this.workers = new Worker[Math.max(1, n)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+        }
+    }
+
+    /**
+     * The CDB session of the worker running on this thread, or dflt
+     * when not called from a worker.
+     */
+    public CdbSession session(CdbSession dflt) {
+        Worker w = current.get();
+        if (w == null || w.session == null) {
+            return dflt;
+        }
+        return w.session;
+    }
+
+    /**
+     * Run one job per pool and wait for all of them to finish.
+     *
+     * @param jobs the job of each pool, by pool name
+     */
+    public void runAll(Map<String, ? extends Runnable> jobs)
+        throws InterruptedException {
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (Map.Entry<String, ? extends Runnable> job : jobs.entrySet()) {
+            Worker w = workers[(job.getKey().hashCode() & 0x7fffffff) %
+                               workers.length];
+            futures.add(w.executor.submit(w.wrap(job.getValue())));
+        }
+
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                LOGGER.error("Request worker failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Close the CDB sessions and stop the workers.
+     */
+    public void shutdown() {
+        for (final Worker w : workers) {
+            w.executor.execute(new Runnable() {
+                    public void run() {
+                        w.close();
+                    }
+                });
+            w.executor.shutdown();
+        }
+    }
+
+    private class Worker {
+        ExecutorService executor;
+        Cdb cdb = null;
+        CdbSession session = null;
+
+        Worker(final int index) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, String.format("%s-worker-%d",
+                                                               name, index));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+
+        Runnable wrap(final Runnable job) {
+            return new Runnable() {
+                public void run() {
+                    current.set(Worker.this);
+                    try {
+                        open();
+                        job.run();
+                    } catch (RuntimeException e) {
+                        /* Start over with a new session next time. */
+                        close();
+                        throw e;
+                    } finally {
+                        current.remove();
+                    }
+                }
+            };
+        }
+
+        void open() {
+            if (session != null) {
+                return;
+            }
+            try {
+                Socket sock =
+                    new Socket(NcsMain.getInstance().getNcsHost(),
+                               NcsMain.getInstance().getNcsPort());
+                cdb = new Cdb(name, sock);
+                session = cdb.startSession(
+                    CdbDBType.CDB_OPERATIONAL,
+                    EnumSet.<CdbLockType>of(CdbLockType.LOCK_REQUEST,
+                                            CdbLockType.LOCK_WAIT));
+            } catch (Exception e) {
+                close();
+                throw new RuntimeException("Failed to connect to CDB", e);
+            }
+        }
+
+        void close() {
+            session = null;
+            if (cdb != null) {
+                try {
+                    cdb.close();
+                } catch (Exception ignore) {
+                    ;
+                }
+                cdb = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.tailf.pkg.nsoutil;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.tailf.conf.Conf;
+import com.tailf.conf.ConfXMLParam;
+import com.tailf.maapi.Maapi;
+import com.tailf.maapi.MaapiUserSessionFlag;
+import com.tailf.ncs.NcsMain;
+
+/**
+ * Redeploys services in the background for all allocators.
+ *
+ * Redeploys are queued and handled by a few worker threads, each with
+ * its own MAAPI connection that is kept while there is work. A service
+ * that is already queued is not queued again, and the services of one
+ * user are touched together in one transaction. A service is never
+ * redeployed by two workers at the same time. Workers that have been
+ * idle for a while close their connection and stop.
+ */
+public class Redeployer {
+    private static final Logger LOGGER = Logger.getLogger(Redeployer.class);
+
+    /* Maximum number of workers, and MAAPI connections. */
+    public static final int CONNECTIONS =
+        Integer.getInteger("com.tailf.pkg.resourcemanager.redeploy.connections",
+                           2);
+
+    /* Maximum number of services touched in one transaction. */
+    public static final int BATCH =
+        Integer.getInteger("com.tailf.pkg.resourcemanager.redeploy.batch",
+                           100);
+
+    /* Milliseconds a worker waits for work before it stops. */
+    private static final long IDLE = 60000;
+
+    private static final Redeployer instance = new Redeployer();
+
+    private LinkedHashSet<ToRedeploy> pending =
+        new LinkedHashSet<ToRedeploy>();
+    /* Services being redeployed right now. */
+    private Set<String> running = new HashSet<String>();
+    private int workers = 0;
+    private int idle = 0;
+
+    public static Redeployer getInstance() {
+        return instance;
+    }
+
+    /**
+     * Queue services for redeploy, safe to call from a CDB subscriber.
+     */
+    public synchronized void submit(Collection<ToRedeploy> toRedeploy) {
+        if (!pending.addAll(toRedeploy)) {
+            return;
+        }
+
+        if (idle > 0) {
+            notifyAll();
+        } else if (workers < CONNECTIONS) {
+            workers++;
+            Thread t = new Thread(new Worker(),
+                                  String.format("redeployer-%d", workers));
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * The next services to redeploy, all for the same user.
+     *
+     * @return the services, or null if the worker should stop
+     */
+    private synchronized List<ToRedeploy> take() {
+        long deadline = System.currentTimeMillis() + IDLE;
+        while (true) {
+            List<ToRedeploy> batch = nextBatch();
+            if (!batch.isEmpty()) {
+                return batch;
+            }
+
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                workers--;
+                return null;
+            }
+            idle++;
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                workers--;
+                return null;
+            } finally {
+                idle--;
+            }
+        }
+    }
+
+    private List<ToRedeploy> nextBatch() {
+        List<ToRedeploy> batch = new ArrayList<ToRedeploy>();
+        String user = null;
+
+        Iterator<ToRedeploy> it = pending.iterator();
+        while (it.hasNext() && batch.size() < BATCH) {
+            ToRedeploy r = it.next();
+            if (running.contains(r.getAllocatingService())) {
+                /* Wait for the current redeploy of the service. */
+                continue;
+            }
+            if (user == null) {
+                user = r.getUsername();
+            } else if (!user.equals(r.getUsername())) {
+                continue;
+            }
+            it.remove();
+            running.add(r.getAllocatingService());
+            batch.add(r);
+        }
+        return batch;
+    }
+
+    private synchronized void done(List<ToRedeploy> batch) {
+        for (ToRedeploy r : batch) {
+            running.remove(r.getAllocatingService());
+        }
+        notifyAll();
+    }
+
+    private class Worker implements Runnable {
+        private Socket sock = null;
+        private Maapi maapi = null;
+
+        public void run() {
+            List<ToRedeploy> batch;
+            while ((batch = take()) != null) {
+                try {
+                    if (maapi == null) {
+                        sock = new Socket(NcsMain.getInstance().getNcsHost(),
+                                          NcsMain.getInstance().getNcsPort());
+                        maapi = new Maapi(sock);
+                    }
+                    redeploy(batch);
+                } catch (Exception e) {
+                    LOGGER.error("error in re-deploy", e);
+                    /* Start over with a new connection next time. */
+                    close();
+                } finally {
+                    done(batch);
+                }
+            }
+            close();
+        }
+
+        private void redeploy(List<ToRedeploy> batch) throws Exception {
+            String user = batch.get(0).getUsername();
+            List<String> paths = new ArrayList<String>();
+            for (ToRedeploy r : batch) {
+                paths.add(r.getAllocatingService());
+            }
+
+            maapi.startUserSession(user,
+                                   maapi.getSocket().getInetAddress(),
+                                   "system",
+                                   new String[] {},
+                                   MaapiUserSessionFlag.PROTO_TCP);
+            try {
+                if (Conf.LIBVSN >= 0x06020000) {
+                    try {
+                        touch(user, paths);
+                    } catch (Exception e) {
+                        if (paths.size() == 1) {
+                            throw e;
+                        }
+                        /* Do not let one service hold up the others. */
+                        LOGGER.error("error in re-deploy, retrying one by one",
+                                     e);
+                        for (String path : paths) {
+                            try {
+                                touch(user,
+                                      Collections.singletonList(path));
+                            } catch (Exception ee) {
+                                LOGGER.error(String.format(
+                                    "error re-deploying %s", path), ee);
+                            }
+                        }
+                    }
+                } else {
+                    String actionFmt = Conf.LIBVSN >= 0x06010000 ?
+                        "%s/reactive-re-deploy" : "%s/re-deploy";
+                    for (String path : paths) {
+                        LOGGER.debug(String.format(
+                            "re-deploying %s as user %s", path, user));
+                        try {
+                            maapi.requestAction(new ConfXMLParam[] {},
+                                                String.format(actionFmt, path));
+                        } catch (Exception e) {
+                            LOGGER.error(String.format(
+                                "error re-deploying %s", path), e);
+                        }
+                    }
+                }
+            } finally {
+                maapi.endUserSession();
+            }
+        }
+
+        private void touch(String user, List<String> paths) throws Exception {
+            int tid = maapi.startTrans(Conf.DB_RUNNING, Conf.MODE_READ_WRITE);
+            try {
+                for (String path : paths) {
+                    LOGGER.debug(String.format("re-deploying %s as user %s",
+                                               path, user));
+                    maapi.requestActionTh(tid, new ConfXMLParam[] {},
+                                          String.format("%s/touch", path));
+                }
+                maapi.applyTrans(tid, false);
+            } finally {
+                maapi.finishTrans(tid);
+            }
+        }
+
+        private void close() {
+            maapi = null;
+            if (sock != null) {
+                try {
+                    sock.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                sock = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.tailf.pkg.nsoutil;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resources allocated for a request that is not committed yet, by
+ * pool and allocation id.
+ *
+ * A synchronous allocation takes the resource from the pool right
+ * away and keeps it here, with the service it was made for, until
+ * the allocator sees the committed request of that service and takes
+ * the reservation over. If the transaction never commits the
+ * reservation expires after the timeout and the allocator is told to
+ * give the resource back.
+ *
+ * Reservations are only kept in memory. When the allocator is loaded
+ * it finds the resources of lost reservations in the pools, as
+ * allocated but not answered to any request.
+ */
+public class Reservations<V> {
+
+    /* Milliseconds before an uncommitted reservation is given back. */
+    public static final long TIMEOUT =
+        Long.getLong("com.tailf.pkg.resourcemanager.reservation.timeout",
+                     120000);
+
+    /**
+     * Gives back the resource of an expired reservation. Called
+     * without any pool lock held, the implementation takes the lock
+     * and then remove(String, String, Object) to see if the
+     * reservation is still there.
+     */
+    public interface Expiry<V> {
+        void expired(String pool, String id, V value);
+    }
+
+    private static class Reservation<V> {
+        final String owner;
+        final V value;
+
+        Reservation(String owner, V value) {
+            this.owner = owner;
+            this.value = value;
+        }
+    }
+
+    private ConcurrentMap<String, Reservation<V>> reserved =
+        new ConcurrentHashMap<String, Reservation<V>>();
+    private Expiry<V> expiry;
+    private long timeout;
+
+    private ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "reservations");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    public Reservations(Expiry<V> expiry) {
+        this(expiry, TIMEOUT);
+    }
+
+    /**
+     * @param timeout milliseconds before a reservation expires
+     */
+    public Reservations(Expiry<V> expiry, long timeout) {
+        this.expiry = expiry;
+        this.timeout = timeout;
+    }
+
+    /**
+     * The reservation of owner.
+     *
+     * @return the reserved value, or null if there is none or it was
+     *         made for another owner
+     */
+    public V get(String pool, String id, String owner) {
+        Reservation<V> r = reserved.get(key(pool, id));
+        return r != null && r.owner.equals(owner) ? r.value : null;
+    }
+
+    /**
+     * Whether there is a reservation, for any owner.
+     */
+    public boolean contains(String pool, String id) {
+        return reserved.containsKey(key(pool, id));
+    }
+
+    public void put(final String pool, final String id, String owner,
+                    final V value) {
+        final Reservation<V> r = new Reservation<V>(owner, value);
+        reserved.put(key(pool, id), r);
+        timer.schedule(new Runnable() {
+                public void run() {
+                    if (reserved.get(key(pool, id)) == r) {
+                        expiry.expired(pool, id, value);
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take over the reservation of owner. A reservation made for
+     * another owner is left to expire.
+     *
+     * @return the reserved value, or null if there is none for owner
+     */
+    public V take(String pool, String id, String owner) {
+        String key = key(pool, id);
+        Reservation<V> r = reserved.get(key);
+        if (r != null && r.owner.equals(owner) && reserved.remove(key, r)) {
+            return r.value;
+        }
+        return null;
+    }
+
+    /**
+     * Remove a reservation if it still has the given value.
+     */
+    public boolean remove(String pool, String id, V value) {
+        String key = key(pool, id);
+        Reservation<V> r = reserved.get(key);
+        return r != null && r.value.equals(value) && reserved.remove(key, r);
+    }
+
+    /**
+     * Remove the reservations of a pool, without giving anything back.
+     */
+    public void removePool(String pool) {
+        String prefix = key(pool, "");
+        for (String key : reserved.keySet()) {
+            if (key.startsWith(prefix)) {
+                reserved.remove(key);
+            }
+        }
+    }
+
+    public void clear() {
+        reserved.clear();
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+        reserved.clear();
+    }
+
+    private static String key(String pool, String id) {
+        return pool + "\0" + id;
+    }
+}
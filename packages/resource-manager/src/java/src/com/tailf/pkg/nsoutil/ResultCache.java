@@ -0,0 +1,51 @@
+package com.tailf.pkg.nsoutil;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Answered allocation requests by pool and allocation id, for the
+ * read APIs of an allocator running in the same JVM.
+ *
+ * The allocator puts a result when it has written the response to
+ * CDB, and removes it as soon as it sees the allocation change or go
+ * away, so an entry is never older than the response in CDB. Readers
+ * go to CDB for anything that is not here.
+ */
+public class ResultCache<V> {
+
+    private ConcurrentMap<String, ConcurrentMap<String, V>> pools =
+        new ConcurrentHashMap<String, ConcurrentMap<String, V>>();
+
+    public V get(String pool, String id) {
+        ConcurrentMap<String, V> results = pools.get(pool);
+        return results == null ? null : results.get(id);
+    }
+
+    public void put(String pool, String id, V result) {
+        ConcurrentMap<String, V> results = pools.get(pool);
+        if (results == null) {
+            results = new ConcurrentHashMap<String, V>();
+            ConcurrentMap<String, V> prev = pools.putIfAbsent(pool, results);
+            if (prev != null) {
+                results = prev;
+            }
+        }
+        results.put(id, result);
+    }
+
+    public void remove(String pool, String id) {
+        ConcurrentMap<String, V> results = pools.get(pool);
+        if (results != null) {
+            results.remove(id);
+        }
+    }
+
+    public void removePool(String pool) {
+        pools.remove(pool);
+    }
+
+    public void clear() {
+        pools.clear();
+    }
+}
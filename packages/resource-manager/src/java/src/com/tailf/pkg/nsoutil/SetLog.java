@@ -0,0 +1,377 @@
+package com.tailf.pkg.nsoutil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.tailf.cdb.CdbSession;
+import com.tailf.conf.ConfPath;
+import com.tailf.conf.ConfUInt64;
+
+/**
+ * Local snapshot plus delta log of a set that is persisted in CDB.
+ *
+ * The snapshot is a compact binary copy of the whole set, the log has
+ * one record for every element written to or deleted from CDB since
+ * the snapshot was taken. Loading a pool reads the snapshot and
+ * replays the log instead of reading the oper list, which is much
+ * faster for large pools. Once the log is longer than the set a new
+ * snapshot is written and the log is restarted.
+ *
+ * CDB stays the master copy. Every flush of the set bumps a
+ * generation in CDB before it writes its changes, and appends the
+ * same generation to the log once they are written. The snapshot is
+ * only used if the generation it ends with is the one in CDB, so
+ * files from an older state, such as those of a node that was master
+ * before an HA failover, or a log that lost its tail in a crash, make
+ * the caller read CDB instead. Any IO error disables the log and
+ * removes the files, so the next load reads CDB.
+ */
+public class SetLog<E> {
+    private static final Logger LOGGER = Logger.getLogger(SetLog.class);
+
+    /* Directory for the files, relative to the NSO run directory. */
+    public static final String DIR =
+        System.getProperty("com.tailf.pkg.resourcemanager.statedir",
+                           "state/resource-manager");
+
+    private static final int MAGIC = 0x524d534c; /* "RMSL" */
+    private static final int VERSION = 2;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_CLEAR = 3;
+    private static final byte OP_GENERATION = 4;
+
+    /* Generations start at a random value, see next(). */
+    private static final Random RANDOM = new Random();
+
+    /* Never restart the log for less than this many records. */
+    private static final int MIN_COMPACT = 1024;
+
+    /**
+     * Reads and writes the elements of the set.
+     */
+    public interface Codec<E> {
+        void write(DataOutput out, E e) throws IOException;
+
+        E read(DataInput in) throws IOException;
+    }
+
+    private Codec<E> codec;
+    private File snapshotFile;
+    private File logFile;
+    private DataOutputStream log = null;
+    private int records = 0;
+    private boolean enabled = true;
+
+    /* The entry in CDB with the generation leaf, and its value. */
+    private ConfPath generationPath;
+    private long generation = 0;
+
+    /**
+     * @param kind the allocator, such as id-allocator
+     * @param poolName name of the pool
+     * @param location which set of the pool, such as available
+     * @param codec reads and writes the elements
+     */
+    public SetLog(String kind, String poolName, String location,
+                  Codec<E> codec) {
+        this.codec = codec;
+
+        File dir;
+        try {
+            dir = new File(new File(DIR, kind),
+                           URLEncoder.encode(poolName, "UTF-8"));
+        } catch (IOException e) {
+            throw new Error(e); /* UTF-8 is always supported */
+        }
+        this.snapshotFile = new File(dir, location + ".snap");
+        this.logFile = new File(dir, location + ".log");
+    }
+
+    /**
+     * Read the generation of the set from CDB, then the snapshot and
+     * the log.
+     *
+     * @param sess session to read the generation with
+     * @param entry the entry of the set in the snapshot list of the
+     * pool, created if it does not exist
+     * @return the elements, or null if there is no snapshot of the
+     * generation in CDB
+     */
+    public synchronized List<E> load(CdbSession sess, ConfPath entry)
+        throws Exception {
+        generationPath = entry;
+        ConfPath leaf = generationLeaf();
+        if (sess.exists(leaf)) {
+            generation = ((ConfUInt64) sess.getElem(leaf)).longValue();
+        } else {
+            /* No generation, so no snapshot can be trusted. */
+            generation = 0;
+            if (!sess.exists(entry)) {
+                sess.create(entry);
+            }
+        }
+
+        if (!enabled || !snapshotFile.exists()) {
+            return null;
+        }
+
+        Set<E> res = new LinkedHashSet<E>();
+        long loaded;
+        try {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(snapshotFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    LOGGER.warn(String.format("Ignoring %s, unknown format",
+                                              snapshotFile));
+                    return null;
+                }
+                loaded = in.readLong();
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    res.add(codec.read(in));
+                }
+            } finally {
+                in.close();
+            }
+
+            records = 0;
+            if (logFile.exists()) {
+                in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(logFile)));
+                try {
+                    while (true) {
+                        byte op;
+                        try {
+                            op = in.readByte();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        if (op == OP_GENERATION) {
+                            loaded = in.readLong();
+                        } else if (op == OP_CLEAR) {
+                            res.clear();
+                        } else if (op == OP_ADD) {
+                            res.add(codec.read(in));
+                        } else if (op == OP_REMOVE) {
+                            res.remove(codec.read(in));
+                        } else {
+                            throw new IOException("Bad log record " + op);
+                        }
+                        records++;
+                    }
+                } catch (EOFException e) {
+                    /*
+                     * A record cut short by a crash. The generation
+                     * record of that flush is lost as well, so the
+                     * check below rejects the result.
+                     */
+                    LOGGER.warn(String.format("Truncated record in %s",
+                                              logFile));
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error(String.format("Failed to read %s", snapshotFile), e);
+            disable();
+            return null;
+        }
+
+        if (generation == 0 || loaded != generation) {
+            LOGGER.info(String.format("Ignoring %s, generation %d" +
+                                      " but CDB has %d",
+                                      snapshotFile, loaded, generation));
+            return null;
+        }
+        return new ArrayList<E>(res);
+    }
+
+    /**
+     * Bump the generation in CDB, before the changes of a flush are
+     * written. Done whether or not the log is enabled, so that the
+     * files of any other node no longer match.
+     *
+     * @param sess session to write the generation with
+     */
+    public synchronized void begin(CdbSession sess) throws Exception {
+        if (generationPath == null) {
+            return;
+        }
+        generation = next(generation);
+        sess.setElem(new ConfUInt64(generation), generationLeaf());
+    }
+
+    public synchronized void add(E e) {
+        append(OP_ADD, e);
+    }
+
+    public synchronized void remove(E e) {
+        append(OP_REMOVE, e);
+    }
+
+    public synchronized void clear() {
+        append(OP_CLEAR, null);
+    }
+
+    /**
+     * Mark the records appended since begin(CdbSession) as the
+     * current generation and make them durable, and write a new
+     * snapshot if the log has grown longer than the set.
+     *
+     * @param current the current contents of the set
+     */
+    public synchronized void commit(Collection<E> current) {
+        if (!enabled) {
+            return;
+        }
+
+        try {
+            append(OP_GENERATION, null);
+            if (log != null) {
+                log.flush();
+            }
+            if (records > Math.max(MIN_COMPACT, current.size())) {
+                snapshot(current);
+            }
+        } catch (IOException e) {
+            LOGGER.error(String.format("Failed to write %s", logFile), e);
+            disable();
+        }
+    }
+
+    /**
+     * Write a snapshot of the whole set and restart the log.
+     */
+    public synchronized void snapshot(Collection<E> current) {
+        if (!enabled) {
+            return;
+        }
+
+        try {
+            closeLog();
+            snapshotFile.getParentFile().mkdirs();
+
+            File tmp = new File(snapshotFile.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(generation);
+                out.writeInt(current.size());
+                for (E e : current) {
+                    codec.write(out, e);
+                }
+            } finally {
+                out.close();
+            }
+
+            /* Drop the log first, it does not apply to the new snapshot. */
+            if (logFile.exists() && !logFile.delete()) {
+                throw new IOException("Could not delete " + logFile);
+            }
+            if (!tmp.renameTo(snapshotFile)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+            records = 0;
+        } catch (IOException e) {
+            LOGGER.error(String.format("Failed to write %s", snapshotFile), e);
+            disable();
+        }
+    }
+
+    /**
+     * Remove the files, for instance when the pool is deleted.
+     */
+    public synchronized void delete() {
+        try {
+            closeLog();
+        } catch (IOException e) {
+            /* The files are removed anyway. */
+            ;
+        }
+        logFile.delete();
+        snapshotFile.delete();
+        snapshotFile.getParentFile().delete();
+    }
+
+    private void append(byte op, E e) {
+        if (!enabled) {
+            return;
+        }
+
+        try {
+            if (log == null) {
+                /* Nothing to append to without a snapshot. */
+                if (!snapshotFile.exists()) {
+                    return;
+                }
+                log = new DataOutputStream(new BufferedOutputStream(
+                          new FileOutputStream(logFile, true)));
+            }
+            log.writeByte(op);
+            if (op == OP_GENERATION) {
+                log.writeLong(generation);
+            } else if (e != null) {
+                codec.write(log, e);
+            }
+            records++;
+        } catch (IOException ex) {
+            LOGGER.error(String.format("Failed to write %s", logFile), ex);
+            disable();
+        }
+    }
+
+    private ConfPath generationLeaf() {
+        return generationPath.copyAppend("generation");
+    }
+
+    /*
+     * The generation after g. A set without a generation starts at a
+     * random one, so that a pool that is deleted and created again
+     * does not repeat the generations of the files of its old self.
+     */
+    private static long next(long g) {
+        if (g == 0) {
+            /* Positive, with room to count up. */
+            return (RANDOM.nextLong() >>> 2) + 1;
+        }
+        return g + 1;
+    }
+
+    private void closeLog() throws IOException {
+        if (log != null) {
+            try {
+                log.close();
+            } finally {
+                log = null;
+            }
+        }
+    }
+
+    private void disable() {
+        enabled = false;
+        delete();
+    }
+}
@@ -0,0 +1,152 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+import com.tailf.pkg.ipam.util.Address;
+
+public class AddressTest {
+
+    private static final String ONES6 = "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff";
+
+    private static Address addr(String address) throws UnknownHostException {
+        return Address.of(InetAddress.getByName(address));
+    }
+
+    @Test
+    public void testAddIPv4() throws UnknownHostException {
+        assertEquals(addr("10.0.1.0"), addr("10.0.0.255").add(1));
+        assertEquals(addr("10.0.0.255"), addr("10.0.1.0").add(-1));
+        assertEquals(addr("10.1.0.0"), addr("10.0.0.0").add(0x10000));
+
+        /* Wraps around at the ends of the address space. */
+        assertEquals(addr("0.0.0.0"), addr("255.255.255.255").add(1));
+        assertEquals(addr("255.255.255.255"), addr("0.0.0.0").add(-1));
+    }
+
+    @Test
+    public void testAddIPv6() throws UnknownHostException {
+        /* Carry into and borrow from the upper 64 bits. */
+        assertEquals(addr("2001:db8:0:1::"),
+                     addr("2001:db8::ffff:ffff:ffff:ffff").add(1));
+        assertEquals(addr("2001:db8:0:1::f"),
+                     addr("2001:db8::ffff:ffff:ffff:fff0").add(0x1f));
+        assertEquals(addr("2001:db8::ffff:ffff:ffff:ffff"),
+                     addr("2001:db8:0:1::").add(-1));
+        assertEquals(addr("2001:db8::ffff:ffff:ffff:fff0"),
+                     addr("2001:db8:0:1::f").add(-0x1f));
+        assertEquals(addr("2001:db8::8000:0:0:0"),
+                     addr("2001:db8::").add(Long.MAX_VALUE).add(1));
+        assertEquals(addr("2001:db8:0:1::"),
+                     addr("2001:db8::").add(Long.MAX_VALUE)
+                     .add(Long.MAX_VALUE).add(2));
+
+        assertEquals(addr("::"), addr(ONES6).add(1));
+        assertEquals(addr(ONES6), addr("::").add(-1));
+    }
+
+    @Test
+    public void testAlignment() throws UnknownHostException {
+        assertEquals(0, addr("0.0.0.0").alignment());
+        assertEquals(1, addr("128.0.0.0").alignment());
+        assertEquals(7, addr("10.0.0.0").alignment());
+        assertEquals(32, addr("10.0.0.1").alignment());
+        assertEquals(32, addr("255.255.255.255").alignment());
+
+        assertEquals(0, addr("::").alignment());
+        assertEquals(1, addr("8000::").alignment());
+        assertEquals(29, addr("2001:db8::").alignment());
+        assertEquals(64, addr("0:0:0:1::").alignment());
+        assertEquals(65, addr("::8000:0:0:0").alignment());
+        assertEquals(128, addr("::1").alignment());
+        assertEquals(128, addr(ONES6).alignment());
+    }
+
+    @Test
+    public void testWithBit() throws UnknownHostException {
+        assertEquals(addr("128.0.0.0"), addr("0.0.0.0").withBit(0, 1));
+        assertEquals(addr("0.0.0.1"), addr("0.0.0.0").withBit(31, 1));
+        assertEquals(addr("255.255.255.254"),
+                     addr("255.255.255.255").withBit(31, 0));
+        assertEquals(addr("10.0.0.0"), addr("10.0.0.0").withBit(4, 1));
+        assertEquals(1, addr("10.0.0.0").getBit(4));
+        assertEquals(0, addr("10.0.0.0").getBit(5));
+
+        /* The last bit of the upper and the first of the lower half. */
+        assertEquals(addr("0:0:0:1::"), addr("::").withBit(63, 1));
+        assertEquals(addr("::8000:0:0:0"), addr("::").withBit(64, 1));
+        assertEquals(addr("8000::"), addr("::").withBit(0, 1));
+        assertEquals(addr("::1"), addr("::").withBit(127, 1));
+        assertEquals(addr("ffff:ffff:ffff:fffe:ffff:ffff:ffff:ffff"),
+                     addr(ONES6).withBit(63, 0));
+        assertEquals(addr("ffff:ffff:ffff:ffff:7fff:ffff:ffff:ffff"),
+                     addr(ONES6).withBit(64, 0));
+        assertEquals(1, addr("0:0:0:1::").getBit(63));
+        assertEquals(0, addr("0:0:0:1::").getBit(64));
+    }
+
+    @Test
+    public void testNetworkAndBroadcast() throws UnknownHostException {
+        Address a4 = addr("10.1.2.3");
+        assertEquals(addr("0.0.0.0"), a4.network(0));
+        assertEquals(addr("255.255.255.255"), a4.broadcast(0));
+        assertEquals(addr("10.0.0.0"), a4.network(8));
+        assertEquals(addr("10.255.255.255"), a4.broadcast(8));
+        assertEquals(a4, a4.network(32));
+        assertEquals(a4, a4.broadcast(32));
+
+        Address a6 = addr("2001:db8:1:2:3:4:5:6");
+        assertEquals(addr("::"), a6.network(0));
+        assertEquals(addr(ONES6), a6.broadcast(0));
+        assertEquals(addr("2001:db8:1:2::"), a6.network(63));
+        assertEquals(addr("2001:db8:1:3:ffff:ffff:ffff:ffff"),
+                     a6.broadcast(63));
+        assertEquals(addr("2001:db8:1:2::"), a6.network(64));
+        assertEquals(addr("2001:db8:1:2:ffff:ffff:ffff:ffff"),
+                     a6.broadcast(64));
+        assertEquals(addr("2001:db8:1:2::"), a6.network(65));
+        assertEquals(addr("2001:db8:1:2:7fff:ffff:ffff:ffff"),
+                     a6.broadcast(65));
+        assertEquals(a6, a6.network(128));
+        assertEquals(a6, a6.broadcast(128));
+    }
+
+    @Test
+    public void testSameNetwork() throws UnknownHostException {
+        assertTrue(addr("10.0.0.1").sameNetwork(addr("10.0.0.2"), 30));
+        assertFalse(addr("10.0.0.1").sameNetwork(addr("10.0.0.2"), 31));
+        assertTrue(addr("10.0.0.1").sameNetwork(addr("255.0.0.0"), 0));
+
+        assertTrue(addr("2001:db8::1").sameNetwork(
+                       addr("2001:db8::ffff:ffff:ffff:ffff"), 64));
+        assertFalse(addr("2001:db8::1").sameNetwork(
+                        addr("2001:db8:0:1::"), 64));
+        assertTrue(addr("2001:db8::1").sameNetwork(
+                       addr("2001:db8:0:1::"), 63));
+
+        /* Never across address families. */
+        assertFalse(addr("0.0.0.0").sameNetwork(addr("::"), 0));
+    }
+
+    @Test
+    public void testIsFollowedBy() throws UnknownHostException {
+        assertTrue(addr("10.0.0.255").isFollowedBy(addr("10.0.1.0")));
+        assertFalse(addr("10.0.0.1").isFollowedBy(addr("10.0.0.3")));
+        assertFalse(addr("10.0.0.1").isFollowedBy(addr("10.0.0.1")));
+        assertTrue(addr("255.255.255.255").isFollowedBy(addr("0.0.0.0")));
+
+        assertTrue(addr("2001:db8::ffff:ffff:ffff:ffff").isFollowedBy(
+                       addr("2001:db8:0:1::")));
+        assertFalse(addr("2001:db8::ffff:ffff:ffff:ffff").isFollowedBy(
+                        addr("2001:db8::")));
+        assertTrue(addr(ONES6).isFollowedBy(addr("::")));
+
+        assertFalse(addr("0.0.0.0").isFollowedBy(addr("::1")));
+    }
+}
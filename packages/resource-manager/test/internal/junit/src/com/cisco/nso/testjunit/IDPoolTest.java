@@ -6,12 +6,15 @@ import static org.junit.Assert.fail;
 
 import org.junit.*;
 
+import com.tailf.pkg.idallocator.namespaces.idAllocator;
 import com.tailf.pkg.idpool.Allocation;
 import com.tailf.pkg.idpool.IDPool;
 import com.tailf.pkg.idpool.Range;
 import com.tailf.pkg.idpool.exceptions.AllocationException;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.TreeSet;
 
 public class IDPoolTest {
 
@@ -20,7 +23,8 @@ public class IDPoolTest {
         IDPool pool = new IDPool("test-pool",
                                  new HashSet<Range>(),
                                  new HashSet<Range>(),
-                                 new HashSet<Allocation>());
+                                 new HashSet<Allocation>(),
+                                 false, 10);
         Allocation a1 = null;
 
         try {
@@ -31,7 +35,7 @@ public class IDPoolTest {
         }
 
         assertNotNull(a1);
-        assertEquals((Integer)5, a1.getAllocated());
+        assertEquals(5L, a1.getAllocated());
 
         try {
             pool.release(a1);
@@ -47,4 +51,260 @@ public class IDPoolTest {
                          "from the pool test-pool", e.getMessage());
         }
     }
+
+    @Test
+    public void testReleaseMergesNeighbours() {
+        TreeSet<Range> availables = new TreeSet<Range>();
+        IDPool pool = new IDPool("test-pool",
+                                 new HashSet<Range>(),
+                                 availables,
+                                 new HashSet<Allocation>(),
+                                 false, 10);
+
+        try {
+            pool.setRange(new Range(1, 10));
+            pool.allocate("occupant", 4);
+            pool.allocate("occupant", 5);
+            pool.allocate("occupant", 6);
+
+            assertEquals(2, availables.size());
+            assertEquals(false, pool.isAvailable(5));
+
+            pool.release(4);
+            pool.release(6);
+            assertEquals(new TreeSet<Range>(Arrays.asList(
+                             new Range(1, 4), new Range(6, 10))),
+                         availables);
+
+            pool.release(5);
+        } catch (Exception e) {
+            fail("Unexpected exception: " + e);
+        }
+
+        assertEquals(1, availables.size());
+        assertEquals(new Range(1, 10), availables.first());
+        assertEquals(true, pool.isAvailable(5));
+    }
+
+    @Test
+    public void testBitmapStorage() {
+        TreeSet<Range> availables = new TreeSet<Range>();
+        availables.add(new Range(1, 10));
+        IDPool pool = new IDPool("test-pool",
+                                 new HashSet<Range>(),
+                                 availables,
+                                 new HashSet<Allocation>(),
+                                 false, 10,
+                                 IDPool.Storage.BITMAP);
+
+        try {
+            pool.setRange(new Range(1, 8000));
+            assertEquals(0, availables.size());
+
+            assertEquals(1, pool.allocate("occupant").getAllocated());
+            assertEquals(4000,
+                         pool.allocate("occupant", 4000).getAllocated());
+            assertEquals(2, pool.allocate("occupant").getAllocated());
+
+            pool.release(1);
+            assertEquals(1, pool.allocate("occupant").getAllocated());
+        } catch (Exception e) {
+            fail("Unexpected exception: " + e);
+        }
+
+        assertEquals(false, pool.isAvailable(4000));
+        assertEquals(true, pool.isAvailable(4001));
+        assertEquals(7997, pool.getNumberOfAvailables());
+        assertEquals(2, pool.getAvailables().size());
+    }
+
+    @Test
+    public void testChangeStorage() {
+        TreeSet<Range> availables = new TreeSet<Range>();
+        IDPool pool = new IDPool("test-pool",
+                                 new HashSet<Range>(),
+                                 availables,
+                                 new HashSet<Allocation>(),
+                                 false, 10);
+
+        try {
+            pool.setRange(new Range(1, 100));
+            pool.allocate("occupant", 50);
+            assertEquals(2, availables.size());
+
+            pool.setStorage(IDPool.Storage.BITMAP);
+            assertEquals(0, availables.size());
+            assertEquals(false, pool.isAvailable(50));
+            assertEquals(2, pool.allocate("occupant", 2).getAllocated());
+
+            pool.setStorage(IDPool.Storage.RANGES);
+            assertEquals(new TreeSet<Range>(Arrays.asList(
+                             new Range(1, 1), new Range(3, 49),
+                             new Range(51, 100))),
+                         availables);
+        } catch (Exception e) {
+            fail("Unexpected exception: " + e);
+        }
+
+        assertEquals(98, pool.getNumberOfAvailables());
+    }
+
+    @Test
+    public void testRoundRobinSkipsAllocatedRun() {
+        IDPool pool = new IDPool("test-pool",
+                                 new HashSet<Range>(),
+                                 new TreeSet<Range>(),
+                                 new HashSet<Allocation>(),
+                                 false, 10);
+        String rr = idAllocator._roundrobin_;
+
+        try {
+            pool.setRange(new Range(1, 1000));
+            pool.allocate("occupant", 1);
+            for (long id = 3; id <= 999; id++) {
+                pool.allocate("occupant", id);
+            }
+            pool.release(1);
+
+            /* Continue after the last allocation, then wrap around. */
+            assertEquals(1000, pool.allocate("occupant", rr).getAllocated());
+            assertEquals(1, pool.allocate("occupant", rr).getAllocated());
+            assertEquals(2, pool.allocate("occupant", rr).getAllocated());
+        } catch (Exception e) {
+            fail("Unexpected exception: " + e);
+        }
+
+        try {
+            pool.allocate("occupant", rr);
+            fail("Expected a PoolExhaustedException to be thrown");
+        } catch (AllocationException e) {
+            assertEquals("ID pool test-pool exhausted", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testLowestCommonAvailable() {
+        IDPool p1 = new IDPool("p1", new HashSet<Range>(),
+                               new TreeSet<Range>(),
+                               new HashSet<Allocation>(), false, 10);
+        IDPool p2 = new IDPool("p2", new HashSet<Range>(),
+                               new TreeSet<Range>(),
+                               new HashSet<Allocation>(), false, 10);
+
+        try {
+            p1.setRange(new Range(1, 100));
+            p2.setRange(new Range(1, 100));
+            for (long id = 1; id <= 10; id++) {
+                p1.allocate("occupant", id);
+            }
+            for (long id = 11; id <= 20; id++) {
+                p2.allocate("occupant", id);
+            }
+            p2.allocate("occupant", 22);
+        } catch (Exception e) {
+            fail("Unexpected exception: " + e);
+        }
+
+        assertEquals(21, IDPool.lowestCommonAvailable(Arrays.asList(p1, p2)));
+
+        try {
+            p1.allocate("occupant", 21);
+            for (long id = 23; id <= 100; id++) {
+                p2.allocate("occupant", id);
+            }
+        } catch (Exception e) {
+            fail("Unexpected exception: " + e);
+        }
+
+        assertEquals(-1, IDPool.lowestCommonAvailable(Arrays.asList(p1, p2)));
+    }
+
+    @Test
+    public void testExcludeSpanningRanges() {
+        TreeSet<Range> availables = new TreeSet<Range>();
+        IDPool pool = new IDPool("test-pool",
+                                 new HashSet<Range>(),
+                                 availables,
+                                 new HashSet<Allocation>(),
+                                 false, 10);
+
+        try {
+            pool.setRange(new Range(1, 100));
+            pool.allocate("occupant", 20);
+            pool.allocate("occupant", 40);
+        } catch (Exception e) {
+            fail("Unexpected exception: " + e);
+        }
+
+        pool.addToExcludes(new Range(10, 50));
+        assertEquals(2, availables.size());
+        assertEquals(new Range(1, 9), availables.first());
+        assertEquals(new Range(51, 100), availables.last());
+
+        pool.setRange(new Range(30, 60));
+        assertEquals(1, availables.size());
+        assertEquals(new Range(51, 60), availables.first());
+
+        pool.removeFromExcludes(new Range(10, 50));
+        assertEquals(2, availables.size());
+        assertEquals(new Range(30, 39), availables.first());
+        assertEquals(new Range(41, 60), availables.last());
+    }
+
+    @Test
+    public void testAllocateBlock() {
+        TreeSet<Range> availables = new TreeSet<Range>();
+        IDPool pool = new IDPool("test-pool",
+                                 new HashSet<Range>(),
+                                 availables,
+                                 new HashSet<Allocation>(),
+                                 false, 10);
+        Allocation block = null;
+
+        try {
+            pool.setRange(new Range(0, 99));
+            /* Leave free ranges 0-9, 11-14 and 16-99. */
+            pool.allocate("occupant", 10);
+            pool.allocate("occupant", 15);
+
+            /* Best fit picks the smallest range that can hold the block. */
+            block = pool.allocateBlock("occupant", 4, 1);
+            assertEquals(11, block.getAllocated());
+
+            block = pool.allocateBlock("occupant", 12, 8);
+            assertEquals(16, block.getAllocated());
+        } catch (Exception e) {
+            fail("Unexpected exception: " + e);
+        }
+
+        assertEquals(2, availables.size());
+        assertEquals(new Range(0, 9), availables.first());
+        assertEquals(new Range(28, 99), availables.last());
+        assertEquals(18, pool.getAllocations().size());
+
+        try {
+            pool.allocateBlock("occupant", 8, 3);
+            fail("Expected AllocationException");
+        } catch (AllocationException e) {
+            /* Alignment must be a power of two. */
+        }
+
+        try {
+            pool.allocateBlock("occupant", 20, 4, 1);
+            fail("Expected AllocationException");
+        } catch (AllocationException e) {
+            /* 20-23 is taken. */
+        }
+
+        try {
+            pool.releaseBlock(16, 12);
+            pool.releaseBlock(11, 4);
+        } catch (Exception e) {
+            fail("Unexpected exception: " + e);
+        }
+
+        assertEquals(3, availables.size());
+        assertEquals(new Range(16, 99), availables.last());
+        assertEquals(2, pool.getAllocations().size());
+    }
 }
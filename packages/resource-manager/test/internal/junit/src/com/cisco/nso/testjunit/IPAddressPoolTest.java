@@ -12,13 +12,18 @@ import com.tailf.pkg.ipam.exceptions.AddressNotAllocatedException;
 import com.tailf.pkg.ipam.exceptions.AddressPoolException;
 import com.tailf.pkg.ipam.exceptions.AddressRequestNotAvailableException;
 import com.tailf.pkg.ipam.exceptions.InvalidNetmaskException;
+import com.tailf.pkg.ipam.util.InetAddressRangeSet;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 public class IPAddressPoolTest {
 
@@ -153,4 +158,233 @@ public class IPAddressPoolTest {
         Assert.assertFalse((Boolean)m.invoke(i, new Object[]
             {new Subnet("1:2:ffff:ffff:ffff:ffff:ffff:ffff", 128), 128}));
     }
+
+    @Test
+    public void testAvailableCounts() {
+        IPAddressPool pool = new IPAddressPool("test-pool",
+                                               new HashSet<Subnet>(),
+                                               new HashSet<Allocation>(),
+                                               new HashSet<Subnet>());
+
+        try {
+            Subnet net = new Subnet("10.0.0.0", 24);
+            pool.addSubnet(net);
+            pool.addToAvailable(net);
+            assertEquals(254, pool.getTotalSize());
+            assertEquals(254, pool.getNumberOfAvailables());
+
+            Allocation a = pool.allocate(25, "owner", "admin", "r1");
+            assertEquals(126, pool.getNumberOfAvailables());
+            pool.setThreshold(50);
+            Assert.assertTrue(pool.isLowThresholdReached());
+
+            pool.release(a);
+            assertEquals(254, pool.getNumberOfAvailables());
+            Assert.assertFalse(pool.isLowThresholdReached());
+
+            pool.removeSubnet(net);
+            assertEquals(0, pool.getTotalSize());
+        } catch (Exception e) {
+            fail("Unexpected exception: " + e);
+        }
+    }
+
+    @Test
+    public void testIPv6AvailableCountsDoNotOverflow() {
+        IPAddressPool pool = new IPAddressPool("test-pool",
+                                               new HashSet<Subnet>(),
+                                               new HashSet<Allocation>(),
+                                               new HashSet<Subnet>());
+
+        try {
+            for (String addr : new String[] {"2001:db8::", "2001:db8:0:1::"}) {
+                Subnet net = new Subnet(addr, 64);
+                pool.addSubnet(net);
+                pool.addToAvailable(net);
+            }
+        } catch (Exception e) {
+            fail("Unexpected exception: " + e);
+        }
+
+        assertEquals(Long.MAX_VALUE, pool.getTotalSize());
+        assertEquals(Long.MAX_VALUE, pool.getNumberOfAvailables());
+        Assert.assertFalse(pool.isLowThresholdReached());
+        Assert.assertFalse(pool.isEmpty());
+    }
+
+    private static Set<Subnet> subnets(String... expressions)
+        throws UnknownHostException, InvalidNetmaskException {
+        Set<Subnet> result = new HashSet<Subnet>();
+        for (String expression : expressions) {
+            result.add(new Subnet(expression));
+        }
+        return result;
+    }
+
+    private static IPAddressPool pool(String... expressions)
+        throws UnknownHostException, InvalidNetmaskException {
+        IPAddressPool pool = new IPAddressPool("test-pool",
+                                               new HashSet<Subnet>(),
+                                               new HashSet<Allocation>(),
+                                               new HashSet<Subnet>());
+        for (Subnet subnet : subnets(expressions)) {
+            pool.addToAvailable(subnet);
+        }
+        return pool;
+    }
+
+    @Test
+    public void testReleaseMergesThroughTwoAddressSubnet() {
+        try {
+            IPAddressPool pool = pool("10.0.0.0/29");
+
+            /* The rest of the /30 is kept as two single addresses. */
+            Allocation a = pool.allocate(31, "owner", "admin", "r1");
+            assertEquals(new Subnet("10.0.0.0/31"), a.getAllocated());
+            assertEquals(subnets("10.0.0.2/32", "10.0.0.3/32", "10.0.0.4/30"),
+                         new HashSet<Subnet>(pool.getAvailables()));
+
+            Allocation b = pool.allocate(32, "owner", "admin", "r2");
+            assertEquals(new Subnet("10.0.0.2/32"), b.getAllocated());
+
+            /* 10.0.0.3 has no free buddy, nothing merges. */
+            pool.release(a);
+            assertEquals(subnets("10.0.0.0/32", "10.0.0.1/32",
+                                 "10.0.0.3/32", "10.0.0.4/30"),
+                         new HashSet<Subnet>(pool.getAvailables()));
+
+            /* Merges to 10.0.0.2/31, 10.0.0.0/30 and 10.0.0.0/29. */
+            pool.release(b);
+            assertEquals(subnets("10.0.0.0/29"),
+                         new HashSet<Subnet>(pool.getAvailables()));
+            assertEquals(pool("10.0.0.0/29").getNumberOfAvailables(),
+                         pool.getNumberOfAvailables());
+        } catch (Exception e) {
+            fail("Unexpected exception: " + e);
+        }
+    }
+
+    @Test
+    public void testReleaseStopsAtAllocatedBuddy() {
+        try {
+            IPAddressPool pool = pool("10.0.0.0/28");
+            Allocation a = pool.allocate(30, "owner", "admin", "r1");
+            Allocation b = pool.allocate(30, "owner", "admin", "r2");
+            assertEquals(new Subnet("10.0.0.0/30"), a.getAllocated());
+            assertEquals(new Subnet("10.0.0.4/30"), b.getAllocated());
+
+            /* 10.0.0.4/30 is allocated, so 10.0.0.0/30 stays as it is. */
+            pool.release(a);
+            assertEquals(subnets("10.0.0.0/30", "10.0.0.8/29"),
+                         new HashSet<Subnet>(pool.getAvailables()));
+
+            pool.release(b);
+            assertEquals(subnets("10.0.0.0/28"),
+                         new HashSet<Subnet>(pool.getAvailables()));
+
+            /* The same for IPv6, stopping below the /64. */
+            pool = pool("2001:db8::/63");
+            a = pool.allocate(64, "owner", "admin", "r3");
+            b = pool.allocate(65, "owner", "admin", "r4");
+            assertEquals(new Subnet("2001:db8::/64"), a.getAllocated());
+            assertEquals(new Subnet("2001:db8:0:1::/65"), b.getAllocated());
+
+            pool.release(a);
+            assertEquals(subnets("2001:db8::/64", "2001:db8:0:1:8000::/65"),
+                         new HashSet<Subnet>(pool.getAvailables()));
+            pool.release(b);
+            assertEquals(subnets("2001:db8::/63"),
+                         new HashSet<Subnet>(pool.getAvailables()));
+        } catch (Exception e) {
+            fail("Unexpected exception: " + e);
+        }
+    }
+
+    @Test
+    public void testReleaseIntoPartlyAvailable() {
+        try {
+            IPAddressPool pool = pool("10.0.0.0/28");
+            pool.removeFromAvailable(new Subnet("10.0.0.0/29"));
+            assertEquals(subnets("10.0.0.8/29"),
+                         new HashSet<Subnet>(pool.getAvailables()));
+
+            /* Parts of 10.0.0.0/29 are made available one by one. */
+            pool.addToAvailable(new Subnet("10.0.0.4/30"));
+            pool.addToAvailable(new Subnet("10.0.0.1/32"));
+            assertEquals(subnets("10.0.0.1/32", "10.0.0.4/30", "10.0.0.8/29"),
+                         new HashSet<Subnet>(pool.getAvailables()));
+
+            /*
+             * Then all of it, which replaces the parts inside it and
+             * merges with 10.0.0.8/29.
+             */
+            pool.addToAvailable(new Subnet("10.0.0.0/29"));
+            assertEquals(subnets("10.0.0.0/28"),
+                         new HashSet<Subnet>(pool.getAvailables()));
+            assertEquals(pool("10.0.0.0/28").getNumberOfAvailables(),
+                         pool.getNumberOfAvailables());
+
+            /* Adding a part of it again changes nothing. */
+            pool.addToAvailable(new Subnet("10.0.0.4/30"));
+            assertEquals(subnets("10.0.0.0/28"),
+                         new HashSet<Subnet>(pool.getAvailables()));
+        } catch (Exception e) {
+            fail("Unexpected exception: " + e);
+        }
+    }
+
+    @Test
+    public void testReleaseMatchesRangeSet() {
+        Random random = new Random(4711);
+
+        try {
+            IPAddressPool pool = pool("10.0.0.0/24", "2001:db8::/120");
+            List<Allocation> allocated = new ArrayList<Allocation>();
+
+            for (int i = 0; i < 2000; i++) {
+                if (allocated.isEmpty() || random.nextInt(3) != 0) {
+                    int cidr4 = 25 + random.nextInt(8);
+                    int cidr6 = 121 + random.nextInt(8);
+                    try {
+                        allocated.add(pool.allocate(cidr4, cidr6, "owner",
+                                                    "admin", "r" + i));
+                    } catch (AddressPoolException e) {
+                        /* Full, release something instead. */
+                    }
+                    continue;
+                }
+
+                pool.release(allocated.remove(
+                                 random.nextInt(allocated.size())));
+
+                /*
+                 * Releasing used to rebuild the availables from the
+                 * free ranges, the result must be the same.
+                 */
+                Set<Subnet> expected = new HashSet<Subnet>();
+                for (Set<Subnet> family : families(pool.getAvailables())) {
+                    expected.addAll(
+                        new InetAddressRangeSet(family).asSubnetSet());
+                }
+                assertEquals(expected,
+                             new HashSet<Subnet>(pool.getAvailables()));
+            }
+        } catch (Exception e) {
+            fail("Unexpected exception: " + e);
+        }
+    }
+
+    /* The IPv4 and the IPv6 subnets, each family is merged by itself. */
+    private static List<Set<Subnet>> families(Iterable<Subnet> subnets) {
+        Set<Subnet> v4 = new HashSet<Subnet>();
+        Set<Subnet> v6 = new HashSet<Subnet>();
+        for (Subnet subnet : subnets) {
+            if (subnet.getAddress().getAddress().length == 4) {
+                v4.add(subnet);
+            } else {
+                v6.add(subnet);
+            }
+        }
+        return Arrays.asList(v4, v6);
+    }
 }
@@ -3,12 +3,20 @@ package com.tailf.pkg.testjunit;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 
+import java.util.Collections;
+
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import com.tailf.pkg.idallocator.AllocationsSet;
 import com.tailf.pkg.idpool.Allocation;
 import com.tailf.cdb.CdbSession;
+import com.tailf.conf.ConfObject;
+import com.tailf.conf.ConfPath;
+import com.tailf.conf.ConfUInt32;
+import com.tailf.conf.ConfUInt64;
+import com.tailf.conf.ConfValue;
 
 public class IdAllocationsSetTest {
 
@@ -38,4 +46,102 @@ public class IdAllocationsSetTest {
         set.clear();
         assertTrue(set.isEmpty());
     }
+
+    @Test
+    public void testFlushWritesNetChanges() throws Exception {
+        CdbSession mockedCdb = Mockito.mock(CdbSession.class);
+        AllocationsSet set = new AllocationsSet(mockedCdb, "hello");
+        Allocation a1 = new Allocation(11);
+        Allocation a2 = new Allocation(12);
+
+        /* Nothing is written until flush. */
+        assertTrue(set.add(a1));
+        assertTrue(set.remove(a1));
+        assertTrue(set.add(a2));
+        Mockito.verify(mockedCdb, Mockito.never()).create(Mockito.anyString());
+
+        /* a1 was added and removed again, only a2 is written. */
+        set.flush();
+        Mockito.verify(mockedCdb, Mockito.times(1)).create(Mockito.anyString());
+        Mockito.verify(mockedCdb, Mockito.never()).delete(Mockito.anyString());
+
+        /* Nothing left to write. */
+        set.flush();
+        Mockito.verify(mockedCdb, Mockito.times(1)).create(Mockito.anyString());
+    }
+
+    @Test
+    public void testLoadFromSnapshot() throws Exception {
+        CdbSession mockedCdb = Mockito.mock(CdbSession.class);
+        AllocationsSet set = new AllocationsSet(mockedCdb, "snapshot");
+        Allocation a1 = new Allocation(11);
+
+        assertTrue(set.add(a1));
+        set.flush();
+
+        ArgumentCaptor<ConfValue> generation =
+            ArgumentCaptor.forClass(ConfValue.class);
+        Mockito.verify(mockedCdb).setElem(generation.capture(),
+                                          Mockito.any(ConfPath.class));
+
+        /* CDB has the generation of the snapshot, so it is used. */
+        CdbSession cdb = Mockito.mock(CdbSession.class);
+        Mockito.when(cdb.exists(Mockito.any(ConfPath.class)))
+            .thenReturn(true);
+        Mockito.when(cdb.getElem(Mockito.any(ConfPath.class)))
+            .thenReturn(generation.getValue());
+        Mockito.when(cdb.getNumberOfInstances(Mockito.any(ConfPath.class)))
+            .thenReturn(1);
+        AllocationsSet loaded = new AllocationsSet(cdb, "snapshot");
+        assertTrue(loaded.contains(a1));
+        Mockito.verify(cdb, Mockito.never()).getObjects(
+            Mockito.anyInt(), Mockito.anyInt(), Mockito.anyInt(),
+            Mockito.any(ConfPath.class));
+
+        /* There is no generation in CDB, so CDB is read instead. */
+        AllocationsSet reread = new AllocationsSet(mockedCdb, "snapshot");
+        assertFalse(reread.contains(a1));
+
+        reread.deleteSnapshot();
+    }
+
+    @Test
+    public void testRejectStaleSnapshot() throws Exception {
+        CdbSession mockedCdb = Mockito.mock(CdbSession.class);
+        AllocationsSet set = new AllocationsSet(mockedCdb, "stale");
+        Allocation a1 = new Allocation(11);
+        Allocation a2 = new Allocation(12);
+
+        assertTrue(set.add(a1));
+        set.flush();
+
+        ArgumentCaptor<ConfValue> generation =
+            ArgumentCaptor.forClass(ConfValue.class);
+        Mockito.verify(mockedCdb).setElem(generation.capture(),
+                                          Mockito.any(ConfPath.class));
+        long written = ((ConfUInt64) generation.getValue()).longValue();
+
+        /*
+         * Another node released 11 and allocated 12, so CDB has as
+         * many allocations as the snapshot but a later generation.
+         */
+        CdbSession cdb = Mockito.mock(CdbSession.class);
+        Mockito.when(cdb.exists(Mockito.any(ConfPath.class)))
+            .thenReturn(true);
+        Mockito.when(cdb.getElem(Mockito.any(ConfPath.class)))
+            .thenReturn(new ConfUInt64(written + 1));
+        Mockito.when(cdb.getNumberOfInstances(Mockito.any(ConfPath.class)))
+            .thenReturn(1);
+        Mockito.when(cdb.getObjects(Mockito.anyInt(), Mockito.anyInt(),
+                                    Mockito.anyInt(),
+                                    Mockito.any(ConfPath.class)))
+            .thenReturn(Collections.singletonList(
+                            new ConfObject[] { new ConfUInt32(12) }));
+
+        AllocationsSet loaded = new AllocationsSet(cdb, "stale");
+        assertFalse(loaded.contains(a1));
+        assertTrue(loaded.contains(a2));
+
+        loaded.deleteSnapshot();
+    }
 }
@@ -8,7 +8,8 @@ import org.junit.runners.Suite;
     IdAllocationTest.class,
     IdAllocationsSetTest.class,
     RangeTest.class,
-    IDPoolTest.class
+    IDPoolTest.class,
+    TakeoversTest.class
 })
 
 public class IdAllocatorSuite {
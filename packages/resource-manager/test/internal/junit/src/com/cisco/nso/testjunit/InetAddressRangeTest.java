@@ -85,4 +85,55 @@ public class InetAddressRangeTest {
         }
         Assert.assertEquals(4, i);
     }
+
+    @Test
+    public void testDifference() throws UnknownHostException
+    {
+        InetAddressRange r = new InetAddressRange(InetAddress.getByName("10.0.0.0"),
+                                                  InetAddress.getByName("10.0.0.10"));
+
+        /* other overlaps the upper end of r, and goes beyond it. */
+        InetAddressRange[] d =
+            r.difference(new InetAddressRange(InetAddress.getByName("10.0.0.5"),
+                                              InetAddress.getByName("10.0.0.20")));
+        Assert.assertEquals(1, d.length);
+        Assert.assertEquals(new InetAddressRange(InetAddress.getByName("10.0.0.0"),
+                                                 InetAddress.getByName("10.0.0.4")),
+                            d[0]);
+
+        /* other overlaps the lower end of r, and goes below it. */
+        d = r.difference(new InetAddressRange(InetAddress.getByName("9.255.255.250"),
+                                              InetAddress.getByName("10.0.0.3")));
+        Assert.assertEquals(1, d.length);
+        Assert.assertEquals(new InetAddressRange(InetAddress.getByName("10.0.0.4"),
+                                                 InetAddress.getByName("10.0.0.10")),
+                            d[0]);
+
+        /* other is inside r. */
+        d = r.difference(new InetAddressRange(InetAddress.getByName("10.0.0.3"),
+                                              InetAddress.getByName("10.0.0.5")));
+        Assert.assertEquals(2, d.length);
+        Assert.assertEquals(new InetAddressRange(InetAddress.getByName("10.0.0.0"),
+                                                 InetAddress.getByName("10.0.0.2")),
+                            d[0]);
+        Assert.assertEquals(new InetAddressRange(InetAddress.getByName("10.0.0.6"),
+                                                 InetAddress.getByName("10.0.0.10")),
+                            d[1]);
+
+        Assert.assertEquals(0, r.difference(
+            new InetAddressRange(InetAddress.getByName("0.0.0.0"),
+                                 InetAddress.getByName("255.255.255.255"))).length);
+
+        /* The same across the /64 boundary of an IPv6 range. */
+        InetAddressRange r6 =
+            new InetAddressRange(InetAddress.getByName("2001:db8::ffff:ffff:ffff:fff0"),
+                                 InetAddress.getByName("2001:db8:0:1::f"));
+        d = r6.difference(new InetAddressRange(InetAddress.getByName("2001:db8:0:1::"),
+                                               InetAddress.getByName("2001:db8:0:2::")));
+        Assert.assertEquals(1, d.length);
+        Assert.assertEquals(
+            new InetAddressRange(InetAddress.getByName("2001:db8::ffff:ffff:ffff:fff0"),
+                                 InetAddress.getByName("2001:db8::ffff:ffff:ffff:ffff")),
+            d[0]);
+    }
 }
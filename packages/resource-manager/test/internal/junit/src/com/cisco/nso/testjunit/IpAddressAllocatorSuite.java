@@ -10,7 +10,8 @@ import org.junit.runners.Suite;
     AvailablesSetTest.class,
     IPAddressPoolTest.class,
     SubnetTest.class,
-    InetAddressRangeTest.class
+    InetAddressRangeTest.class,
+    AddressTest.class
 })
 
 public class IpAddressAllocatorSuite {}
@@ -0,0 +1,55 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+import com.tailf.pkg.nsoutil.OwnerTracker;
+import com.tailf.pkg.nsoutil.ToRedeploy;
+
+public class OwnerTrackerTest {
+
+    private static final String RESERVED =
+        "/ralloc:resource-pools/id-pool{p1}/allocation{reserved}";
+    private static final String ASYNC =
+        "/ralloc:resource-pools/id-pool{p2}/allocation{async}";
+
+    @Test
+    public void testReservedAnsweredLast() {
+        OwnerTracker tracker = OwnerTracker.getInstance();
+        ToRedeploy owner = new ToRedeploy("/service{last}", "admin");
+
+        tracker.expect(owner, RESERVED);
+        tracker.expect(owner, ASYNC);
+
+        /* Held for the reserved id, which needs no redeploy itself. */
+        assertFalse(tracker.answered(owner, ASYNC));
+        assertTrue(tracker.answered(owner, RESERVED, false));
+    }
+
+    @Test
+    public void testReservedAnsweredFirst() {
+        OwnerTracker tracker = OwnerTracker.getInstance();
+        ToRedeploy owner = new ToRedeploy("/service{first}", "admin");
+
+        tracker.expect(owner, RESERVED);
+        tracker.expect(owner, ASYNC);
+
+        assertFalse(tracker.answered(owner, RESERVED, false));
+        assertTrue(tracker.answered(owner, ASYNC));
+    }
+
+    @Test
+    public void testReservedOnly() {
+        OwnerTracker tracker = OwnerTracker.getInstance();
+        ToRedeploy owner = new ToRedeploy("/service{only}", "admin");
+
+        tracker.expect(owner, RESERVED);
+        assertFalse(tracker.answered(owner, RESERVED, false));
+
+        /* Not tracked at all. */
+        assertFalse(tracker.answered(owner, ASYNC, false));
+        assertTrue(tracker.answered(owner, ASYNC));
+    }
+}
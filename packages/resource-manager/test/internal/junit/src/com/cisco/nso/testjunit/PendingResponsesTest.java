@@ -0,0 +1,66 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.tailf.pkg.nsoutil.PendingResponses;
+
+public class PendingResponsesTest {
+
+    @Test
+    public void testVisibleUntilTaken() {
+        PendingResponses<String> responses = new PendingResponses<String>();
+        assertTrue(responses.isEmpty());
+
+        responses.put("p1", "a", "ok");
+        assertFalse(responses.isEmpty());
+        assertEquals("ok", responses.get("p1", "a"));
+        assertNull(responses.get("p1", "b"));
+        assertNull(responses.get("p2", "a"));
+
+        Map<String, List<String>> taken = responses.take();
+        assertEquals(Arrays.asList("ok"), taken.get("p1"));
+        assertTrue(responses.isEmpty());
+        assertNull(responses.get("p1", "a"));
+    }
+
+    @Test
+    public void testTakeInOrder() {
+        PendingResponses<String> responses = new PendingResponses<String>();
+        responses.put("p2", "x", "x1");
+        responses.put("p1", "b", "b1");
+        responses.put("p1", "a", "a1");
+        responses.put("p2", "y", "y1");
+
+        /* A new answer replaces the old one in its place. */
+        responses.put("p1", "b", "b2");
+
+        Map<String, List<String>> taken = responses.take();
+        assertEquals(Arrays.asList("p2", "p1"),
+                     Arrays.asList(taken.keySet().toArray()));
+        assertEquals(Arrays.asList("b2", "a1"), taken.get("p1"));
+        assertEquals(Arrays.asList("x1", "y1"), taken.get("p2"));
+    }
+
+    @Test
+    public void testRemove() {
+        PendingResponses<String> responses = new PendingResponses<String>();
+        responses.put("p1", "a", "ok");
+
+        assertEquals("ok", responses.remove("p1", "a"));
+        assertNull(responses.remove("p1", "a"));
+        assertNull(responses.remove("p2", "a"));
+        assertTrue(responses.isEmpty());
+
+        /* Pools left without responses are not taken. */
+        assertTrue(responses.take().isEmpty());
+    }
+}
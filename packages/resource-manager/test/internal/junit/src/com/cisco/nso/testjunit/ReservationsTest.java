@@ -0,0 +1,88 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.tailf.pkg.nsoutil.Reservations;
+
+public class ReservationsTest {
+
+    private static class Expired implements Reservations.Expiry<Long> {
+        CountDownLatch latch = new CountDownLatch(1);
+        Long value;
+
+        public void expired(String pool, String id, Long value) {
+            this.value = value;
+            latch.countDown();
+        }
+    }
+
+    @Test
+    public void testOwner() {
+        Reservations<Long> reservations =
+            new Reservations<Long>(new Expired());
+        reservations.put("p1", "a", "s1", 5L);
+
+        assertEquals(Long.valueOf(5), reservations.get("p1", "a", "s1"));
+        assertNull(reservations.get("p1", "a", "s2"));
+        assertTrue(reservations.contains("p1", "a"));
+        assertFalse(reservations.contains("p2", "a"));
+
+        /* Another owner cannot take it over. */
+        assertNull(reservations.take("p1", "a", "s2"));
+        assertTrue(reservations.contains("p1", "a"));
+
+        assertEquals(Long.valueOf(5), reservations.take("p1", "a", "s1"));
+        assertFalse(reservations.contains("p1", "a"));
+        reservations.shutdown();
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        Expired expired = new Expired();
+        Reservations<Long> reservations =
+            new Reservations<Long>(expired, 10);
+        reservations.put("p1", "a", "s1", 5L);
+
+        assertTrue(expired.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Long.valueOf(5), expired.value);
+        reservations.shutdown();
+    }
+
+    @Test
+    public void testNoExpiryWhenTaken() throws InterruptedException {
+        Expired expired = new Expired();
+        Reservations<Long> reservations =
+            new Reservations<Long>(expired, 50);
+        reservations.put("p1", "a", "s1", 5L);
+        reservations.take("p1", "a", "s1");
+
+        assertFalse(expired.latch.await(200, TimeUnit.MILLISECONDS));
+        reservations.shutdown();
+    }
+
+    @Test
+    public void testRemove() {
+        Reservations<Long> reservations =
+            new Reservations<Long>(new Expired());
+        reservations.put("p1", "a", "s1", 5L);
+        reservations.put("p1", "b", "s1", 6L);
+        reservations.put("p2", "a", "s1", 7L);
+
+        assertFalse(reservations.remove("p1", "a", 6L));
+        assertTrue(reservations.remove("p1", "a", 5L));
+        assertFalse(reservations.contains("p1", "a"));
+
+        reservations.removePool("p1");
+        assertFalse(reservations.contains("p1", "b"));
+        assertTrue(reservations.contains("p2", "a"));
+        reservations.shutdown();
+    }
+}
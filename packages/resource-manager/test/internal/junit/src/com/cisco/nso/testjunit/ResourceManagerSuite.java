@@ -5,7 +5,10 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
-    ErrorCodeTest.class
+    ErrorCodeTest.class,
+    OwnerTrackerTest.class,
+    PendingResponsesTest.class,
+    ReservationsTest.class
 })
 
 public class ResourceManagerSuite {}
@@ -0,0 +1,95 @@
+package com.tailf.pkg.testjunit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.tailf.pkg.idallocator.Takeovers;
+import com.tailf.pkg.idpool.Allocation;
+import com.tailf.pkg.idpool.IDPool;
+import com.tailf.pkg.idpool.Range;
+
+public class TakeoversTest {
+
+    private static IDPool pool() throws Exception {
+        IDPool pool = new IDPool("test-pool",
+                                 new HashSet<Range>(),
+                                 new HashSet<Range>(),
+                                 new HashSet<Allocation>(),
+                                 false, 10);
+        pool.setRange(new Range(1, 100));
+        return pool;
+    }
+
+    private static boolean allocated(IDPool pool, long id) {
+        for (Allocation a : pool.getAllocations()) {
+            if (a.getAllocated() == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testAnsweredKept() throws Exception {
+        IDPool pool = pool();
+        pool.allocate("s1", 5);
+
+        Takeovers takeovers = new Takeovers();
+        takeovers.answered(5, 1);
+
+        assertTrue(takeovers.settle(pool).isEmpty());
+        assertTrue(allocated(pool, 5));
+    }
+
+    @Test
+    public void testBlockAnswered() throws Exception {
+        IDPool pool = pool();
+        pool.allocate("s1", 10);
+        pool.allocate("s1", 11);
+        pool.allocate("s1", 12);
+
+        Takeovers takeovers = new Takeovers();
+        takeovers.answered(10, 2);
+
+        assertTrue(takeovers.settle(pool).isEmpty());
+        assertTrue(allocated(pool, 10));
+        assertTrue(allocated(pool, 11));
+        assertFalse(allocated(pool, 12));
+    }
+
+    @Test
+    public void testRequestedTakenOver() throws Exception {
+        IDPool pool = pool();
+        pool.allocate("s1", 5);
+
+        Takeovers takeovers = new Takeovers();
+        takeovers.requested("a1", 5);
+
+        Map<String, Long> taken = takeovers.settle(pool);
+        assertEquals(1, taken.size());
+        assertEquals(Long.valueOf(5), taken.get("a1"));
+        assertTrue(allocated(pool, 5));
+    }
+
+    @Test
+    public void testUnclaimedReleased() throws Exception {
+        IDPool pool = pool();
+        pool.allocate("s1", 5);
+        pool.allocate("s1", 6);
+
+        /* Two requests for the same id, neither can be trusted. */
+        Takeovers takeovers = new Takeovers();
+        takeovers.requested("a1", 6);
+        takeovers.requested("a2", 6);
+
+        assertTrue(takeovers.settle(pool).isEmpty());
+        assertFalse(allocated(pool, 5));
+        assertFalse(allocated(pool, 6));
+    }
+}